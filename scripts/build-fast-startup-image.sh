@@ -0,0 +1,43 @@
+#!/bin/sh
+#
+# Immagine ad avvio rapido (profilo Maven fast-startup): Spring AOT e cache AOT della JVM.
+#
+# La cache è creata da un run di training dentro l'immagine stessa, così JVM e classpath
+# coincidono con quelli di produzione (altrimenti la JVM la ignora):
+#   1. build dell'immagine senza cache;
+#   2. training: avvio del contesto Spring fino al refresh, registrando la cache in target/aot-cache;
+#   3. build dell'immagine finale, con la cache in /app/aot.
+#
+# Uso: scripts/build-fast-startup-image.sh [immagine] [dockerBuild|build]
+#   scripts/build-fast-startup-image.sh ai-integration-service:fast-startup
+#   scripts/build-fast-startup-image.sh ghcr.io/trasparenzai/ai-integration-service:latest build
+# Ulteriori opzioni Maven in MAVEN_OPTS_EXTRA (es. -Dspring-boot.aot.jvmArguments=...).
+#
+set -eu
+
+IMAGE=${1:-ai-integration-service:fast-startup}
+GOAL=${2:-dockerBuild}
+TRAINING_IMAGE=ai-integration-service:aot-training
+MAIN_CLASS=it.cnr.anac.transparency.ai_integration_service.AiIntegrationServiceApplication
+MAVEN_OPTS_EXTRA=${MAVEN_OPTS_EXTRA:-}
+
+cd "$(dirname "$0")/.."
+CACHE_DIR=$PWD/target/aot-cache
+
+rm -rf "$CACHE_DIR"
+./mvnw -B -Pfast-startup -DskipTests $MAVEN_OPTS_EXTRA package jib:dockerBuild -Djib.to.image="$TRAINING_IMAGE"
+
+# Il training non deve raggiungere Ollama, gli MCP server o l'authorization server:
+# si ferma dopo il refresh del contesto, prima di accettare richieste.
+mkdir -p "$CACHE_DIR"
+docker run --rm --user "$(id -u):$(id -g)" -v "$CACHE_DIR:/app/aot" --entrypoint java "$TRAINING_IMAGE" \
+    -XX:AOTCacheOutput=/app/aot/app.aot \
+    -Dspring.aot.enabled=true \
+    -Dspring.context.exit=onRefresh \
+    -cp @/app/jib-classpath-file "$MAIN_CLASS" \
+    --ai.ollama.warmup.enabled=false \
+    --ai.batch.persistence.enabled=false
+docker rmi "$TRAINING_IMAGE" > /dev/null
+
+./mvnw -B -Pfast-startup -DskipTests $MAVEN_OPTS_EXTRA jib:"$GOAL" -Djib.to.image="$IMAGE"
+ls -l "$CACHE_DIR/app.aot"
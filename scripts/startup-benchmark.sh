@@ -0,0 +1,64 @@
+#!/bin/sh
+#
+# Tempo di avvio e memoria delle immagini del servizio.
+#
+# Per ogni immagine avvia N volte un container e misura il tempo fino alla prima
+# risposta di /actuator/health (time-to-ready) e la RSS del processo in quel momento.
+# Le dipendenze esterne non servono: la discovery OIDC avviene dopo l'avvio, il
+# pre-caricamento dei modelli è disabilitato e MCP è disabilitato per default.
+#
+# Uso: scripts/startup-benchmark.sh [-n ripetizioni] etichetta=immagine ...
+#   scripts/startup-benchmark.sh -n 5 \
+#       jvm=ai-integration-service:jvm \
+#       aot-cache=ai-integration-service:fast-startup \
+#       native=ai-integration-service:native
+# Opzioni aggiuntive per docker run in DOCKER_RUN_OPTS (es. "--cpus 2 --memory 1g").
+#
+set -eu
+
+RUNS=3
+if [ "${1:-}" = "-n" ]; then
+    RUNS=$2
+    shift 2
+fi
+[ $# -gt 0 ] || { sed -n '3,17p' "$0"; exit 1; }
+DOCKER_RUN_OPTS=${DOCKER_RUN_OPTS:-}
+PORT=18080
+
+now_ms() {
+    echo $(($(date +%s%N) / 1000000))
+}
+
+# RSS in MB del processo principale del container (cgroup del container se /proc non è accessibile)
+rss_mb() {
+    pid=$(docker inspect -f '{{.State.Pid}}' "$1")
+    if [ -r "/proc/$pid/status" ]; then
+        awk '/VmRSS/ { printf "%.0f", $2 / 1024 }' "/proc/$pid/status"
+    else
+        docker stats --no-stream --format '{{.MemUsage}}' "$1" | cut -d/ -f1 | tr -d ' '
+    fi
+}
+
+printf '%-12s %4s %10s %8s\n' mode run ready_ms rss_mb
+for mode in "$@"; do
+    label=${mode%%=*}
+    image=${mode#*=}
+    i=1
+    while [ "$i" -le "$RUNS" ]; do
+        start=$(now_ms)
+        container=$(docker run -d -p "127.0.0.1:$PORT:8080" $DOCKER_RUN_OPTS \
+            -e AI_OLLAMA_WARMUP_ENABLED=false -e AI_BATCH_PERSISTENCE_ENABLED=false "$image")
+        until curl -s -o /dev/null "http://127.0.0.1:$PORT/actuator/health"; do
+            if [ "$(docker inspect -f '{{.State.Running}}' "$container")" != true ]; then
+                docker logs "$container" | tail -20
+                docker rm -f "$container" > /dev/null
+                exit 1
+            fi
+            sleep 0.05
+        done
+        ready=$(($(now_ms) - start))
+        printf '%-12s %4s %10s %8s\n' "$label" "$i" "$ready" "$(rss_mb "$container")"
+        docker rm -f "$container" > /dev/null
+        i=$((i + 1))
+    done
+done
@@ -0,0 +1,85 @@
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo del filtro che inoltra il JWT dell'utente agli MCP server, per ogni
+ * richiesta HTTP verso un server, con l'autenticazione nel contesto di
+ * sicurezza del thread (richiesta servlet, o tool invocati durante lo streaming,
+ * per i quali il tool calling manager la riporta dal contesto della generazione).
+ * Lo scambio HTTP è simulato.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class McpFilterBenchmark {
+
+	@State(Scope.Thread)
+	public static class Filter {
+
+		McpSyncClientExchangeFilterFunction filter;
+		ClientRequest request;
+		ExchangeFunction next;
+		JwtAuthenticationToken authentication;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			// nessun token client_credentials: il benchmark copre solo l'inoltro del JWT utente
+			filter = new McpSyncClientExchangeFilterFunction(authorizeRequest -> null,
+					new ClientCredentialsTokenCache(registrationId -> null, Duration.ofSeconds(60)));
+			request = ClientRequest.create(HttpMethod.POST, URI.create("http://mcp.local/mcp")).build();
+			var response = ClientResponse.create(HttpStatus.OK).build();
+			next = clientRequest -> Mono.just(response);
+			var jwt = Jwt.withTokenValue("eyJhbGciOiJSUzI1NiJ9.e30.c2lnbmF0dXJl")
+					.header("alg", "RS256")
+					.subject("mario.rossi")
+					.build();
+			authentication = new JwtAuthenticationToken(jwt);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SecurityContextUser {
+
+		@Setup(Level.Trial)
+		public void setUp(Filter filter) {
+			SecurityContextHolder.getContext().setAuthentication(filter.authentication);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			SecurityContextHolder.clearContext();
+		}
+	}
+
+	@Benchmark
+	public ClientResponse userJwtFromSecurityContext(Filter filter, SecurityContextUser user) {
+		return filter.filter.filter(filter.request, filter.next).block();
+	}
+}
@@ -0,0 +1,54 @@
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import it.cnr.anac.transparency.ai_integration_service.v1.ChatStreamController.RoleMessageRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ai.chat.messages.Message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversione dello storico inviato dal client nei messaggi Spring AI, come in
+ * {@code POST /v1/chat/stream} senza conversazione lato server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageConversionBenchmark {
+
+	@Param({"10", "100", "1000"})
+	int historySize;
+
+	private RoleMessageRequest[] history;
+
+	@Setup
+	public void setUp() {
+		history = new RoleMessageRequest[historySize];
+		for (int i = 0; i < historySize; i++) {
+			history[i] = i % 2 == 0
+					? new RoleMessageRequest("user", "Quali obblighi di trasparenza mancano all'ente " + i + "?")
+					: new RoleMessageRequest("assistant", "All'ente " + i + " mancano i dati su bandi di gara e contratti.");
+		}
+	}
+
+	@Benchmark
+	public List<Message> convertHistory() {
+		return Arrays.stream(history)
+				.map(ChatStreamController::convertToMessage)
+				.toList();
+	}
+}
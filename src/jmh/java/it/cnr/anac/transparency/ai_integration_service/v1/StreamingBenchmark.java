@@ -0,0 +1,75 @@
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializzazione dei token di una risposta in frame JSON e costruzione degli
+ * eventi SSE e delle righe NDJSON, un frame per token.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingBenchmark {
+
+	private static final String TEXT = "L'ente \"Comune di Pisa\" ha pubblicato 42 dei 57 obblighi previsti\n"
+			+ "dal d.lgs. 33/2013: mancano i dati su consulenti e collaboratori, bandi di gara e contratti. ";
+
+	@Param({"50", "500"})
+	int tokenCount;
+
+	private List<String> tokens;
+	private TokenFrameEncoder encoder;
+
+	@Setup
+	public void setUp() {
+		encoder = new TokenFrameEncoder(false, Duration.ofMillis(20), 256);
+		tokens = new ArrayList<>(tokenCount);
+		var words = TEXT.split("(?<= )");
+		for (int i = 0; i < tokenCount; i++) {
+			tokens.add(words[i % words.length]);
+		}
+	}
+
+	@Benchmark
+	public void tokenFrames(Blackhole blackhole) {
+		encoder.encode(Flux.fromIterable(tokens), false)
+				.doOnNext(blackhole::consume)
+				.blockLast();
+	}
+
+	@Benchmark
+	public void serverSentEvents(Blackhole blackhole) {
+		encoder.encode(Flux.fromIterable(tokens), false)
+				.map(frame -> new StreamEvent(StreamEvent.TOKEN, frame).toServerSentEvent())
+				.doOnNext(blackhole::consume)
+				.blockLast();
+	}
+
+	@Benchmark
+	public void ndjsonLines(Blackhole blackhole) {
+		encoder.encode(Flux.fromIterable(tokens), false)
+				.map(frame -> new StreamEvent(StreamEvent.TOKEN, frame).toNdjson())
+				.doOnNext(blackhole::consume)
+				.blockLast();
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service;
+
+import org.springframework.aot.hint.BindingReflectionHintsRegistrar;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.util.ClassUtils;
+
+import java.util.List;
+
+/**
+ * Hint di reflection per l'immagine nativa GraalVM (profilo Maven {@code native}).
+ * <p>
+ * I tipi dei controller REST sono registrati da Spring e quelli di Ollama, MCP e
+ * dei tool da Spring AI; qui si aggiungono i record letti e scritti direttamente
+ * con l'{@code ObjectMapper}: journal dei job batch e delle conversazioni,
+ * registro dei consumi ed elementi dei job inviati in NDJSON. Molti sono
+ * package-private, per questo sono indicati per nome.
+ */
+class AiIntegrationRuntimeHints implements RuntimeHintsRegistrar {
+
+    static final List<String> JSON_TYPES = List.of(
+            "it.cnr.anac.transparency.ai_integration_service.batch.BatchJournal$Header",
+            "it.cnr.anac.transparency.ai_integration_service.batch.BatchJournal$Event",
+            "it.cnr.anac.transparency.ai_integration_service.conversation.ConversationJournal$Header",
+            "it.cnr.anac.transparency.ai_integration_service.conversation.JournalMessage",
+            "it.cnr.anac.transparency.ai_integration_service.usage.UsageLog$Entry",
+            "it.cnr.anac.transparency.ai_integration_service.v1.BatchJobController$ItemRequest");
+
+    private final BindingReflectionHintsRegistrar bindingRegistrar = new BindingReflectionHintsRegistrar();
+
+    @Override
+    public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+        for (var type : JSON_TYPES) {
+            // registra anche i tipi dei componenti (es. BatchJournal.JournalItem)
+            bindingRegistrar.registerReflectionHints(hints.reflection(), ClassUtils.resolveClassName(type, classLoader));
+        }
+    }
+}
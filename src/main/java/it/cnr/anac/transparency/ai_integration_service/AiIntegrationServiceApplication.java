@@ -18,8 +18,12 @@ package it.cnr.anac.transparency.ai_integration_service;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
+@EnableScheduling
 @SpringBootApplication
+@ImportRuntimeHints(AiIntegrationRuntimeHints.class)
 public class AiIntegrationServiceApplication {
 
 	static void main(String[] args) {
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.batch;
+
+import lombok.Getter;
+import org.springframework.ai.chat.messages.Message;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Job batch: un elenco di prompt eseguiti in background per conto di un utente
+ * (subject del JWT). I risultati degli elementi completati sono conservati in
+ * ordine di completamento e possono essere letti mentre il job è in corso.
+ */
+public class BatchJob {
+
+    public enum Status {RUNNING, COMPLETED, CANCELLED}
+
+    public enum ItemStatus {PENDING, RUNNING, DONE, FAILED}
+
+    @Getter
+    private final String id;
+    @Getter
+    private final String owner;
+    @Getter
+    private final Instant createdAt;
+
+    // protetti dal monitor dell'istanza
+    private final List<Item> items;
+    private boolean cancelled;
+    private Instant finishedAt;
+
+    // Risultati in ordine di completamento, riletti da ogni nuovo sottoscrittore
+    private final Sinks.Many<ItemResult> results = Sinks.many().replay().all();
+
+    BatchJob(String id, String owner, Instant createdAt, List<Item> items) {
+        this.id = id;
+        this.owner = owner;
+        this.createdAt = createdAt;
+        this.items = List.copyOf(items);
+    }
+
+    public synchronized Status getStatus() {
+        if (cancelled) {
+            return Status.CANCELLED;
+        }
+        return finishedAt != null ? Status.COMPLETED : Status.RUNNING;
+    }
+
+    public synchronized Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public synchronized Progress getProgress() {
+        int pending = 0, running = 0, done = 0, failed = 0;
+        for (var item : items) {
+            switch (item.status) {
+                case PENDING -> pending++;
+                case RUNNING -> running++;
+                case DONE -> done++;
+                case FAILED -> failed++;
+            }
+        }
+        return new Progress(items.size(), pending, running, done, failed);
+    }
+
+    /**
+     * Risultati degli elementi già completati seguiti, se {@code follow}, da quelli
+     * che si completeranno fino alla fine del job.
+     */
+    public Flux<ItemResult> results(boolean follow) {
+        if (follow) {
+            return results.asFlux();
+        }
+        int completed;
+        synchronized (this) {
+            completed = (int) items.stream()
+                    .filter(item -> item.status == ItemStatus.DONE || item.status == ItemStatus.FAILED)
+                    .count();
+        }
+        return results.asFlux().take(completed);
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    synchronized Item item(int index) {
+        return items.get(index);
+    }
+
+    synchronized List<Integer> pendingItems() {
+        var pending = new ArrayList<Integer>();
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).status == ItemStatus.PENDING) {
+                pending.add(i);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Segna l'elemento come in esecuzione; {@code false} se il job è stato annullato.
+     */
+    synchronized boolean start(int index, Disposable execution) {
+        if (cancelled) {
+            return false;
+        }
+        var item = items.get(index);
+        item.status = ItemStatus.RUNNING;
+        item.attempts++;
+        item.execution = execution;
+        return true;
+    }
+
+    synchronized void retryLater(int index) {
+        var item = items.get(index);
+        item.status = ItemStatus.PENDING;
+        item.execution = null;
+    }
+
+    /**
+     * L'elemento non è stato eseguito (ad es. coda di generazione satura): il
+     * tentativo non viene conteggiato.
+     */
+    synchronized void postpone(int index) {
+        retryLater(index);
+        items.get(index).attempts--;
+    }
+
+    synchronized void complete(int index, ItemStatus status, String result, String error, int attempts, Instant now) {
+        var item = items.get(index);
+        item.status = status;
+        item.attempts = attempts;
+        item.execution = null;
+        results.tryEmitNext(new ItemResult(index, item.id, status.name().toLowerCase(), result, error, attempts));
+        if (!cancelled && items.stream().allMatch(i -> i.status == ItemStatus.DONE || i.status == ItemStatus.FAILED)) {
+            finishedAt = now;
+            results.tryEmitComplete();
+        }
+    }
+
+    /**
+     * Annulla il job: gli elementi in attesa non saranno eseguiti e quelli in
+     * corso vengono interrotti. I risultati già prodotti restano disponibili.
+     */
+    boolean cancel(Instant now) {
+        var executions = new ArrayList<Disposable>();
+        synchronized (this) {
+            if (cancelled || finishedAt != null) {
+                return false;
+            }
+            cancelled = true;
+            finishedAt = now;
+            for (var item : items) {
+                if (item.execution != null) {
+                    executions.add(item.execution);
+                    item.execution = null;
+                }
+                if (item.status == ItemStatus.RUNNING) {
+                    item.status = ItemStatus.PENDING;
+                }
+            }
+            results.tryEmitComplete();
+        }
+        // fuori dal monitor: l'interruzione notifica subito lo scheduler
+        executions.forEach(Disposable::dispose);
+        return true;
+    }
+
+    /**
+     * Elemento del job: identificativo fornito dal client (o l'indice) e messaggi
+     * da inviare al modello.
+     */
+    static final class Item {
+        private final String id;
+        private final List<Message> messages;
+        private ItemStatus status = ItemStatus.PENDING;
+        private int attempts;
+        private Disposable execution;
+
+        Item(String id, List<Message> messages) {
+            this.id = id;
+            this.messages = List.copyOf(messages);
+        }
+
+        String id() {
+            return id;
+        }
+
+        List<Message> messages() {
+            return messages;
+        }
+
+        int attempts() {
+            return attempts;
+        }
+    }
+
+    /**
+     * Avanzamento del job, per stato degli elementi.
+     */
+    public record Progress(int total, int pending, int running, int done, int failed) {
+    }
+
+    /**
+     * Esito di un elemento, una riga dello stream NDJSON dei risultati.
+     */
+    public record ItemResult(int index, String id, String status, String result, String error, int attempts) {
+    }
+}
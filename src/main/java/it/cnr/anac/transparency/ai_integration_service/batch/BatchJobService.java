@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.batch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import it.cnr.anac.transparency.ai_integration_service.chat.AdmissionRejectedException;
+import it.cnr.anac.transparency.ai_integration_service.chat.ChatService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposables;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Esecuzione dei job batch: gli elementi di tutti i job sono messi in una coda
+ * FIFO ed eseguiti in background con al più {@code ai.batch.concurrency}
+ * generazioni contemporanee, con priorità batch nel controllo di ammissione
+ * (le richieste interattive hanno la precedenza).
+ * <p>
+ * Un elemento fallito è ritentato fino a {@code ai.batch.max-attempts} volte,
+ * con un'attesa crescente; se la coda di generazione è satura l'elemento è
+ * rimandato senza consumare tentativi. Con {@code ai.batch.persistence.enabled}
+ * ogni esito è registrato nel journal su file e al riavvio i job non conclusi
+ * riprendono dagli elementi ancora senza esito. I job conclusi sono rimossi
+ * dopo {@code ai.batch.retention}.
+ */
+@Slf4j
+@Component
+public class BatchJobService implements MeterBinder {
+
+    private final ChatService chatService;
+    private final BatchJournal journal;
+    private final int concurrency;
+    private final int maxItems;
+    private final int maxAttempts;
+    private final Duration itemTimeout;
+    private final Duration retryBackoff;
+    private final Duration retention;
+    private final Clock clock = Clock.systemUTC();
+
+    // protetti dal monitor dell'istanza
+    private final LinkedHashMap<String, BatchJob> jobs = new LinkedHashMap<>();
+    private final ArrayDeque<Work> queue = new ArrayDeque<>();
+    private int running;
+    // richieste di dispatch: chi porta il contatore da 0 esegue il ciclo per tutti
+    private final AtomicInteger dispatchRequests = new AtomicInteger();
+
+    private final LongAdder completedItems = new LongAdder();
+    private final LongAdder failedItems = new LongAdder();
+    private final LongAdder retriedItems = new LongAdder();
+
+    public BatchJobService(ChatService chatService,
+                           @Value("${ai.batch.concurrency:4}") int concurrency,
+                           @Value("${ai.batch.max-items:10000}") int maxItems,
+                           @Value("${ai.batch.max-attempts:3}") int maxAttempts,
+                           @Value("${ai.batch.item-timeout:5m}") Duration itemTimeout,
+                           @Value("${ai.batch.retry-backoff:10s}") Duration retryBackoff,
+                           @Value("${ai.batch.retention:7d}") Duration retention,
+                           @Value("${ai.batch.persistence.enabled:true}") boolean persistenceEnabled,
+                           @Value("${ai.batch.persistence.directory:./data/batch}") Path directory,
+                           ObjectMapper objectMapper) {
+        this.chatService = chatService;
+        this.concurrency = concurrency;
+        this.maxItems = maxItems;
+        this.maxAttempts = maxAttempts;
+        this.itemTimeout = itemTimeout;
+        this.retryBackoff = retryBackoff;
+        this.retention = retention;
+        this.journal = persistenceEnabled ? new BatchJournal(directory, objectMapper) : null;
+    }
+
+    /**
+     * Riprende i job non conclusi registrati nel journal.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resume() {
+        if (journal == null) {
+            return;
+        }
+        var loaded = journal.loadAll();
+        loaded.sort(Comparator.comparing(BatchJob::getCreatedAt));
+        int resumed = 0;
+        synchronized (this) {
+            for (var job : loaded) {
+                jobs.put(job.getId(), job);
+                if (job.getStatus() == BatchJob.Status.RUNNING) {
+                    job.pendingItems().forEach(index -> queue.add(new Work(job, index)));
+                    resumed++;
+                }
+            }
+        }
+        if (!loaded.isEmpty()) {
+            log.info("Loaded {} batch jobs from the journal, {} resumed", loaded.size(), resumed);
+        }
+        dispatch();
+    }
+
+    /**
+     * Crea un job con gli elementi indicati e ne avvia l'esecuzione.
+     */
+    public BatchJob submit(String owner, List<ItemRequest> requests) {
+        if (requests.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Il job non contiene elementi");
+        }
+        if (requests.size() > maxItems) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "Il job contiene più di " + maxItems + " elementi");
+        }
+        var items = new ArrayList<BatchJob.Item>();
+        for (int i = 0; i < requests.size(); i++) {
+            var request = requests.get(i);
+            items.add(new BatchJob.Item(request.id() != null ? request.id() : String.valueOf(i), request.messages()));
+        }
+        var job = new BatchJob(UUID.randomUUID().toString(), owner, clock.instant(), items);
+        if (journal != null) {
+            journal.create(job);
+        }
+        synchronized (this) {
+            jobs.put(job.getId(), job);
+            for (int i = 0; i < items.size(); i++) {
+                queue.add(new Work(job, i));
+            }
+        }
+        log.info("Batch job {} submitted by {} with {} items", job.getId(), owner, items.size());
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Il job se esiste ed appartiene all'utente, altrimenti 404.
+     */
+    public BatchJob get(String id, String owner) {
+        BatchJob job;
+        synchronized (this) {
+            job = jobs.get(id);
+        }
+        if (job == null || !job.getOwner().equals(owner)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Job non trovato");
+        }
+        return job;
+    }
+
+    public synchronized List<BatchJob> list(String owner) {
+        return jobs.values().stream().filter(job -> job.getOwner().equals(owner)).toList();
+    }
+
+    public BatchJob cancel(String id, String owner) {
+        var job = get(id, owner);
+        if (job.cancel(clock.instant())) {
+            synchronized (this) {
+                queue.removeIf(work -> work.job() == job);
+            }
+            if (journal != null) {
+                journal.cancelled(job.getId());
+            }
+            log.info("Batch job {} cancelled", job.getId());
+            dispatch();
+        }
+        return job;
+    }
+
+    /**
+     * Rimuove i job conclusi da più di {@code ai.batch.retention}.
+     */
+    @Scheduled(fixedDelayString = "${ai.batch.purge-interval:1h}")
+    public void purge() {
+        var cutoff = clock.instant().minus(retention);
+        List<String> expired = new ArrayList<>();
+        synchronized (this) {
+            var iterator = jobs.values().iterator();
+            while (iterator.hasNext()) {
+                var job = iterator.next();
+                var finishedAt = job.getFinishedAt();
+                if (finishedAt != null && finishedAt.isBefore(cutoff)) {
+                    iterator.remove();
+                    expired.add(job.getId());
+                }
+            }
+        }
+        if (journal != null) {
+            expired.forEach(journal::delete);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ai.batch.queue.size", this, service -> {
+            synchronized (service) {
+                return service.queue.size();
+            }
+        }).description("Elementi batch in attesa di esecuzione").register(registry);
+        Gauge.builder("ai.batch.running", this, service -> {
+            synchronized (service) {
+                return service.running;
+            }
+        }).description("Elementi batch in esecuzione").register(registry);
+        FunctionCounter.builder("ai.batch.items", completedItems, LongAdder::sum)
+                .tag("outcome", "done").register(registry);
+        FunctionCounter.builder("ai.batch.items", failedItems, LongAdder::sum)
+                .tag("outcome", "failed").register(registry);
+        FunctionCounter.builder("ai.batch.retries", retriedItems, LongAdder::sum).register(registry);
+    }
+
+    /**
+     * Avvia elementi dalla coda finché c'è concorrenza disponibile.
+     * <p>
+     * Un elemento può terminare in modo sincrono (quota superata, coda di
+     * generazione satura) e richiedere un nuovo dispatch dallo stesso thread:
+     * la richiesta viene raccolta dal ciclo già in corso invece di annidarsi,
+     * così lo stack non cresce con il numero di elementi in coda.
+     */
+    private void dispatch() {
+        if (dispatchRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            var toStart = new ArrayList<Work>();
+            synchronized (this) {
+                while (running < concurrency && !queue.isEmpty()) {
+                    var work = queue.poll();
+                    if (work.job().isCancelled()) {
+                        continue;
+                    }
+                    toStart.add(work);
+                    running++;
+                }
+            }
+            toStart.forEach(this::execute);
+            missed = dispatchRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void execute(Work work) {
+        var job = work.job();
+        var index = work.index();
+        var execution = Disposables.swap();
+        if (!job.start(index, execution)) {
+            // job annullato mentre l'elemento era in coda
+            onFinished();
+            return;
+        }
+        var item = job.item(index);
+        execution.update(chatService.callAs(item.messages(), job.getOwner())
+                .timeout(itemTimeout)
+                .doFinally(signal -> onFinished())
+                .subscribe(
+                        result -> complete(job, index, BatchJob.ItemStatus.DONE, result, null),
+                        error -> onError(job, index, error)));
+    }
+
+    private void onFinished() {
+        synchronized (this) {
+            running--;
+        }
+        dispatch();
+    }
+
+    private void onError(BatchJob job, int index, Throwable error) {
+        if (error instanceof AdmissionRejectedException rejected) {
+            // coda di generazione satura: si riprova più tardi senza consumare tentativi
+            job.postpone(index);
+            var retryAfter = rejected.getHeaders().getFirst("Retry-After");
+            requeueAfter(job, index, retryAfter != null ? Duration.ofSeconds(Long.parseLong(retryAfter)) : retryBackoff);
+            return;
+        }
+        var attempts = job.item(index).attempts();
+        if (attempts < maxAttempts) {
+            log.debug("Batch job {} item {} failed (attempt {}), retrying: {}", job.getId(), index, attempts,
+                    error.getMessage());
+            retriedItems.increment();
+            job.retryLater(index);
+            requeueAfter(job, index, retryBackoff.multipliedBy(attempts));
+            return;
+        }
+        log.warn("Batch job {} item {} failed after {} attempts: {}", job.getId(), index, attempts, error.getMessage());
+        var message = error instanceof ResponseStatusException rse ? rse.getReason() : error.getMessage();
+        complete(job, index, BatchJob.ItemStatus.FAILED, null,
+                message != null ? message : error.getClass().getSimpleName());
+    }
+
+    private void requeueAfter(BatchJob job, int index, Duration delay) {
+        Mono.delay(delay).subscribe(tick -> {
+            if (job.isCancelled()) {
+                return;
+            }
+            synchronized (this) {
+                queue.add(new Work(job, index));
+            }
+            dispatch();
+        });
+    }
+
+    private void complete(BatchJob job, int index, BatchJob.ItemStatus status, String result, String error) {
+        var attempts = job.item(index).attempts();
+        job.complete(index, status, result, error, attempts, clock.instant());
+        (status == BatchJob.ItemStatus.DONE ? completedItems : failedItems).increment();
+        if (journal != null) {
+            journal.itemCompleted(job.getId(), new BatchJob.ItemResult(index, job.item(index).id(),
+                    status.name().toLowerCase(), result, error, attempts));
+        }
+        if (job.getStatus() == BatchJob.Status.COMPLETED) {
+            log.info("Batch job {} completed: {}", job.getId(), job.getProgress());
+        }
+    }
+
+    /**
+     * Elemento da eseguire: identificativo (facoltativo) e messaggi.
+     */
+    public record ItemRequest(String id, List<Message> messages) {
+    }
+
+    private record Work(BatchJob job, int index) {
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.batch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.cnr.anac.transparency.ai_integration_service.conversation.JournalFiles;
+import it.cnr.anac.transparency.ai_integration_service.conversation.JournalMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Journal dei job batch su file: un file NDJSON per job, con una riga di
+ * intestazione (utente e prompt) seguita da una riga per ogni esito di un
+ * elemento e dall'eventuale annullamento. Le righe sono solo accodate; al
+ * riavvio il job viene ricostruito e gli elementi senza esito sono rieseguiti.
+ */
+@Slf4j
+class BatchJournal {
+
+    private static final String EVENT_CANCELLED = "cancelled";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    BatchJournal(Path directory, ObjectMapper objectMapper) {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile creare la directory dei job batch " + directory, e);
+        }
+    }
+
+    void create(BatchJob job) {
+        var items = new ArrayList<JournalItem>();
+        for (int i = 0; i < job.getProgress().total(); i++) {
+            var item = job.item(i);
+            items.add(new JournalItem(item.id(), item.messages().stream().map(JournalMessage::from).toList()));
+        }
+        write(job.getId(), new Header(job.getOwner(), job.getCreatedAt(), items),
+                StandardOpenOption.CREATE_NEW);
+    }
+
+    void itemCompleted(String jobId, BatchJob.ItemResult result) {
+        write(jobId, new Event(result.status(), result.index(), result.result(), result.error(), result.attempts()),
+                StandardOpenOption.APPEND);
+    }
+
+    void cancelled(String jobId) {
+        write(jobId, new Event(EVENT_CANCELLED, null, null, null, 0), StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Job presenti nella directory, con gli esiti già registrati.
+     */
+    List<BatchJob> loadAll() {
+        var jobs = new ArrayList<BatchJob>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(JournalFiles::isJournal)
+                    .forEach(f -> load(f).ifPresent(jobs::add));
+        } catch (IOException e) {
+            log.warn("Impossibile leggere la directory dei job batch {}: {}", directory, e.getMessage());
+        }
+        return jobs;
+    }
+
+    void delete(String id) {
+        var file = file(id);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Impossibile cancellare il file del job batch {}: {}", id, e.getMessage());
+        }
+    }
+
+    private Optional<BatchJob> load(Path file) {
+        var id = JournalFiles.idOf(file);
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            var iterator = lines.iterator();
+            if (!iterator.hasNext()) {
+                return Optional.empty();
+            }
+            var header = objectMapper.readValue(iterator.next(), Header.class);
+            var items = header.items().stream()
+                    .map(item -> new BatchJob.Item(item.id(), item.messages().stream().map(JournalMessage::toMessage).toList()))
+                    .toList();
+            var job = new BatchJob(id, header.owner(), header.createdAt(), items);
+            var finishedAt = Files.getLastModifiedTime(file).toInstant();
+            while (iterator.hasNext()) {
+                var line = iterator.next();
+                if (line.isBlank()) {
+                    continue;
+                }
+                var event = objectMapper.readValue(line, Event.class);
+                if (EVENT_CANCELLED.equals(event.type())) {
+                    job.cancel(finishedAt);
+                } else {
+                    job.complete(event.index(), BatchJob.ItemStatus.valueOf(event.type().toUpperCase()),
+                            event.result(), event.error(), event.attempts(), finishedAt);
+                }
+            }
+            return Optional.of(job);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Impossibile leggere il job batch {} da {}: {}", id, file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private synchronized void write(String id, Object record, StandardOpenOption option) {
+        var file = file(id);
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.writeString(file, objectMapper.writeValueAsString(record) + '\n', StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, option);
+        } catch (IOException e) {
+            // Il job prosegue in memoria, ma non potrà essere ripreso dopo un riavvio
+            log.warn("Impossibile aggiornare il journal del job batch {} su {}: {}", id, file, e.getMessage());
+        }
+    }
+
+    private Path file(String id) {
+        return JournalFiles.file(directory, id);
+    }
+
+    record Header(String owner, Instant createdAt, List<JournalItem> items) {}
+
+    record JournalItem(String id, List<JournalMessage> messages) {}
+
+    record Event(String type, Integer index, String result, String error, int attempts) {}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.cache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Cache delle risposte complete del modello, in memoria, davanti al {@code ChatClient}.
+ * <p>
+ * La chiave esatta è lo SHA-256 dell'utente (subject del JWT), dei messaggi
+ * normalizzati (spazi compattati, Unicode NFC; maiuscole e minuscole restano
+ * distinte) e dell'impronta di modello, opzioni e system prompt. Le risposte
+ * sono costruite con i tool MCP chiamati con il token dell'utente, quindi non
+ * sono mai condivise tra utenti diversi.
+ * Opzionalmente ({@code ai.chat.cache.semantic.enabled}) le domande di un solo
+ * messaggio sono confrontate anche per similarità tramite embedding, con un
+ * indice vettoriale in memoria a scansione lineare (la cache è piccola), sempre
+ * tra le sole risposte dello stesso utente.
+ * Le voci scadono dopo {@code ai.chat.cache.ttl} e sono rimosse in ordine LRU
+ * oltre {@code ai.chat.cache.max-entries}.
+ */
+@Slf4j
+@Component
+public class ResponseCache implements MeterBinder {
+
+    private static final String METRIC_NAME = "ai.chat.response.cache";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final int maxResponseLength;
+    private final Duration ttl;
+    private final EmbeddingModel embeddingModel;
+    private final double similarityThreshold;
+    private final String systemPromptHash;
+    private final Clock clock;
+
+    // Ordinata per accesso (LRU), protetta dal monitor dell'istanza
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder semanticHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @Autowired
+    public ResponseCache(@Value("${ai.chat.cache.enabled:true}") boolean enabled,
+                         @Value("${ai.chat.cache.max-entries:1000}") int maxEntries,
+                         @Value("${ai.chat.cache.max-response-length:65536}") int maxResponseLength,
+                         @Value("${ai.chat.cache.ttl:10m}") Duration ttl,
+                         @Value("${ai.chat.cache.semantic.enabled:false}") boolean semanticEnabled,
+                         @Value("${ai.chat.cache.semantic.similarity-threshold:0.95}") double similarityThreshold,
+                         @Value("${ai.systemPrompt}") String systemPrompt,
+                         ObjectProvider<EmbeddingModel> embeddingModel) {
+        this(enabled, maxEntries, maxResponseLength, ttl, similarityThreshold, systemPrompt,
+                semanticEnabled ? embeddingModel.getIfAvailable() : null, Clock.systemUTC());
+        if (semanticEnabled && this.embeddingModel == null) {
+            log.warn("Cache semantica abilitata ma nessun EmbeddingModel disponibile: uso solo la cache esatta");
+        }
+    }
+
+    ResponseCache(boolean enabled, int maxEntries, int maxResponseLength, Duration ttl, double similarityThreshold,
+                  String systemPrompt, EmbeddingModel embeddingModel, Clock clock) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.maxResponseLength = maxResponseLength;
+        this.ttl = ttl;
+        this.similarityThreshold = similarityThreshold;
+        this.embeddingModel = embeddingModel;
+        this.systemPromptHash = sha256(systemPrompt);
+        this.clock = clock;
+    }
+
+    /**
+     * Cerca una risposta per i messaggi indicati. Il {@link Lookup} restituito
+     * contiene la risposta in caso di hit, altrimenti va passato a
+     * {@link #put(Lookup, String)} al termine della generazione. La chiave del
+     * {@link Lookup} identifica la richiesta anche quando la cache non è usata.
+     *
+     * @param subject          utente per cui è generata la risposta
+     * @param modelFingerprint modello e opzioni con cui verrebbe generata la risposta
+     * @param useCache         {@code false} se il client ha chiesto di non usare la cache
+     */
+    public Mono<Lookup> lookup(List<Message> messages, String subject, String modelFingerprint, boolean useCache) {
+        var fingerprint = sha256(subject) + '|' + modelFingerprint + '|' + systemPromptHash;
+        var normalized = normalize(messages);
+        var key = sha256(fingerprint + '\n' + normalized);
+        var now = clock.instant();
+        if (!enabled || !useCache) {
+            return Mono.just(new Lookup(key, fingerprint, null, null, false));
+        }
+
+        var exact = get(key, now);
+        if (exact != null) {
+            hits.increment();
+            return Mono.just(new Lookup(key, fingerprint, null, exact, true));
+        }
+        if (embeddingModel == null || messages.size() != 1) {
+            misses.increment();
+            return Mono.just(new Lookup(key, fingerprint, null, null, true));
+        }
+        // Il calcolo dell'embedding è una chiamata bloccante verso Ollama
+        return Mono.fromCallable(() -> normalizeVector(embeddingModel.embed(normalized)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(embedding -> {
+                    var similar = findSimilar(fingerprint, embedding, clock.instant());
+                    if (similar != null) {
+                        semanticHits.increment();
+                    } else {
+                        misses.increment();
+                    }
+                    return new Lookup(key, fingerprint, embedding, similar, true);
+                })
+                .onErrorResume(e -> {
+                    log.warn("Calcolo embedding per la cache semantica fallito: {}", e.getMessage());
+                    misses.increment();
+                    return Mono.just(new Lookup(key, fingerprint, null, null, true));
+                });
+    }
+
+    /**
+     * Memorizza la risposta completa generata per una ricerca senza esito.
+     */
+    public void put(Lookup lookup, String response) {
+        if (!lookup.cacheable() || lookup.hit() || response == null || response.isBlank() || response.length() > maxResponseLength) {
+            return;
+        }
+        var entry = new Entry(response, lookup.fingerprint(), lookup.embedding(), clock.instant().plus(ttl));
+        synchronized (this) {
+            entries.put(lookup.key(), entry);
+            while (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder(METRIC_NAME, hits, LongAdder::sum)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder(METRIC_NAME, semanticHits, LongAdder::sum)
+                .tag("result", "semantic-hit").register(registry);
+        FunctionCounter.builder(METRIC_NAME, misses, LongAdder::sum)
+                .tag("result", "miss").register(registry);
+        Gauge.builder(METRIC_NAME + ".size", this, c -> c.size()).register(registry);
+    }
+
+    private synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized String get(String key, Instant now) {
+        var entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt().isBefore(now)) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.response();
+    }
+
+    private synchronized String findSimilar(String fingerprint, float[] embedding, Instant now) {
+        String best = null;
+        double bestScore = similarityThreshold;
+        for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+            var entry = candidate.getValue();
+            if (entry.embedding() == null || entry.expiresAt().isBefore(now)
+                    || !entry.fingerprint().equals(fingerprint) || entry.embedding().length != embedding.length) {
+                continue;
+            }
+            double score = dot(entry.embedding(), embedding);
+            if (score >= bestScore) {
+                bestScore = score;
+                best = entry.response();
+            }
+        }
+        return best;
+    }
+
+    static String normalize(List<Message> messages) {
+        var out = new StringBuilder();
+        for (Message message : messages) {
+            var text = message.getText() == null ? "" : message.getText();
+            text = Normalizer.normalize(text, Normalizer.Form.NFC);
+            text = WHITESPACE.matcher(text.strip()).replaceAll(" ");
+            out.append(message.getMessageType().getValue()).append(':').append(text).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static float[] normalizeVector(float[] vector) {
+        double norm = Math.sqrt(dot(vector, vector));
+        if (norm == 0) {
+            return vector;
+        }
+        var normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = (float) (vector[i] / norm);
+        }
+        return normalized;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static String sha256(String value) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Esito di una ricerca in cache.
+     *
+     * @param response  la risposta in cache, {@code null} in caso di miss
+     * @param cacheable se la risposta generata può essere memorizzata
+     */
+    public record Lookup(String key, String fingerprint, float[] embedding, String response, boolean cacheable) {
+
+        public boolean hit() {
+            return response != null;
+        }
+    }
+
+    private record Entry(String response, String fingerprint, float[] embedding, Instant expiresAt) {}
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import it.cnr.anac.transparency.ai_integration_service.ollama.OllamaBackendPool;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Controllo di ammissione delle generazioni verso Ollama.
+ * <p>
+ * Le generazioni contemporanee sono limitate alla capacità del pool (somma dei
+ * limiti di concorrenza adattivi dei nodi, vedi {@link OllamaBackendPool#capacity()}).
+ * Le richieste in eccesso attendono in coda: quelle interattive (ogni richiesta
+ * HTTP) passano sempre prima dei job batch e, a parità di priorità, gli utenti
+ * (subject del JWT) sono serviti a turno, così chi invia molte richieste non
+ * blocca gli altri.
+ * <p>
+ * Se l'attesa stimata supera {@code ai.chat.admission.max-queue-wait}, o la coda
+ * è piena, la richiesta è rifiutata subito con 429 e {@code Retry-After}. Chi è
+ * in coda riceve periodicamente posizione e tempo di attesa tramite il
+ * {@link QueueListener} registrato nel contesto Reactor.
+ */
+@Component
+public class AdmissionControl implements MeterBinder {
+
+    public enum Priority { INTERACTIVE, BATCH }
+
+    /**
+     * Stato di una richiesta in attesa.
+     *
+     * @param position  posizione stimata in coda (1 = la prossima ad essere servita)
+     * @param queueSize richieste complessivamente in coda
+     * @param waited    tempo già trascorso in coda
+     */
+    public record QueueStatus(int position, int queueSize, Duration waited) {
+    }
+
+    /**
+     * Riceve gli aggiornamenti sullo stato in coda; va inserito nel contesto
+     * Reactor con chiave {@code QueueListener.class}.
+     */
+    @FunctionalInterface
+    public interface QueueListener {
+        void onQueued(QueueStatus status);
+    }
+
+    private final OllamaBackendPool pool;
+    private final boolean enabled;
+    private final int maxQueueSize;
+    private final Duration maxQueueWait;
+
+    // Stato protetto dal monitor dell'istanza
+    private final Map<Priority, LinkedHashMap<String, ArrayDeque<Waiter>>> queues = new EnumMap<>(Priority.class);
+    private final int[] queuedByPriority = new int[Priority.values().length];
+    private int queued;
+    private int inFlight;
+    private long sequence;
+    /** Durata media di una generazione (media mobile esponenziale), 0 finché non misurata. */
+    private double serviceTimeNanos;
+
+    private final Map<String, LongAdder> rejected = new LinkedHashMap<>();
+    private volatile Timer queueWait;
+
+    public AdmissionControl(OllamaBackendPool pool,
+                            @Value("${ai.chat.admission.enabled:true}") boolean enabled,
+                            @Value("${ai.chat.admission.max-queue-size:200}") int maxQueueSize,
+                            @Value("${ai.chat.admission.max-queue-wait:30s}") Duration maxQueueWait) {
+        this.pool = pool;
+        this.enabled = enabled;
+        this.maxQueueSize = maxQueueSize;
+        this.maxQueueWait = maxQueueWait;
+        for (var priority : Priority.values()) {
+            queues.put(priority, new LinkedHashMap<>());
+        }
+        for (var reason : List.of("queue-full", "wait-estimate", "wait-timeout")) {
+            rejected.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * Rifiuta subito la richiesta se la coda è piena o l'attesa stimata supera il
+     * massimo. Va invocato prima di iniziare a rispondere (ad es. prima di aprire
+     * uno stream SSE), quando il client può ancora ricevere il 429.
+     */
+    public void checkAdmission(Priority priority) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            rejectIfOverloaded(priority);
+        }
+    }
+
+    /**
+     * Esegue {@code work} quando c'è capacità disponibile, trattenendo il permesso
+     * fino al termine (o all'annullamento) della generazione.
+     *
+     * @param subject utente per la ripartizione equa della coda
+     */
+    public <T> Flux<T> admit(Priority priority, String subject, Flux<T> work) {
+        if (!enabled) {
+            return work;
+        }
+        return Flux.usingWhen(acquire(priority, subject),
+                permit -> work,
+                permit -> Mono.fromRunnable(permit::close),
+                (permit, error) -> Mono.fromRunnable(permit::close),
+                permit -> Mono.fromRunnable(permit::close));
+    }
+
+    private Mono<Permit> acquire(Priority priority, String subject) {
+        return Mono.<Permit>create(sink -> {
+                    var waiter = new Waiter(priority, subject, sink,
+                            sink.contextView().getOrDefault(QueueListener.class, null), System.nanoTime());
+                    sink.onCancel(() -> cancel(waiter));
+                    try {
+                        synchronized (this) {
+                            rejectIfOverloaded(priority);
+                            enqueue(waiter);
+                        }
+                    } catch (AdmissionRejectedException e) {
+                        sink.error(e);
+                        return;
+                    }
+                    dispatch();
+                    notifyQueued(List.of(waiter));
+                })
+                // permesso concesso mentre il client si disconnetteva: va restituito
+                .doOnDiscard(Permit.class, Permit::close);
+    }
+
+    /**
+     * Aggiorna chi è in coda, scarta le richieste che hanno atteso troppo e
+     * ammette nuove richieste se la capacità del pool è cresciuta.
+     */
+    @Scheduled(fixedDelayString = "${ai.chat.admission.status-interval:1s}")
+    public void tick() {
+        if (!enabled) {
+            return;
+        }
+        var expired = new ArrayList<Waiter>();
+        var waiting = new ArrayList<Waiter>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (var byUser : queues.values()) {
+                for (var userQueue : byUser.values()) {
+                    for (var waiter : userQueue) {
+                        (now - waiter.enqueuedAt > maxQueueWait.toNanos() ? expired : waiting).add(waiter);
+                    }
+                }
+            }
+            expired.forEach(this::remove);
+        }
+        for (var waiter : expired) {
+            rejected.get("wait-timeout").increment();
+            waiter.sink.error(new AdmissionRejectedException(
+                    "Tempo massimo di attesa in coda superato", estimatedWait(queued)));
+        }
+        dispatch();
+        notifyQueued(waiting);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (var priority : Priority.values()) {
+            Gauge.builder("ai.chat.admission.queue.size", this, admission -> admission.queued(priority))
+                    .tag("priority", priority.name().toLowerCase())
+                    .register(registry);
+        }
+        Gauge.builder("ai.chat.admission.in-flight", this, AdmissionControl::inFlight).register(registry);
+        Gauge.builder("ai.chat.admission.capacity", pool, OllamaBackendPool::capacity).register(registry);
+        rejected.forEach((reason, counter) -> FunctionCounter.builder("ai.chat.admission.rejected", counter, LongAdder::sum)
+                .tag("reason", reason)
+                .register(registry));
+        queueWait = Timer.builder("ai.chat.admission.queue.wait").register(registry);
+    }
+
+    private synchronized int queued(Priority priority) {
+        return queuedByPriority[priority.ordinal()];
+    }
+
+    private synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private int capacity() {
+        // senza nodi disponibili si lascia passare una richiesta, che riceverà il 503 dal pool
+        return Math.max(1, pool.capacity());
+    }
+
+    private void rejectIfOverloaded(Priority priority) {
+        if (queued == 0 && inFlight < capacity()) {
+            return;
+        }
+        if (queued >= maxQueueSize) {
+            rejected.get("queue-full").increment();
+            throw new AdmissionRejectedException("Troppe richieste in coda", estimatedWait(queued));
+        }
+        // posizione di una nuova richiesta: dietro a tutte quelle di priorità uguale o maggiore
+        int ahead = 0;
+        for (int p = 0; p <= priority.ordinal(); p++) {
+            ahead += queuedByPriority[p];
+        }
+        var expected = estimatedWait(ahead + 1);
+        if (expected.compareTo(maxQueueWait) > 0) {
+            rejected.get("wait-estimate").increment();
+            throw new AdmissionRejectedException("Attesa stimata troppo lunga", expected);
+        }
+    }
+
+    private Duration estimatedWait(int position) {
+        if (serviceTimeNanos == 0) {
+            return Duration.ZERO;
+        }
+        long rounds = (position + capacity() - 1) / capacity();
+        return Duration.ofNanos((long) (rounds * serviceTimeNanos));
+    }
+
+    private void enqueue(Waiter waiter) {
+        waiter.sequence = sequence++;
+        queues.get(waiter.priority).computeIfAbsent(waiter.subject, s -> new ArrayDeque<>()).add(waiter);
+        queuedByPriority[waiter.priority.ordinal()]++;
+        queued++;
+    }
+
+    private void remove(Waiter waiter) {
+        var byUser = queues.get(waiter.priority);
+        var userQueue = byUser.get(waiter.subject);
+        if (userQueue != null && userQueue.remove(waiter)) {
+            if (userQueue.isEmpty()) {
+                byUser.remove(waiter.subject);
+            }
+            queuedByPriority[waiter.priority.ordinal()]--;
+            queued--;
+        }
+    }
+
+    /**
+     * Prossima richiesta da servire: la prima priorità non vuota e, al suo interno,
+     * l'utente di turno; l'utente torna in fondo al giro se ha altre richieste.
+     */
+    private Waiter poll() {
+        for (var byUser : queues.values()) {
+            var iterator = byUser.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                continue;
+            }
+            var entry = iterator.next();
+            iterator.remove();
+            var waiter = entry.getValue().poll();
+            if (!entry.getValue().isEmpty()) {
+                byUser.put(entry.getKey(), entry.getValue());
+            }
+            queuedByPriority[waiter.priority.ordinal()]--;
+            queued--;
+            return waiter;
+        }
+        return null;
+    }
+
+    private void dispatch() {
+        var admitted = new ArrayList<Waiter>();
+        synchronized (this) {
+            int capacity = capacity();
+            while (inFlight < capacity) {
+                var waiter = poll();
+                if (waiter == null) {
+                    break;
+                }
+                inFlight++;
+                admitted.add(waiter);
+            }
+        }
+        long now = System.nanoTime();
+        for (var waiter : admitted) {
+            var timer = queueWait;
+            if (timer != null) {
+                timer.record(now - waiter.enqueuedAt, TimeUnit.NANOSECONDS);
+            }
+            waiter.sink.success(new Permit(now));
+        }
+    }
+
+    private synchronized void cancel(Waiter waiter) {
+        remove(waiter);
+    }
+
+    private void release(long heldNanos) {
+        synchronized (this) {
+            inFlight--;
+            serviceTimeNanos = serviceTimeNanos == 0 ? heldNanos : serviceTimeNanos + 0.1 * (heldNanos - serviceTimeNanos);
+        }
+        dispatch();
+    }
+
+    private void notifyQueued(List<Waiter> candidates) {
+        var updates = new ArrayList<Map.Entry<Waiter, QueueStatus>>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            var positions = positions();
+            for (var waiter : candidates) {
+                var position = positions.get(waiter);
+                if (position != null && waiter.listener != null) {
+                    updates.add(Map.entry(waiter, new QueueStatus(position, queued,
+                            Duration.ofNanos(now - waiter.enqueuedAt))));
+                }
+            }
+        }
+        updates.forEach(update -> update.getKey().listener.onQueued(update.getValue()));
+    }
+
+    /**
+     * Posizione di ogni richiesta in coda, approssimata in ordine di priorità e
+     * di arrivo (il turno tra utenti può anticipare alcune richieste).
+     */
+    private Map<Waiter, Integer> positions() {
+        var positions = new IdentityHashMap<Waiter, Integer>();
+        int offset = 0;
+        for (var byUser : queues.values()) {
+            var waiters = byUser.values().stream()
+                    .flatMap(ArrayDeque::stream)
+                    .sorted(Comparator.comparingLong(waiter -> waiter.sequence))
+                    .toList();
+            for (int i = 0; i < waiters.size(); i++) {
+                positions.put(waiters.get(i), offset + i + 1);
+            }
+            offset += waiters.size();
+        }
+        return positions;
+    }
+
+    private static final class Waiter {
+        private final Priority priority;
+        private final String subject;
+        private final MonoSink<Permit> sink;
+        private final QueueListener listener;
+        private final long enqueuedAt;
+        private long sequence;
+
+        Waiter(Priority priority, String subject, MonoSink<Permit> sink, QueueListener listener, long enqueuedAt) {
+            this.priority = priority;
+            this.subject = subject;
+            this.sink = sink;
+            this.listener = listener;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Permesso di generazione; restituirlo più volte non ha effetto.
+     */
+    private final class Permit {
+        private final long grantedAt;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(long grantedAt) {
+            this.grantedAt = grantedAt;
+        }
+
+        void close() {
+            if (released.compareAndSet(false, true)) {
+                release(System.nanoTime() - grantedAt);
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.common.KeyValue;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import io.micrometer.observation.contextpropagation.ObservationThreadLocalAccessor;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.servlet.HandlerMapping;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Metriche e tracing delle generazioni e degli stream SSE.
+ * <p>
+ * Per ogni generazione del modello (esclusi gli hit della cache) registra, per
+ * modello ed endpoint: tempo al primo token, latenza tra token (istogramma),
+ * durata complessiva, token di prompt e di risposta e token/s. La generazione
+ * è avvolta in un'osservazione {@code ai.chat.generation} che, con il tracing
+ * attivo, diventa lo span padre delle chiamate al modello e ai tool.
+ * <p>
+ * Le durate riportate da Ollama separano il caricamento del modello, la
+ * valutazione del prompt e la generazione: un tempo di valutazione del prompt
+ * basso rispetto ai token di prompt indica il riuso della cache del prefisso.
+ * <p>
+ * Le generazioni interrotte prima della fine (client disconnesso, limite di
+ * durata o di token) sono contate per motivo in {@code ai.chat.generations.stopped};
+ * per quelle annullate {@code ai.chat.gpu.reclaimed} stima i secondi di
+ * generazione risparmiati, come differenza tra la durata media delle generazioni
+ * complete dello stesso modello e il tempo già trascorso.
+ */
+@Component
+public class ChatMetrics {
+
+    private static final String METADATA_EVAL_COUNT = "eval-count";
+    private static final String METADATA_EVAL_DURATION = "eval-duration";
+    private static final String METADATA_PROMPT_EVAL_DURATION = "prompt-eval-duration";
+    private static final String METADATA_LOAD_DURATION = "load-duration";
+    private static final String FINISH_REASON_LENGTH = "length";
+    /**
+     * Peso dell'ultima generazione completa nella media mobile esponenziale delle durate.
+     */
+    private static final double DURATION_EWMA_ALPHA = 0.125;
+
+    private final MeterRegistry registry;
+    private final ObservationRegistry observationRegistry;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final Counter streamTimeouts;
+    private final Counter streamDisconnects;
+    // durata media (ns) delle generazioni complete, per modello
+    private final Map<String, Double> expectedDurations = new ConcurrentHashMap<>();
+    // meter registrati una sola volta per modello ed endpoint: onResponse gira per ogni token
+    private final Map<MeterKey, GenerationMeters> meters = new ConcurrentHashMap<>();
+
+    public ChatMetrics(MeterRegistry registry, ObjectProvider<ObservationRegistry> observationRegistry) {
+        this.registry = registry;
+        this.observationRegistry = observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP);
+        Gauge.builder("ai.chat.sse.active", activeStreams, AtomicInteger::get)
+                .description("Stream SSE e NDJSON aperti")
+                .register(registry);
+        this.streamTimeouts = Counter.builder("ai.chat.sse.timeouts")
+                .description("Stream SSE e NDJSON chiusi per timeout")
+                .register(registry);
+        this.streamDisconnects = Counter.builder("ai.chat.sse.disconnects")
+                .description("Stream SSE e NDJSON interrotti dal client")
+                .register(registry);
+    }
+
+    /**
+     * Endpoint della richiesta HTTP corrente (pattern del mapping, a bassa
+     * cardinalità), {@code internal} fuori da una richiesta. Va invocato dal
+     * thread della richiesta.
+     */
+    public static String currentEndpoint() {
+        var attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes != null) {
+            var pattern = attributes.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE,
+                    RequestAttributes.SCOPE_REQUEST);
+            if (pattern != null) {
+                return pattern.toString();
+            }
+        }
+        return "internal";
+    }
+
+    /**
+     * Strumenta lo stream delle risposte di una generazione.
+     */
+    public Flux<ChatResponse> generation(Flux<ChatResponse> responses, String model, String endpoint) {
+        return generation(responses, model, endpoint, () -> null);
+    }
+
+    /**
+     * Strumenta lo stream delle risposte di una generazione; {@code stopReason}
+     * indica il motivo di un eventuale annullamento ({@code null} se deciso dal
+     * client).
+     */
+    public Flux<ChatResponse> generation(Flux<ChatResponse> responses, String model, String endpoint,
+                                         Supplier<String> stopReason) {
+        return Flux.defer(() -> {
+            var observation = Observation.createNotStarted("ai.chat.generation", observationRegistry)
+                    .lowCardinalityKeyValue(KeyValue.of("model", model))
+                    .lowCardinalityKeyValue(KeyValue.of("endpoint", endpoint))
+                    .start();
+            var state = new GenerationState(System.nanoTime());
+            var generationMeters = meters(model, endpoint);
+            return responses
+                    .doOnNext(response -> onResponse(state, response, generationMeters))
+                    .doOnError(observation::error)
+                    .doFinally(signal -> {
+                        onFinish(state, signal, generationMeters, model, stopReason);
+                        observation.stop();
+                    })
+                    .contextWrite(ctx -> ctx.put(ObservationThreadLocalAccessor.KEY, observation));
+        });
+    }
+
+    /**
+     * Strumenta uno stream SSE: stream aperti e interruzioni da parte del client.
+     */
+    public <T> Flux<T> sseStream(Flux<T> events) {
+        return events
+                .doOnSubscribe(subscription -> activeStreams.incrementAndGet())
+                .doFinally(signal -> {
+                    activeStreams.decrementAndGet();
+                    if (signal == SignalType.CANCEL) {
+                        streamDisconnects.increment();
+                    }
+                });
+    }
+
+    public void sseTimeout() {
+        streamTimeouts.increment();
+    }
+
+    private GenerationMeters meters(String model, String endpoint) {
+        return meters.computeIfAbsent(new MeterKey(model, endpoint), key -> new GenerationMeters(registry, model, endpoint));
+    }
+
+    private void onResponse(GenerationState state, ChatResponse response, GenerationMeters generationMeters) {
+        state.last = response;
+        var output = response.getResult() != null ? response.getResult().getOutput() : null;
+        if (output == null || output.getText() == null || output.getText().isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (state.lastTokenAt == 0) {
+            generationMeters.ttft.record(now - state.startedAt, TimeUnit.NANOSECONDS);
+        } else {
+            generationMeters.interToken.record(now - state.lastTokenAt, TimeUnit.NANOSECONDS);
+        }
+        state.lastTokenAt = now;
+    }
+
+    private void onFinish(GenerationState state, SignalType signal, GenerationMeters generationMeters, String model,
+                          Supplier<String> stopReason) {
+        long elapsed = System.nanoTime() - state.startedAt;
+        (switch (signal) {
+            case ON_COMPLETE -> generationMeters.succeeded;
+            case CANCEL -> generationMeters.cancelled;
+            default -> generationMeters.failed;
+        }).record(elapsed, TimeUnit.NANOSECONDS);
+
+        if (signal == SignalType.CANCEL) {
+            var reason = stopReason.get();
+            onStopped(reason != null ? reason : StopReason.CLIENT, elapsed, model, generationMeters);
+        }
+        var metadata = state.last != null ? state.last.getMetadata() : null;
+        if (signal != SignalType.ON_COMPLETE || metadata == null) {
+            return;
+        }
+        var result = state.last.getResult();
+        if (result != null && FINISH_REASON_LENGTH.equals(result.getMetadata().getFinishReason())) {
+            generationMeters.stopped(StopReason.MAX_TOKENS).increment();
+        } else {
+            expectedDurations.merge(model, (double) elapsed,
+                    (mean, duration) -> mean + DURATION_EWMA_ALPHA * (duration - mean));
+        }
+        var usage = metadata.getUsage();
+        if (usage != null) {
+            generationMeters.promptTokens.record(usage.getPromptTokens() != null ? usage.getPromptTokens() : 0);
+            generationMeters.completionTokens.record(usage.getCompletionTokens() != null ? usage.getCompletionTokens() : 0);
+        }
+        Integer evalCount = metadata.get(METADATA_EVAL_COUNT);
+        Duration evalDuration = metadata.get(METADATA_EVAL_DURATION);
+        Duration promptEvalDuration = metadata.get(METADATA_PROMPT_EVAL_DURATION);
+        Duration loadDuration = metadata.get(METADATA_LOAD_DURATION);
+        record(generationMeters.load, loadDuration);
+        record(generationMeters.promptEval, promptEvalDuration);
+        record(generationMeters.eval, evalDuration);
+        if (evalCount != null && evalDuration != null && evalDuration.toNanos() > 0) {
+            generationMeters.tokensPerSecond.record(evalCount / (evalDuration.toNanos() / 1e9));
+        }
+    }
+
+    private void onStopped(String reason, long elapsed, String model, GenerationMeters generationMeters) {
+        generationMeters.stopped(reason).increment();
+        var expected = expectedDurations.get(model);
+        if (expected != null && expected > elapsed) {
+            generationMeters.reclaimed(reason).increment((expected - elapsed) / 1e9);
+        }
+    }
+
+    private static void record(Timer timer, Duration duration) {
+        if (duration != null) {
+            timer.record(duration);
+        }
+    }
+
+    /**
+     * Motivi di interruzione di una generazione, valori del tag {@code reason}.
+     */
+    public static final class StopReason {
+        public static final String CLIENT = "client";
+        public static final String MAX_DURATION = "max_duration";
+        public static final String MAX_TOKENS = "max_tokens";
+        /** Primo stadio della modalità a due stadi, fermato quando inizia a rispondere. */
+        public static final String HANDOFF = "handoff";
+
+        private StopReason() {
+        }
+    }
+
+    private record MeterKey(String model, String endpoint) {
+    }
+
+    /**
+     * Meter di una coppia modello/endpoint; quelli con il motivo di interruzione
+     * sono creati alla prima occorrenza del motivo.
+     */
+    private static final class GenerationMeters {
+        private final MeterRegistry registry;
+        private final String model;
+        private final String endpoint;
+        private final Timer ttft;
+        private final Timer interToken;
+        private final Timer succeeded;
+        private final Timer cancelled;
+        private final Timer failed;
+        private final Timer load;
+        private final Timer promptEval;
+        private final Timer eval;
+        private final DistributionSummary promptTokens;
+        private final DistributionSummary completionTokens;
+        private final DistributionSummary tokensPerSecond;
+        private final Map<String, Counter> stopped = new ConcurrentHashMap<>();
+        private final Map<String, Counter> reclaimed = new ConcurrentHashMap<>();
+
+        GenerationMeters(MeterRegistry registry, String model, String endpoint) {
+            this.registry = registry;
+            this.model = model;
+            this.endpoint = endpoint;
+            this.ttft = timer("ai.chat.ttft", "Tempo al primo token");
+            this.interToken = timer("ai.chat.inter-token.latency", "Latenza tra token consecutivi");
+            this.succeeded = duration("success");
+            this.cancelled = duration("cancelled");
+            this.failed = duration("error");
+            this.load = timer("ai.chat.ollama.load", "Caricamento del modello");
+            this.promptEval = timer("ai.chat.ollama.prompt-eval", "Valutazione del prompt");
+            this.eval = timer("ai.chat.ollama.eval", "Generazione dei token");
+            this.promptTokens = tokens("prompt");
+            this.completionTokens = tokens("completion");
+            this.tokensPerSecond = DistributionSummary.builder("ai.chat.tokens-per-second")
+                    .description("Velocità di generazione misurata da Ollama")
+                    .baseUnit("tokens/s")
+                    .tags("model", model, "endpoint", endpoint)
+                    .register(registry);
+        }
+
+        Counter stopped(String reason) {
+            return stopped.computeIfAbsent(reason, r -> Counter.builder("ai.chat.generations.stopped")
+                    .description("Generazioni interrotte prima della fine, per motivo")
+                    .tags("model", model, "endpoint", endpoint, "reason", r)
+                    .register(registry));
+        }
+
+        Counter reclaimed(String reason) {
+            return reclaimed.computeIfAbsent(reason, r -> Counter.builder("ai.chat.gpu.reclaimed")
+                    .description("Stima dei secondi di generazione risparmiati dalle generazioni annullate")
+                    .baseUnit("seconds")
+                    .tags("model", model, "endpoint", endpoint, "reason", r)
+                    .register(registry));
+        }
+
+        private Timer timer(String name, String description) {
+            return Timer.builder(name)
+                    .description(description)
+                    .tags("model", model, "endpoint", endpoint)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+
+        private Timer duration(String outcome) {
+            return Timer.builder("ai.chat.generation.duration")
+                    .description("Durata complessiva della generazione")
+                    .tags("model", model, "endpoint", endpoint, "outcome", outcome)
+                    .register(registry);
+        }
+
+        private DistributionSummary tokens(String type) {
+            return DistributionSummary.builder("ai.chat.tokens")
+                    .description("Token per generazione")
+                    .baseUnit("tokens")
+                    .tags("type", type, "model", model, "endpoint", endpoint)
+                    .register(registry);
+        }
+    }
+
+    private static final class GenerationState {
+        private final long startedAt;
+        private long lastTokenAt;
+        private ChatResponse last;
+
+        GenerationState(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+}
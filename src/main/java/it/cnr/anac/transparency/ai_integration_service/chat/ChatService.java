@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import it.cnr.anac.transparency.ai_integration_service.cache.ResponseCache;
+import it.cnr.anac.transparency.ai_integration_service.config.McpSyncClientExchangeFilterFunction;
+import it.cnr.anac.transparency.ai_integration_service.conversation.HistoryCompactor;
+import it.cnr.anac.transparency.ai_integration_service.tools.ParallelToolCallingManager;
+import it.cnr.anac.transparency.ai_integration_service.usage.QuotaExceededException;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageAccounting;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.ollama.api.OllamaChatOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Pipeline di generazione delle risposte usata dagli endpoint di chat: dato
+ * l'elenco dei messaggi produce lo stream dei token del modello (o la risposta
+ * completa), passando per la cache delle risposte e condividendo le generazioni
+ * identiche già in corso. Prima della generazione lo storico passa per
+ * {@link HistoryCompactor}; cache e generazioni condivise usano invece i messaggi
+ * originali, così una risposta in cache non richiede la compattazione.
+ * <p>
+ * Ogni classe di endpoint ({@code stream}, {@code chat}, {@code batch}) ha un
+ * limite lato server sui token generati ({@code ai.chat.limits.<classe>.max-tokens},
+ * passato a Ollama come {@code num_predict}) e sulla durata della generazione
+ * ({@code ai.chat.limits.<classe>.max-duration}); {@code 0} disabilita il limite.
+ * Allo scadere della durata la generazione è annullata come alla disconnessione
+ * del client: la connessione verso Ollama viene chiusa, le chiamate ai tool in
+ * corso sono interrotte e la risposta termina con il testo prodotto fino a quel
+ * momento. Le risposte troncate non sono salvate in cache.
+ * <p>
+ * Prima del controllo di ammissione si verificano le quote dell'utente (vedi
+ * {@link UsageAccounting}); il limite di richieste al minuto non si applica ai
+ * job batch, già limitati da {@code ai.batch.concurrency}. Ogni generazione è
+ * addebitata all'utente e al client che l'hanno avviata.
+ * <p>
+ * Il modello che genera la risposta è scelto da {@link ModelRouter}. Le richieste
+ * assegnate al modello piccolo ripiegano sul grande se il piccolo fallisce prima
+ * del primo token o non produce testo. Nella modalità a due stadi il modello
+ * piccolo esegue il tool calling e viene fermato appena inizia a scrivere la
+ * risposta: il modello grande riceve lo storico con le chiamate e i risultati
+ * dei tool e scrive la risposta finale (se il piccolo non ha chiamato tool,
+ * risponde il grande a partire dai messaggi originali). Ogni stadio è compattato,
+ * misurato e addebitato per il proprio modello; al client arrivano solo i token
+ * e l'utilizzo della risposta finale.
+ * <p>
+ * I metodi vanno invocati dal thread della richiesta HTTP: l'autenticazione
+ * corrente viene catturata subito e propagata alle chiamate dei tool MCP.
+ */
+@Slf4j
+@Service
+public class ChatService {
+
+    /**
+     * Riceve i token consumati da una generazione del modello, al suo termine;
+     * va inserito nel contesto Reactor con chiave {@code UsageListener.class}.
+     * Non è invocato per le risposte servite dalla cache né per i client che si
+     * agganciano a una generazione identica già in corso.
+     */
+    @FunctionalInterface
+    public interface UsageListener {
+        void onUsage(Usage usage);
+    }
+
+    private final ModelRouter modelRouter;
+    private final ResponseCache responseCache;
+    private final InFlightGenerations inFlightGenerations;
+    private final HistoryCompactor historyCompactor;
+    private final AdmissionControl admissionControl;
+    private final ChatMetrics chatMetrics;
+    private final UsageAccounting usageAccounting;
+    private final String modelFingerprint;
+    private final Map<EndpointClass, GenerationLimits> limits = new EnumMap<>(EndpointClass.class);
+
+    public ChatService(ModelRouter modelRouter, ResponseCache responseCache, InFlightGenerations inFlightGenerations,
+                       HistoryCompactor historyCompactor,
+                       AdmissionControl admissionControl,
+                       ChatMetrics chatMetrics,
+                       UsageAccounting usageAccounting,
+                       Environment environment,
+                       @Value("${spring.ai.ollama.chat.options.temperature:}") String temperature) {
+        this.modelRouter = modelRouter;
+        this.responseCache = responseCache;
+        this.inFlightGenerations = inFlightGenerations;
+        this.historyCompactor = historyCompactor;
+        this.admissionControl = admissionControl;
+        this.chatMetrics = chatMetrics;
+        this.usageAccounting = usageAccounting;
+        this.modelFingerprint = modelRouter.fingerprint() + "|temperature=" + temperature;
+        for (var endpointClass : EndpointClass.values()) {
+            var prefix = "ai.chat.limits." + endpointClass.name().toLowerCase() + ".";
+            limits.put(endpointClass, new GenerationLimits(
+                    environment.getProperty(prefix + "max-tokens", Integer.class, 0),
+                    environment.getProperty(prefix + "max-duration", Duration.class, Duration.ZERO),
+                    endpointClass != EndpointClass.BATCH));
+        }
+    }
+
+    /**
+     * Stream dei token della risposta. In caso di hit la risposta in cache viene
+     * restituita come unico chunk; altrimenti la generazione passa per il
+     * controllo di ammissione con la priorità indicata.
+     *
+     * @param useCache {@code false} per ignorare la cache (es. header {@code Cache-Control: no-cache})
+     * @throws AdmissionRejectedException se la coda di generazione è satura
+     * @throws QuotaExceededException      se l'utente ha superato i suoi limiti
+     */
+    public Flux<String> stream(List<Message> messages, boolean useCache, AdmissionControl.Priority priority) {
+        return stream(messages, useCache, priority, usageAccounting.currentAccount(), ChatMetrics.currentEndpoint(),
+                EndpointClass.STREAM);
+    }
+
+    /**
+     * Risposta completa del modello per conto di {@code subject}, fuori da una
+     * richiesta HTTP (job batch): la generazione è servita con priorità batch,
+     * senza tool MCP (non c'è un token dell'utente con cui invocarli, e quello del
+     * servizio vedrebbe dati che l'utente potrebbe non vedere) e senza passare per
+     * la cache delle risposte, così risposte senza tool non sono servite alle
+     * richieste interattive. Il rifiuto del controllo di ammissione o delle quote
+     * arriva come errore del {@link Mono}.
+     */
+    public Mono<String> callAs(List<Message> messages, String subject) {
+        return Mono.defer(() -> stream(messages, false, AdmissionControl.Priority.BATCH,
+                        usageAccounting.batchAccount(subject), "batch", EndpointClass.BATCH)
+                .collect(Collectors.joining()));
+    }
+
+    private Flux<String> stream(List<Message> messages, boolean useCache, AdmissionControl.Priority priority,
+                                UsageAccounting.Account account, String endpoint, EndpointClass endpointClass) {
+        usageAccounting.checkQuota(account, endpointClass != EndpointClass.BATCH);
+        admissionControl.checkAdmission(priority);
+        var authentication = McpSyncClientExchangeFilterFunction.authenticationContext();
+        var user = account.subject();
+        var generationLimits = limits.get(endpointClass);
+        return responseCache.lookup(messages, user, modelFingerprint, useCache)
+                .flatMapMany(lookup -> {
+                    if (lookup.hit()) {
+                        return Flux.just(lookup.response());
+                    }
+                    Supplier<Flux<String>> generation = () -> {
+                        var response = new StringBuilder();
+                        var truncated = new AtomicBoolean();
+                        var route = modelRouter.route(messages, generationLimits.tools());
+                        var tokens = modelRouter.observe(route,
+                                routed(messages, route, account, endpoint, generationLimits, truncated));
+                        return admissionControl.admit(priority, user, tokens.contextWrite(authentication))
+                                .doOnNext(response::append)
+                                .doOnComplete(() -> {
+                                    if (!truncated.get()) {
+                                        responseCache.put(lookup, response.toString());
+                                    }
+                                });
+                    };
+                    if (!lookup.cacheable()) {
+                        // chi ha escluso la cache vuole una generazione propria
+                        return generation.get();
+                    }
+                    // Richieste identiche concorrenti dello stesso utente (con gli stessi limiti)
+                    // condividono la stessa generazione
+                    return inFlightGenerations.join(user, endpointClass + "|" + lookup.key(), generation);
+                })
+                .contextWrite(authentication);
+    }
+
+    /**
+     * Risposta completa del modello, ottenuta aggregando lo stream dei token
+     * invece di bloccare un thread su {@code call()}. Come ogni richiesta HTTP è
+     * servita con priorità interattiva: la priorità batch è riservata ai job.
+     */
+    public Mono<String> call(List<Message> messages, boolean useCache) {
+        return stream(messages, useCache, AdmissionControl.Priority.INTERACTIVE, usageAccounting.currentAccount(),
+                ChatMetrics.currentEndpoint(), EndpointClass.CHAT).collect(Collectors.joining());
+    }
+
+    /**
+     * Generazione della risposta secondo la route scelta per la richiesta.
+     */
+    private Flux<String> routed(List<Message> messages, ModelRouter.Route route, UsageAccounting.Account account,
+                                String endpoint, GenerationLimits generationLimits, AtomicBoolean truncated) {
+        if (route.isTwoStage()) {
+            return twoStage(messages, route, account, endpoint, generationLimits, truncated);
+        }
+        var generation = compactAndGenerate(messages, route.model(), account, endpoint, generationLimits, truncated);
+        if (route.fallbackModel() == null) {
+            return generation;
+        }
+        var started = new AtomicBoolean();
+        return generation
+                .doOnNext(text -> started.set(true))
+                .onErrorResume(e -> !started.get() && !(e instanceof CancellationException), e -> {
+                    log.warn("Model {} failed before answering, falling back to {}: {}",
+                            route.model(), route.fallbackModel(), e.getMessage());
+                    modelRouter.fallback(route, ModelRouter.FallbackReason.ERROR);
+                    return compactAndGenerate(messages, route.fallbackModel(), account, endpoint, generationLimits,
+                            truncated);
+                })
+                .switchIfEmpty(Flux.defer(() -> {
+                    if (truncated.get()) {
+                        // fermata dal limite di durata prima del primo token: nessun ripiego
+                        return Flux.empty();
+                    }
+                    modelRouter.fallback(route, ModelRouter.FallbackReason.EMPTY);
+                    return compactAndGenerate(messages, route.fallbackModel(), account, endpoint, generationLimits,
+                            truncated);
+                }));
+    }
+
+    /**
+     * Modalità a due stadi: il modello {@code toolModel} esegue i turni di tool
+     * calling e viene fermato al primo token di testo, poi {@code model} scrive la
+     * risposta a partire dallo storico arricchito con chiamate e risultati dei tool.
+     * Il primo stadio non notifica l'utilizzo al client e non tronca la risposta.
+     */
+    private Flux<String> twoStage(List<Message> messages, ModelRouter.Route route, UsageAccounting.Account account,
+                                  String endpoint, GenerationLimits generationLimits, AtomicBoolean truncated) {
+        var toolRounds = Collections.synchronizedList(new ArrayList<Message>());
+        ParallelToolCallingManager.ToolRoundListener roundListener = (toolCalls, toolResponses) -> {
+            toolRounds.add(toolCalls);
+            toolRounds.add(toolResponses);
+        };
+        var orchestration = historyCompactor.compact(messages, route.toolModel(), account)
+                .flatMapMany(compacted -> generate(compacted, route.toolModel(), account, endpoint,
+                        generationLimits, new AtomicBoolean(), ChatService::hasText))
+                .contextWrite(context -> context.delete(UsageListener.class)
+                        .put(ParallelToolCallingManager.ToolRoundListener.class, roundListener))
+                .then(Mono.just(true))
+                .onErrorResume(e -> !(e instanceof CancellationException), e -> {
+                    log.warn("Tool orchestration with model {} failed, {} answers on its own: {}",
+                            route.toolModel(), route.model(), e.getMessage());
+                    modelRouter.fallback(route, ModelRouter.FallbackReason.ERROR);
+                    return Mono.just(false);
+                });
+        return orchestration.flatMapMany(completed -> {
+            if (completed && toolRounds.isEmpty()) {
+                modelRouter.fallback(route, ModelRouter.FallbackReason.NO_TOOLS);
+            }
+            var answerMessages = new ArrayList<>(messages);
+            synchronized (toolRounds) {
+                answerMessages.addAll(toolRounds);
+            }
+            return compactAndGenerate(answerMessages, route.model(), account, endpoint, generationLimits, truncated);
+        });
+    }
+
+    private Flux<String> compactAndGenerate(List<Message> messages, String model, UsageAccounting.Account account,
+                                            String endpoint, GenerationLimits generationLimits,
+                                            AtomicBoolean truncated) {
+        return historyCompactor.compact(messages, model, account)
+                .flatMapMany(compacted -> generate(compacted, model, account, endpoint, generationLimits, truncated,
+                        null));
+    }
+
+    /**
+     * Generazione del modello entro i limiti indicati. Il contesto Reactor della
+     * sottoscrizione arriva al {@link ParallelToolCallingManager} come voce
+     * {@link ParallelToolCallingManager#GENERATION_CONTEXT} del contesto dei tool,
+     * insieme al segnale {@link ParallelToolCallingManager.Cancellation} che
+     * l'annullamento della sottoscrizione (client disconnesso o limite di durata)
+     * emette per interrompere i tool in corso;
+     * {@code truncated} diventa {@code true} se la risposta è stata troncata da un limite.
+     * Al termine, in ogni caso, la generazione è addebitata ad {@code account}.
+     * Se {@code handoff} non è {@code null} la generazione si ferma, senza
+     * emetterla, alla prima risposta che lo soddisfa.
+     */
+    private Flux<String> generate(List<Message> messages, String model, UsageAccounting.Account account,
+                                  String endpoint, GenerationLimits generationLimits, AtomicBoolean truncated,
+                                  Predicate<ChatResponse> handoff) {
+        return Flux.deferContextual(ctx -> {
+            UsageListener usageListener = ctx.getOrDefault(UsageListener.class, null);
+            long startedAt = System.nanoTime();
+            var last = new AtomicReference<ChatResponse>();
+            var stopReason = new AtomicReference<String>();
+            var cancellation = Sinks.<Boolean>one();
+            var generationContext = Context.of(ctx).put(ParallelToolCallingManager.Cancellation.class,
+                    new ParallelToolCallingManager.Cancellation(cancellation.asMono()));
+            var request = modelRouter.client(model, generationLimits.tools())
+                    .prompt()
+                    .messages(messages)
+                    .toolContext(Map.of(ParallelToolCallingManager.GENERATION_CONTEXT, generationContext));
+            if (generationLimits.maxTokens() > 0) {
+                // il modello va indicato esplicitamente: le opzioni della richiesta sostituiscono quelle predefinite
+                request = request.options(OllamaChatOptions.builder()
+                        .model(StringUtils.hasText(model) ? model : null)
+                        .numPredict(generationLimits.maxTokens())
+                        .build());
+            }
+            var responses = request.stream().chatResponse();
+            var deadline = generationLimits.maxDuration().isPositive()
+                    ? Mono.delay(generationLimits.maxDuration()).doOnNext(tick -> {
+                        stopReason.set(ChatMetrics.StopReason.MAX_DURATION);
+                        truncated.set(true);
+                    })
+                    : Mono.never();
+            return chatMetrics.generation(responses, model, endpoint, stopReason::get)
+                    .doOnCancel(() -> cancellation.tryEmitValue(true))
+                    .takeUntilOther(deadline)
+                    .takeWhile(response -> {
+                        if (handoff != null && handoff.test(response)) {
+                            stopReason.set(ChatMetrics.StopReason.HANDOFF);
+                            return false;
+                        }
+                        return true;
+                    })
+                    .doOnNext(last::set)
+                    .doOnComplete(() -> {
+                        if (isTruncatedByLength(last.get())) {
+                            truncated.set(true);
+                        }
+                        notifyUsage(usageListener, last.get());
+                    })
+                    .doFinally(signal -> usageAccounting.record(account, last.get(),
+                            Duration.ofNanos(System.nanoTime() - startedAt)))
+                    .mapNotNull(response -> response.getResult() != null ? response.getResult().getOutput().getText() : null)
+                    .filter(text -> !text.isEmpty());
+        });
+    }
+
+    private static boolean hasText(ChatResponse response) {
+        return response.getResult() != null && StringUtils.hasText(response.getResult().getOutput().getText());
+    }
+
+    private static boolean isTruncatedByLength(ChatResponse response) {
+        return response != null && response.getResult() != null
+                && "length".equals(response.getResult().getMetadata().getFinishReason());
+    }
+
+    private static void notifyUsage(UsageListener listener, ChatResponse response) {
+        var usage = usage(response);
+        if (listener != null && usage != null) {
+            listener.onUsage(usage);
+        }
+    }
+
+    private static Usage usage(ChatResponse response) {
+        return response != null ? response.getMetadata().getUsage() : null;
+    }
+
+    /**
+     * Classe dell'endpoint, a cui si applicano i limiti {@code ai.chat.limits.<classe>.*}.
+     */
+    private enum EndpointClass {
+        STREAM, CHAT, BATCH
+    }
+
+    /**
+     * @param tools i tool MCP sono offerti al modello (non per i job batch)
+     */
+    private record GenerationLimits(int maxTokens, Duration maxDuration, boolean tools) {
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalescenza (single-flight) delle generazioni identiche in corso.
+ * <p>
+ * Richieste concorrenti dello stesso utente con la stessa chiave condividono
+ * un'unica generazione verso Ollama. Non si condivide mai tra utenti diversi:
+ * la generazione chiama i tool MCP con il token di chi l'ha avviata e gli è
+ * addebitata. Lo stream condiviso conserva i token già emessi, così chi si
+ * aggancia in ritardo riceve prima quelli e poi i successivi. La generazione
+ * viene annullata solo quando tutti i client collegati si sono disconnessi.
+ */
+@Component
+public class InFlightGenerations implements MeterBinder {
+
+    private final boolean enabled;
+    private final Map<String, Flux<String>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder joined = new LongAdder();
+
+    public InFlightGenerations(@Value("${ai.chat.coalescing.enabled:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Si aggancia alla generazione in corso di {@code subject} con la chiave
+     * indicata o, se non esiste, la avvia con {@code generation}.
+     */
+    public Flux<String> join(String subject, String key, Supplier<Flux<String>> generation) {
+        if (!enabled) {
+            return generation.get();
+        }
+        var subjectKey = subject + '\n' + key;
+        return Flux.defer(() -> {
+            var created = new boolean[1];
+            var shared = inFlight.computeIfAbsent(subjectKey, k -> {
+                created[0] = true;
+                return share(k, generation.get());
+            });
+            (created[0] ? started : joined).increment();
+            return shared;
+        });
+    }
+
+    private Flux<String> share(String key, Flux<String> generation) {
+        var self = new AtomicReference<Flux<String>>();
+        Flux<String> shared = generation
+                // al termine (o quando l'ultimo client si disconnette) la chiave torna libera
+                .doFinally(signal -> inFlight.remove(key, self.get()))
+                .replay()
+                .refCount();
+        self.set(shared);
+        return shared;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ai.chat.inflight.requests", started, LongAdder::sum)
+                .tag("result", "started").register(registry);
+        FunctionCounter.builder("ai.chat.inflight.requests", joined, LongAdder::sum)
+                .tag("result", "joined").register(registry);
+        Gauge.builder("ai.chat.inflight.generations", inFlight, Map::size).register(registry);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.core.env.Environment;
+import reactor.core.publisher.Flux;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Sceglie per ogni richiesta il modello che la genera, tra un modello piccolo e
+ * veloce ({@code ai.chat.routing.small-model}) e il modello grande della chat
+ * ({@code ai.chat.routing.large-model}), ciascuno con il proprio {@code ChatClient}.
+ * Le regole guardano l'ultimo messaggio dell'utente e la profondità della
+ * conversazione:
+ * <ul>
+ *     <li>se l'ultimo messaggio corrisponde a {@code ai.chat.routing.tools.pattern}
+ *     servono probabilmente i tool: con {@code ai.chat.routing.two-stage.enabled}
+ *     il modello piccolo sceglie ed esegue i tool e il grande scrive solo la
+ *     risposta finale, altrimenti risponde il modello grande;</li>
+ *     <li>i messaggi brevi ({@code ai.chat.routing.simple.max-chars}) in
+ *     conversazioni con al più {@code ai.chat.routing.simple.max-depth} turni
+ *     dell'utente vanno al modello piccolo;</li>
+ *     <li>tutto il resto va al modello grande.</li>
+ * </ul>
+ * Con il routing disabilitato ogni richiesta va al modello grande. La scelta
+ * dipende solo dai messaggi, così cache delle risposte e generazioni condivise
+ * restano valide. Ogni modello ha anche un {@code ChatClient} senza tool, per le
+ * richieste che non possono invocarli (job batch): per queste il pattern dei
+ * tool è ignorato.
+ * <p>
+ * Per ogni route sono registrati richieste, tempo al primo token e durata
+ * ({@code ai.chat.route.*}) e i ripieghi sul modello grande quando il piccolo
+ * fallisce o non produce una risposta utilizzabile ({@code ai.chat.route.fallbacks}).
+ */
+public class ModelRouter {
+
+    /**
+     * Modelli usati da una richiesta.
+     *
+     * @param name          nome della route, valore del tag {@code route}
+     * @param model         modello che scrive la risposta
+     * @param toolModel     modello che esegue i tool prima della risposta, {@code null} se è lo stesso
+     * @param fallbackModel modello su cui ripiegare se {@code model} fallisce, {@code null} se nessuno
+     */
+    public record Route(String name, String model, String toolModel, String fallbackModel) {
+
+        public boolean isTwoStage() {
+            return toolModel != null;
+        }
+    }
+
+    /**
+     * Motivi dei ripieghi sul modello grande, valori del tag {@code reason}.
+     */
+    public static final class FallbackReason {
+        /** Il modello piccolo ha fallito prima di rispondere. */
+        public static final String ERROR = "error";
+        /** Il modello piccolo ha prodotto una risposta vuota. */
+        public static final String EMPTY = "empty";
+        /** Nella modalità a due stadi il modello piccolo non ha chiamato alcun tool. */
+        public static final String NO_TOOLS = "no_tools";
+
+        private FallbackReason() {
+        }
+    }
+
+    private final boolean enabled;
+    private final Route large;
+    private final Route small;
+    private final Route twoStage;
+    private final int simpleMaxChars;
+    private final int simpleMaxDepth;
+    private final Pattern toolsPattern;
+    private final boolean twoStageEnabled;
+    private final Map<String, ChatClient> clients = new LinkedHashMap<>();
+    private final Map<String, ChatClient> toolFreeClients = new LinkedHashMap<>();
+    private final MeterRegistry registry;
+    // meter registrati una sola volta per route: observe gira per ogni generazione
+    private final Map<String, RouteMeters> meters = new ConcurrentHashMap<>();
+
+    /**
+     * @param clientFactory crea il {@code ChatClient} di un modello (vuoto = modello predefinito),
+     *                      con o senza i tool MCP
+     */
+    public ModelRouter(Environment environment, BiFunction<String, Boolean, ChatClient> clientFactory,
+                       MeterRegistry registry) {
+        this.registry = registry;
+        var largeModel = environment.getProperty("ai.chat.routing.large-model",
+                environment.getProperty("spring.ai.ollama.chat.options.model", ""));
+        var smallModel = environment.getProperty("ai.chat.routing.small-model", "");
+        this.enabled = environment.getProperty("ai.chat.routing.enabled", Boolean.class, false)
+                && !smallModel.isBlank() && !smallModel.equals(largeModel);
+        var fallback = environment.getProperty("ai.chat.routing.fallback.enabled", Boolean.class, true)
+                ? largeModel : null;
+        this.large = new Route("large", largeModel, null, null);
+        this.small = new Route("small", smallModel, null, fallback);
+        this.twoStage = new Route("two-stage", largeModel, smallModel, null);
+        this.simpleMaxChars = environment.getProperty("ai.chat.routing.simple.max-chars", Integer.class, 300);
+        this.simpleMaxDepth = environment.getProperty("ai.chat.routing.simple.max-depth", Integer.class, 6);
+        this.toolsPattern = Pattern.compile(environment.getProperty("ai.chat.routing.tools.pattern", ""));
+        boolean twoStageEnabled = environment.getProperty("ai.chat.routing.two-stage.enabled", Boolean.class, true);
+        clients.put(largeModel, clientFactory.apply(largeModel, true));
+        toolFreeClients.put(largeModel, clientFactory.apply(largeModel, false));
+        if (enabled) {
+            clients.put(smallModel, clientFactory.apply(smallModel, true));
+            toolFreeClients.put(smallModel, clientFactory.apply(smallModel, false));
+        }
+        this.twoStageEnabled = enabled && twoStageEnabled;
+    }
+
+    /**
+     * Route di una richiesta che può invocare i tool, in base ai suoi messaggi.
+     */
+    public Route route(List<Message> messages) {
+        return route(messages, true);
+    }
+
+    /**
+     * Route di una richiesta, in base ai suoi messaggi.
+     *
+     * @param tools la richiesta può invocare i tool MCP
+     */
+    public Route route(List<Message> messages, boolean tools) {
+        if (!enabled) {
+            return large;
+        }
+        String last = "";
+        int depth = 0;
+        for (var message : messages) {
+            if (message instanceof UserMessage user) {
+                depth++;
+                last = user.getText() != null ? user.getText() : "";
+            }
+        }
+        if (tools && !toolsPattern.pattern().isEmpty() && toolsPattern.matcher(last).find()) {
+            return twoStageEnabled ? twoStage : large;
+        }
+        if (last.strip().length() <= simpleMaxChars && depth <= simpleMaxDepth) {
+            return small;
+        }
+        return large;
+    }
+
+    /**
+     * {@code ChatClient} del modello indicato, con il system prompt della chat e,
+     * se {@code tools}, i tool MCP.
+     */
+    public ChatClient client(String model, boolean tools) {
+        var client = (tools ? clients : toolFreeClients).get(model);
+        if (client == null) {
+            throw new IllegalArgumentException("No chat client for model " + model);
+        }
+        return client;
+    }
+
+    /**
+     * Impronta della configurazione di routing, da includere nelle chiavi delle
+     * risposte in cache: cambiando le regole cambia il modello che risponde.
+     */
+    public String fingerprint() {
+        if (!enabled) {
+            return large.model();
+        }
+        return large.model() + "|small=" + small.model() + "|chars=" + simpleMaxChars + "|depth=" + simpleMaxDepth
+                + "|tools=" + toolsPattern.pattern() + "|two-stage=" + twoStageEnabled;
+    }
+
+    /**
+     * Strumenta lo stream dei token di una richiesta servita dalla route.
+     */
+    public <T> Flux<T> observe(Route route, Flux<T> tokens) {
+        return Flux.defer(() -> {
+            var routeMeters = meters(route);
+            routeMeters.requests.increment();
+            long startedAt = System.nanoTime();
+            var started = new AtomicBoolean();
+            return tokens
+                    .doOnNext(token -> {
+                        if (started.compareAndSet(false, true)) {
+                            routeMeters.ttft.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                        }
+                    })
+                    .doFinally(signal -> {
+                        var duration = switch (signal) {
+                            case ON_COMPLETE -> routeMeters.succeeded;
+                            case CANCEL -> routeMeters.cancelled;
+                            default -> routeMeters.failed;
+                        };
+                        duration.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                    });
+        });
+    }
+
+    /**
+     * Conta un ripiego della route sul modello grande.
+     */
+    public void fallback(Route route, String reason) {
+        meters(route).fallback(reason).increment();
+    }
+
+    private RouteMeters meters(Route route) {
+        var routeMeters = meters.get(route.name());
+        if (routeMeters == null) {
+            routeMeters = meters.computeIfAbsent(route.name(), name -> new RouteMeters(registry, name));
+        }
+        return routeMeters;
+    }
+
+    /**
+     * Meter di una route; i ripieghi sono creati alla prima occorrenza del motivo.
+     */
+    private static final class RouteMeters {
+        private final MeterRegistry registry;
+        private final String route;
+        private final Counter requests;
+        private final Timer ttft;
+        private final Timer succeeded;
+        private final Timer cancelled;
+        private final Timer failed;
+        private final Map<String, Counter> fallbacks = new ConcurrentHashMap<>();
+
+        RouteMeters(MeterRegistry registry, String route) {
+            this.registry = registry;
+            this.route = route;
+            this.requests = Counter.builder("ai.chat.route.requests")
+                    .description("Generazioni per route del modello")
+                    .tag("route", route)
+                    .register(registry);
+            this.ttft = Timer.builder("ai.chat.route.ttft")
+                    .description("Tempo al primo token per route")
+                    .tag("route", route)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.succeeded = duration("success");
+            this.cancelled = duration("cancelled");
+            this.failed = duration("error");
+        }
+
+        Counter fallback(String reason) {
+            return fallbacks.computeIfAbsent(reason, r -> Counter.builder("ai.chat.route.fallbacks")
+                    .description("Richieste ripiegate sul modello grande, per route e motivo")
+                    .tags("route", route, "reason", r)
+                    .register(registry));
+        }
+
+        private Timer duration(String outcome) {
+            return Timer.builder("ai.chat.route.duration")
+                    .description("Durata complessiva della generazione per route")
+                    .tags("route", route, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+    }
+}
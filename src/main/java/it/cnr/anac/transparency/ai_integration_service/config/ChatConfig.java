@@ -16,14 +16,19 @@
  */
 package it.cnr.anac.transparency.ai_integration_service.config;
 
-import io.modelcontextprotocol.client.McpSyncClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.cnr.anac.transparency.ai_integration_service.chat.ModelRouter;
+import it.cnr.anac.transparency.ai_integration_service.tools.InstrumentedToolCallbackProvider;
+import it.cnr.anac.transparency.ai_integration_service.tools.McpToolCatalog;
 import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.mcp.SyncMcpToolCallbackProvider;
+import org.springframework.ai.ollama.api.OllamaChatOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.util.StringUtils;
 
-import java.util.List;
+import java.util.stream.Collectors;
 
 @Configuration
 public class ChatConfig {
@@ -31,11 +36,37 @@ public class ChatConfig {
     @Value("${ai.systemPrompt}")
     String SYSTEM_PROMPT;
 
+    /**
+     * Due {@code ChatClient} per ciascun modello di {@link ModelRouter}, con lo
+     * stesso system prompt, con e senza i tool MCP: cambia solo il modello nelle
+     * opzioni predefinite.
+     */
     @Bean
-    ChatClient chatClient(ChatClient.Builder chatClientBuilder, List<McpSyncClient> mcpClients) {
-         return chatClientBuilder.defaultToolCallbacks(
-                 SyncMcpToolCallbackProvider.builder().mcpClients(mcpClients).build())
-                 .defaultSystem(SYSTEM_PROMPT)
-                 .build();
+    ModelRouter modelRouter(ChatClient.Builder chatClientBuilder, McpToolCatalog mcpToolCatalog,
+                            MeterRegistry meterRegistry, Environment environment) {
+        var builder = chatClientBuilder.defaultSystem(normalizeSystemPrompt(SYSTEM_PROMPT));
+        var toolBuilder = builder.clone()
+                .defaultToolCallbacks(new InstrumentedToolCallbackProvider(mcpToolCatalog, meterRegistry));
+        return new ModelRouter(environment, (model, tools) -> {
+            var modelBuilder = (tools ? toolBuilder : builder).clone();
+            if (StringUtils.hasText(model)) {
+                modelBuilder.defaultOptions(OllamaChatOptions.builder().model(model).build());
+            }
+            return modelBuilder.build();
+        }, meterRegistry);
+    }
+
+    /**
+     * Il system prompt apre ogni richiesta ad Ollama: deve restare identico byte per
+     * byte perché il nodo possa riusare la cache del prefisso già valutato. Si
+     * uniformano quindi fine riga e spazi finali, che possono variare a seconda di
+     * come viene fornita la proprietà (file, variabile d'ambiente, ConfigMap).
+     */
+    static String normalizeSystemPrompt(String systemPrompt) {
+        return systemPrompt.replace("\r\n", "\n")
+                .lines()
+                .map(String::stripTrailing)
+                .collect(Collectors.joining("\n"))
+                .strip();
     }
 }
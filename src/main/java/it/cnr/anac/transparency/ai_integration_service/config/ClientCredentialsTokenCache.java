@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.client.ClientCredentialsOAuth2AuthorizedClientProvider;
+import org.springframework.security.oauth2.client.OAuth2AuthorizationContext;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2ClientCredentialsGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache condivisa e thread-safe dei token OAuth2 ottenuti con il grant
+ * {@code client_credentials}, usati verso gli MCP server quando non è
+ * disponibile il JWT dell'utente.
+ * <p>
+ * Per ogni registration id viene mantenuto un solo token: il rinnovo è
+ * single-flight (un solo rinnovo in corso per registrazione) e avviene in
+ * anticipo quando alla scadenza manca meno di {@code ai.mcp.oauth.token-refresh-skew}.
+ * Durante il rinnovo anticipato le altre richieste continuano a usare il token
+ * ancora valido invece di mettersi in coda; se il rinnovo anticipato fallisce si
+ * continua a usare il token corrente solo finché è valido e non è stato invalidato.
+ */
+@Slf4j
+@Component
+public class ClientCredentialsTokenCache implements MeterBinder {
+
+    private static final String METRIC_NAME = "ai.mcp.oauth.token.cache";
+
+    private final ClientCredentialsOAuth2AuthorizedClientProvider clientCredentialTokenProvider =
+            new ClientCredentialsOAuth2AuthorizedClientProvider();
+
+    private final ClientRegistrationRepository clientRegistrationRepository;
+
+    private final Duration refreshSkew;
+
+    private final Clock clock;
+
+    private final Map<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @Autowired
+    public ClientCredentialsTokenCache(ClientRegistrationRepository clientRegistrationRepository,
+                                       @Value("${ai.mcp.oauth.token-refresh-skew:60s}") Duration refreshSkew) {
+        this(clientRegistrationRepository, refreshSkew, Clock.systemUTC(), null);
+    }
+
+    /**
+     * @param accessTokenResponseClient client del token endpoint, {@code null} per quello predefinito
+     */
+    ClientCredentialsTokenCache(ClientRegistrationRepository clientRegistrationRepository, Duration refreshSkew,
+                                Clock clock,
+                                OAuth2AccessTokenResponseClient<OAuth2ClientCredentialsGrantRequest> accessTokenResponseClient) {
+        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.refreshSkew = refreshSkew;
+        this.clock = clock;
+        this.clientCredentialTokenProvider.setClock(clock);
+        if (accessTokenResponseClient != null) {
+            this.clientCredentialTokenProvider.setAccessTokenResponseClient(accessTokenResponseClient);
+        }
+    }
+
+    /**
+     * Restituisce un access token valido per la registrazione indicata,
+     * richiedendone uno nuovo all'authorization server solo se necessario.
+     */
+    public String getAccessToken(String registrationId) {
+        var cached = tokens.computeIfAbsent(registrationId, id -> new CachedToken());
+        var now = clock.instant();
+        var token = cached.token;
+
+        if (isValid(token, now)) {
+            if (!expiresWithin(token, now, refreshSkew)) {
+                hits.increment();
+                return token.getTokenValue();
+            }
+            // Rinnovo anticipato: se un altro thread lo sta già facendo usiamo il token corrente
+            if (!cached.lock.tryLock()) {
+                hits.increment();
+                return token.getTokenValue();
+            }
+            try {
+                hits.increment();
+                return refreshAhead(registrationId, cached, now);
+            } finally {
+                cached.lock.unlock();
+            }
+        }
+
+        misses.increment();
+        cached.lock.lock();
+        try {
+            // Un altro thread potrebbe aver già rinnovato il token mentre eravamo in attesa
+            token = cached.token;
+            if (isValid(token, clock.instant())) {
+                return token.getTokenValue();
+            }
+            return refresh(registrationId, cached).getTokenValue();
+        } finally {
+            cached.lock.unlock();
+        }
+    }
+
+    /**
+     * Il token in cache se è valido e non va ancora rinnovato, altrimenti
+     * {@code null}: non contatta mai l'authorization server, quindi si può
+     * chiamare anche da un thread di I/O.
+     */
+    public String getCachedAccessToken(String registrationId) {
+        var cached = tokens.get(registrationId);
+        var token = cached != null ? cached.token : null;
+        if (token == null || expiresWithin(token, clock.instant(), refreshSkew)) {
+            return null;
+        }
+        hits.increment();
+        return token.getTokenValue();
+    }
+
+    /**
+     * Scarta il token indicato (ad es. dopo un 401 dell'MCP server), a meno che
+     * nel frattempo non sia già stato sostituito da uno più recente.
+     */
+    public void invalidate(String registrationId, String tokenValue) {
+        var cached = tokens.get(registrationId);
+        if (cached == null) {
+            return;
+        }
+        cached.lock.lock();
+        try {
+            if (cached.token != null && cached.token.getTokenValue().equals(tokenValue)) {
+                log.debug("Invalidated client_credentials token for registration '{}'", registrationId);
+                cached.token = null;
+            }
+        } finally {
+            cached.lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder(METRIC_NAME, hits, LongAdder::sum)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder(METRIC_NAME, misses, LongAdder::sum)
+                .tag("result", "miss").register(registry);
+        FunctionCounter.builder(METRIC_NAME, refreshes, LongAdder::sum)
+                .tag("result", "refresh").register(registry);
+        FunctionCounter.builder(METRIC_NAME, failures, LongAdder::sum)
+                .tag("result", "failure").register(registry);
+    }
+
+    private String refreshAhead(String registrationId, CachedToken cached, Instant now) {
+        var current = cached.token;
+        if (current != null && !expiresWithin(current, now, refreshSkew)) {
+            return current.getTokenValue();
+        }
+        try {
+            return refresh(registrationId, cached).getTokenValue();
+        } catch (RuntimeException e) {
+            // Il token corrente può essere stato invalidato (es. 401) o essere scaduto durante il rinnovo
+            if (current == null || cached.token != current || !isValid(current, clock.instant())) {
+                throw e;
+            }
+            // Il token corrente è ancora valido: meglio usarlo che far fallire la chiamata MCP
+            log.warn("Proactive refresh of client_credentials token for '{}' failed, using current token: {}",
+                    registrationId, e.getMessage());
+            return current.getTokenValue();
+        }
+    }
+
+    private OAuth2AccessToken refresh(String registrationId, CachedToken cached) {
+        var clientRegistration = this.clientRegistrationRepository.findByRegistrationId(registrationId);
+
+        var authRequest = OAuth2AuthorizationContext.withClientRegistration(clientRegistration)
+                .principal(new AnonymousAuthenticationToken("client-credentials-client", "client-credentials-client",
+                        AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")))
+                .build();
+        try {
+            var token = this.clientCredentialTokenProvider.authorize(authRequest).getAccessToken();
+            cached.token = token;
+            refreshes.increment();
+            log.debug("Obtained client_credentials token for registration '{}', expires at {}",
+                    registrationId, token.getExpiresAt());
+            return token;
+        } catch (RuntimeException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    private static boolean isValid(OAuth2AccessToken token, Instant now) {
+        return token != null && !expiresWithin(token, now, Duration.ZERO);
+    }
+
+    private static boolean expiresWithin(OAuth2AccessToken token, Instant now, Duration window) {
+        // Token senza scadenza dichiarata: resta valido finché l'MCP server non risponde 401
+        return token.getExpiresAt() != null && !now.plus(window).isBefore(token.getExpiresAt());
+    }
+
+    private static final class CachedToken {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile OAuth2AccessToken token;
+    }
+}
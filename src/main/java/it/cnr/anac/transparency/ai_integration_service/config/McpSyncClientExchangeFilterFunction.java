@@ -16,18 +16,19 @@
  */
 package it.cnr.anac.transparency.ai_integration_service.config;
 
-import org.springframework.security.authentication.AnonymousAuthenticationToken;
-import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.oauth2.client.ClientCredentialsOAuth2AuthorizedClientProvider;
-import org.springframework.security.oauth2.client.OAuth2AuthorizationContext;
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager;
-import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
 import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.*;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
 import java.util.function.Consumer;
 
 /**
@@ -48,12 +49,9 @@ import java.util.function.Consumer;
 @Component
 public class McpSyncClientExchangeFilterFunction implements ExchangeFilterFunction {
 
-    private final ClientCredentialsOAuth2AuthorizedClientProvider clientCredentialTokenProvider =
-            new ClientCredentialsOAuth2AuthorizedClientProvider();
-
     private final ServletOAuth2AuthorizedClientExchangeFilterFunction delegate;
 
-    private final ClientRegistrationRepository clientRegistrationRepository;
+    private final ClientCredentialsTokenCache tokenCache;
 
     // Must match registration id in property
     // spring.security.oauth2.client.registration.<REGISTRATION-ID>.authorization-grant-type=authorization_code
@@ -64,10 +62,10 @@ public class McpSyncClientExchangeFilterFunction implements ExchangeFilterFuncti
     private static final String CLIENT_CREDENTIALS_CLIENT_REGISTRATION_ID = "authserver-client-credentials";
 
     public McpSyncClientExchangeFilterFunction(OAuth2AuthorizedClientManager clientManager,
-                                               ClientRegistrationRepository clientRegistrationRepository) {
+                                               ClientCredentialsTokenCache tokenCache) {
         this.delegate = new ServletOAuth2AuthorizedClientExchangeFilterFunction(clientManager);
         this.delegate.setDefaultClientRegistrationId(AUTHORIZATION_CODE_CLIENT_REGISTRATION_ID);
-        this.clientRegistrationRepository = clientRegistrationRepository;
+        this.tokenCache = tokenCache;
     }
 
     /**
@@ -77,6 +75,8 @@ public class McpSyncClientExchangeFilterFunction implements ExchangeFilterFuncti
      * Bearer JWT to the MCP server (on-behalf-of). If no user JWT is present,
      * fall back to OAuth2 {@code client_credentials} for machine-to-machine access.
      * During application startup (no request context), also use {@code client_credentials}.
+     * Client credentials tokens are shared through {@link ClientCredentialsTokenCache}; a
+     * {@code 401} from the MCP server evicts the cached token and the request is retried once.
      */
     @Override
     public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
@@ -92,22 +92,50 @@ public class McpSyncClientExchangeFilterFunction implements ExchangeFilterFuncti
         }
 
         // Fallback to client_credentials (startup or no user JWT available)
-        var accessToken = getClientCredentialsAccessToken();
-        var requestWithToken = ClientRequest.from(request)
-                .headers(headers -> headers.setBearerAuth(accessToken))
-                .build();
-        return next.exchange(requestWithToken);
+        return clientCredentialsToken()
+                .flatMap(accessToken -> next.exchange(withBearerToken(request, accessToken))
+                        .flatMap(response -> {
+                            if (!response.statusCode().isSameCodeAs(HttpStatus.UNAUTHORIZED)) {
+                                return Mono.just(response);
+                            }
+                            // The cached token was revoked or rejected: drop it and retry once with a fresh one
+                            this.tokenCache.invalidate(CLIENT_CREDENTIALS_CLIENT_REGISTRATION_ID, accessToken);
+                            return response.releaseBody()
+                                    .then(clientCredentialsToken())
+                                    .flatMap(freshToken -> next.exchange(withBearerToken(request, freshToken)));
+                        }));
+    }
+
+    /**
+     * The cached {@code client_credentials} token, or a fresh one. Fetching a token is a
+     * blocking call to the authorization server and may be needed on a Netty I/O thread
+     * (e.g. the retry after a {@code 401}), so it runs on {@code boundedElastic}, which
+     * uses virtual threads when {@code spring.threads.virtual.enabled} is set.
+     */
+    private Mono<String> clientCredentialsToken() {
+        var cached = this.tokenCache.getCachedAccessToken(CLIENT_CREDENTIALS_CLIENT_REGISTRATION_ID);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return Mono.fromCallable(() -> this.tokenCache.getAccessToken(CLIENT_CREDENTIALS_CLIENT_REGISTRATION_ID))
+                .subscribeOn(Schedulers.boundedElastic());
     }
 
-    private String getClientCredentialsAccessToken() {
-        var clientRegistration = this.clientRegistrationRepository
-                .findByRegistrationId(CLIENT_CREDENTIALS_CLIENT_REGISTRATION_ID);
+    /**
+     * Capture the current {@link Authentication} into a Reactor context, under the
+     * {@code Authentication.class} key, so that the user JWT is still forwarded when tools
+     * are called from a reactive chat pipeline: the tool calling manager restores it into
+     * the {@link SecurityContextHolder} of the threads that call the MCP server.
+     */
+    public static ContextView authenticationContext() {
+        var authentication = SecurityContextHolder.getContext().getAuthentication();
+        return authentication != null ? Context.of(Authentication.class, authentication) : Context.empty();
+    }
 
-        var authRequest = OAuth2AuthorizationContext.withClientRegistration(clientRegistration)
-                .principal(new AnonymousAuthenticationToken("client-credentials-client", "client-credentials-client",
-                        AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")))
+    private static ClientRequest withBearerToken(ClientRequest request, String accessToken) {
+        return ClientRequest.from(request)
+                .headers(headers -> headers.setBearerAuth(accessToken))
                 .build();
-        return this.clientCredentialTokenProvider.authorize(authRequest).getAccessToken().getTokenValue();
     }
 
     /**
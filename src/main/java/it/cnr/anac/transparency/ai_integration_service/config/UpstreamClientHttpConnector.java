@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.reactive.ClientHttpConnector;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ClientHttpResponse;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * {@link ClientHttpConnector} usato da tutti i {@code WebClient} dell'applicazione
+ * (Ollama e MCP server): delega a un {@link ReactorClientHttpConnector} di Reactor
+ * Netty per classe di upstream, ciascuno con il proprio {@link ConnectionProvider}
+ * con nome: {@code ollama} per i nodi di {@code ai.ollama.backends}, {@code mcp} per
+ * gli MCP server configurati in {@code spring.ai.mcp.client.*.connections} e
+ * {@code default} per gli altri, con le impostazioni {@code ai.http.pools.<nome>.*}.
+ * <p>
+ * Il provider tiene un pool per upstream (schema, host e porta) con al più
+ * {@code max-connections} connessioni; le richieste oltre il limite attendono, al
+ * più {@code max-pending} per volta e per al più {@code pending-acquire-timeout}.
+ * Le connessioni inattive da {@code ai.http.idle-timeout} sono chiuse in background
+ * e i pool pubblicano le metriche {@code reactor.netty.connection.provider.*}
+ * (connessioni attive, inattive e in attesa) per nome e indirizzo dell'upstream.
+ * Con {@code compression} le risposte sono richieste in gzip e decompresse da
+ * Netty; con {@code http2} sugli upstream HTTPS si negozia HTTP/2.
+ * <p>
+ * Il corpo della risposta non è messo in cache: annullata la sottoscrizione, la
+ * connessione viene chiusa e Ollama smette di generare token che nessuno legge.
+ */
+@Slf4j
+@Component
+public class UpstreamClientHttpConnector implements ClientHttpConnector, DisposableBean {
+
+    private static final Map<String, Settings> DEFAULTS = Map.of(
+            "ollama", new Settings(64, 256, Duration.ofSeconds(10), false, true),
+            "mcp", new Settings(32, 512, Duration.ofSeconds(10), true, true),
+            "default", new Settings(16, 256, Duration.ofSeconds(10), false, true));
+
+    private final Set<String> ollamaOrigins;
+    private final Set<String> mcpOrigins;
+    private final Map<String, ConnectionProvider> providers = new HashMap<>();
+    private final Map<String, Connectors> connectors = new HashMap<>();
+
+    public UpstreamClientHttpConnector(Environment environment,
+                                       @Value("${ai.http.connect-timeout:10s}") Duration connectTimeout,
+                                       @Value("${ai.http.idle-timeout:30s}") Duration idleTimeout) {
+        this.ollamaOrigins = origins(environment.getProperty("ai.ollama.backends",
+                environment.getProperty("spring.ai.ollama.base-url", "http://localhost:11434")).split(","));
+        this.mcpOrigins = mcpOrigins(environment);
+        DEFAULTS.keySet().forEach(name -> {
+            var settings = settings(environment, name);
+            var provider = ConnectionProvider.builder(name)
+                    .maxConnections(settings.maxConnections())
+                    .pendingAcquireMaxCount(settings.maxPending())
+                    .pendingAcquireTimeout(settings.pendingAcquireTimeout())
+                    .maxIdleTime(idleTimeout)
+                    .evictInBackground(idleTimeout)
+                    .metrics(true)
+                    .build();
+            var httpClient = HttpClient.create(provider)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis())
+                    .compress(settings.compression());
+            // HTTP/2 solo via ALPN su TLS: in chiaro resta HTTP/1.1
+            var secureClient = settings.http2()
+                    ? httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11).secure()
+                    : httpClient;
+            providers.put(name, provider);
+            connectors.put(name, new Connectors(new ReactorClientHttpConnector(httpClient),
+                    new ReactorClientHttpConnector(secureClient)));
+            log.info("HTTP connection provider '{}': {}", name, settings);
+        });
+    }
+
+    @Override
+    public Mono<ClientHttpResponse> connect(HttpMethod method, URI uri,
+                                            Function<? super ClientHttpRequest, Mono<Void>> requestCallback) {
+        var upstream = connectors.get(poolName(uri));
+        var connector = "https".equalsIgnoreCase(uri.getScheme()) ? upstream.secure() : upstream.plain();
+        return connector.connect(method, uri, requestCallback);
+    }
+
+    @Override
+    public void destroy() {
+        Flux.fromIterable(providers.values())
+                .flatMap(ConnectionProvider::disposeLater)
+                .then()
+                .block(Duration.ofSeconds(10));
+    }
+
+    /**
+     * Classe dell'upstream, nome del {@link ConnectionProvider} che lo serve.
+     */
+    String poolName(URI uri) {
+        var origin = origin(uri);
+        return ollamaOrigins.contains(origin) ? "ollama" : mcpOrigins.contains(origin) ? "mcp" : "default";
+    }
+
+    private static Settings settings(Environment environment, String name) {
+        var defaults = DEFAULTS.get(name);
+        var prefix = "ai.http.pools." + name + ".";
+        return new Settings(
+                environment.getProperty(prefix + "max-connections", Integer.class, defaults.maxConnections()),
+                environment.getProperty(prefix + "max-pending", Integer.class, defaults.maxPending()),
+                environment.getProperty(prefix + "pending-acquire-timeout", Duration.class, defaults.pendingAcquireTimeout()),
+                environment.getProperty(prefix + "compression", Boolean.class, defaults.compression()),
+                environment.getProperty(prefix + "http2", Boolean.class, defaults.http2()));
+    }
+
+    private static Set<String> mcpOrigins(Environment environment) {
+        var binder = Binder.get(environment);
+        var urls = new HashSet<String>();
+        for (var transport : List.of("streamable-http", "sse")) {
+            binder.bind("spring.ai.mcp.client." + transport + ".connections", Bindable.mapOf(String.class, String.class))
+                    .ifBound(connections -> connections.forEach((key, value) -> {
+                        if (key.endsWith(".url")) {
+                            urls.add(value);
+                        }
+                    }));
+        }
+        return origins(urls.toArray(String[]::new));
+    }
+
+    private static Set<String> origins(String[] urls) {
+        var origins = new HashSet<String>();
+        for (var url : urls) {
+            if (StringUtils.hasText(url)) {
+                origins.add(origin(URI.create(url.trim())));
+            }
+        }
+        return Set.copyOf(origins);
+    }
+
+    static String origin(URI uri) {
+        var scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort() >= 0 ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+        return scheme + "://" + String.valueOf(uri.getHost()).toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    /**
+     * Impostazioni di una classe di upstream ({@code ai.http.pools.<nome>.*}).
+     */
+    record Settings(int maxConnections, int maxPending, Duration pendingAcquireTimeout, boolean compression,
+                    boolean http2) {
+    }
+
+    /**
+     * Connettori di una classe di upstream, sullo stesso {@link ConnectionProvider}.
+     */
+    private record Connectors(ReactorClientHttpConnector plain, ReactorClientHttpConnector secure) {
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.config.ConfigDataEnvironmentPostProcessor;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.ConfigurableEnvironment;
+
+/**
+ * Completa la modalità virtual thread ({@code spring.threads.virtual.enabled}).
+ * <p>
+ * Spring Boot usa già i virtual thread per le richieste Tomcat, per l'executor
+ * asincrono di Spring MVC (che sottoscrive gli stream SSE e NDJSON) e per i job
+ * {@code @Scheduled}; il {@code boundedElastic} condiviso di Reactor resta invece
+ * su thread di piattaforma. Lì Spring AI esegue il ciclo dei tool durante lo
+ * streaming, bloccandosi in attesa delle risposte degli MCP server: in questa
+ * modalità lo si sposta sui virtual thread e se ne alza il limite di thread a
+ * {@code ai.threads.virtual.bounded-elastic-size}.
+ * <p>
+ * Le impostazioni di Reactor sono proprietà di sistema lette una sola volta,
+ * quindi vanno fissate prima che lo scheduler venga creato; quelle già passate
+ * alla JVM con {@code -D} non sono sovrascritte.
+ */
+public class VirtualThreadsEnvironmentPostProcessor implements EnvironmentPostProcessor, Ordered {
+
+    static final String ON_VIRTUAL_THREADS = "reactor.schedulers.defaultBoundedElasticOnVirtualThreads";
+    static final String BOUNDED_ELASTIC_SIZE = "reactor.schedulers.defaultBoundedElasticSize";
+
+    @Override
+    public void postProcessEnvironment(ConfigurableEnvironment environment, SpringApplication application) {
+        if (!environment.getProperty("spring.threads.virtual.enabled", Boolean.class, false)) {
+            return;
+        }
+        setIfAbsent(ON_VIRTUAL_THREADS, "true");
+        setIfAbsent(BOUNDED_ELASTIC_SIZE,
+                environment.getProperty("ai.threads.virtual.bounded-elastic-size", "1000"));
+    }
+
+    @Override
+    public int getOrder() {
+        // dopo il caricamento di application.properties
+        return ConfigDataEnvironmentPostProcessor.ORDER + 1;
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.ai.chat.messages.Message;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conversazione mantenuta lato server: lo storico dei messaggi scambiati da un
+ * utente (identificato dal subject del JWT) con il modello.
+ */
+@Getter
+public class Conversation {
+
+    private final String id;
+    private final String owner;
+    private final Instant createdAt;
+    private volatile Instant lastAccess;
+
+    // protetto dal monitor dell'istanza
+    private final List<Message> messages = new ArrayList<>();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean turnInProgress = new AtomicBoolean();
+
+    Conversation(String id, String owner, Instant createdAt) {
+        this.id = id;
+        this.owner = owner;
+        this.createdAt = createdAt;
+        this.lastAccess = createdAt;
+    }
+
+    /**
+     * Copia immutabile dello storico corrente.
+     */
+    public synchronized List<Message> getMessages() {
+        return List.copyOf(messages);
+    }
+
+    synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Aggiunge un turno completo allo storico, scartando i messaggi più vecchi
+     * oltre {@code maxMessages}.
+     */
+    synchronized void append(List<Message> turn, int maxMessages) {
+        messages.addAll(turn);
+        int excess = messages.size() - maxMessages;
+        if (excess > 0) {
+            messages.subList(0, excess).clear();
+        }
+    }
+
+    /**
+     * Riserva la conversazione per un nuovo turno.
+     *
+     * @return {@code false} se un altro turno è già in corso
+     */
+    boolean beginTurn() {
+        return turnInProgress.compareAndSet(false, true);
+    }
+
+    void endTurn() {
+        turnInProgress.set(false);
+    }
+
+    void touch(Instant now) {
+        this.lastAccess = now;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.Message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Persistenza opzionale delle conversazioni su file: un file NDJSON per
+ * conversazione, con una riga di intestazione seguita da una riga per
+ * messaggio. Ogni turno viene accodato al file, senza riscrivere lo storico.
+ * Quando il file contiene più del doppio dei messaggi mantenuti in memoria,
+ * o è stato cancellato nel frattempo, viene riscritto per intero (intestazione
+ * e storico corrente) con una sostituzione atomica.
+ */
+@Slf4j
+class ConversationJournal {
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+    // Messaggi presenti nel file di ogni conversazione scritta o letta dall'avvio
+    private final Map<String, Integer> journaledMessages = new ConcurrentHashMap<>();
+
+    ConversationJournal(Path directory, ObjectMapper objectMapper) {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile creare la directory delle conversazioni " + directory, e);
+        }
+    }
+
+    void create(Conversation conversation) {
+        if (write(conversation.getId(), List.of(header(conversation)), StandardOpenOption.CREATE_NEW)) {
+            journaledMessages.put(conversation.getId(), 0);
+        }
+    }
+
+    /**
+     * Accoda un turno già aggiunto allo storico in memoria di {@code conversation}.
+     * I turni di una conversazione sono serializzati dallo store.
+     */
+    void append(Conversation conversation, List<Message> turn, int maxMessages) {
+        var id = conversation.getId();
+        var file = file(id);
+        if (file == null) {
+            return;
+        }
+        var journaled = journaledMessages.get(id);
+        if (journaled != null && journaled + turn.size() <= 2 * maxMessages) {
+            try {
+                // Senza CREATE: un file cancellato nel frattempo non viene ricreato senza intestazione
+                Files.writeString(file, lines(turn.stream().map(JournalMessage::from).toList()),
+                        StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+                journaledMessages.put(id, journaled + turn.size());
+                return;
+            } catch (NoSuchFileException e) {
+                log.debug("File della conversazione {} non più presente: lo riscrivo", id);
+            } catch (IOException e) {
+                log.warn("Impossibile salvare la conversazione {} su {}: {}", id, file, e.getMessage());
+                return;
+            }
+        }
+        rewrite(conversation, file);
+    }
+
+    Optional<Conversation> load(String id, int maxMessages) {
+        var file = file(id);
+        if (file == null || !Files.exists(file)) {
+            return Optional.empty();
+        }
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            var iterator = lines.iterator();
+            if (!iterator.hasNext()) {
+                return Optional.empty();
+            }
+            var header = objectMapper.readValue(iterator.next(), Header.class);
+            if (header.owner() == null) {
+                log.warn("Intestazione mancante nel file della conversazione {}: ignorato", id);
+                return Optional.empty();
+            }
+            var conversation = new Conversation(id, header.owner(), header.createdAt());
+            var messages = new ArrayList<Message>();
+            while (iterator.hasNext()) {
+                messages.add(objectMapper.readValue(iterator.next(), JournalMessage.class).toMessage());
+            }
+            conversation.append(messages, maxMessages);
+            journaledMessages.put(id, messages.size());
+            conversation.touch(Files.getLastModifiedTime(file).toInstant());
+            return Optional.of(conversation);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Impossibile leggere la conversazione {} da {}: {}", id, file, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    void delete(String id) {
+        var file = file(id);
+        if (file == null) {
+            return;
+        }
+        journaledMessages.remove(id);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Impossibile cancellare il file della conversazione {}: {}", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Cancella i file delle conversazioni non più modificate da prima di
+     * {@code cutoff}, tranne quelle in {@code live}, ancora in memoria.
+     */
+    void purgeOlderThan(Instant cutoff, Set<String> live) {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(JournalFiles::isJournal)
+                    .filter(f -> !live.contains(JournalFiles.idOf(f)))
+                    .filter(f -> {
+                        try {
+                            return Files.getLastModifiedTime(f).toInstant().isBefore(cutoff);
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    })
+                    .forEach(f -> {
+                        try {
+                            journaledMessages.remove(JournalFiles.idOf(f));
+                            Files.deleteIfExists(f);
+                        } catch (IOException e) {
+                            log.warn("Impossibile cancellare {}: {}", f, e.getMessage());
+                        }
+                    });
+        } catch (IOException e) {
+            log.warn("Impossibile ripulire la directory delle conversazioni {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Riscrive il file con l'intestazione e lo storico corrente della conversazione.
+     */
+    private void rewrite(Conversation conversation, Path file) {
+        var messages = conversation.getMessages();
+        var records = new ArrayList<Object>(messages.size() + 1);
+        records.add(header(conversation));
+        messages.forEach(message -> records.add(JournalMessage.from(message)));
+        var temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, lines(records), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journaledMessages.put(conversation.getId(), messages.size());
+        } catch (IOException e) {
+            log.warn("Impossibile riscrivere la conversazione {} su {}: {}", conversation.getId(), file,
+                    e.getMessage());
+            journaledMessages.remove(conversation.getId());
+        }
+    }
+
+    private boolean write(String id, List<?> records, StandardOpenOption option) {
+        var file = file(id);
+        if (file == null) {
+            return false;
+        }
+        try {
+            Files.writeString(file, lines(records), StandardCharsets.UTF_8, option);
+            return true;
+        } catch (IOException e) {
+            // La conversazione resta comunque disponibile in memoria
+            log.warn("Impossibile salvare la conversazione {} su {}: {}", id, file, e.getMessage());
+            return false;
+        }
+    }
+
+    private String lines(List<?> records) throws IOException {
+        var lines = new StringBuilder();
+        for (Object record : records) {
+            lines.append(objectMapper.writeValueAsString(record)).append('\n');
+        }
+        return lines.toString();
+    }
+
+    private static Header header(Conversation conversation) {
+        return new Header(conversation.getOwner(), conversation.getCreatedAt());
+    }
+
+    private Path file(String id) {
+        return JournalFiles.file(directory, id);
+    }
+
+    record Header(String owner, Instant createdAt) {}
+}
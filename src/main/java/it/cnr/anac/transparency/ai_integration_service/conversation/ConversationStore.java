@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * Store in memoria delle conversazioni, così che i client di
+ * {@code POST /v1/chat/stream} inviino solo i nuovi messaggi di ogni turno.
+ * <p>
+ * Lo store è limitato: al più {@code ai.chat.conversations.max-size} conversazioni
+ * (eviction LRU), ciascuna scade dopo {@code ai.chat.conversations.ttl} di inattività
+ * e ogni utente (subject del JWT) può averne al più {@code ai.chat.conversations.max-per-user}:
+ * oltre la quota viene scartata la sua conversazione usata meno di recente.
+ * Con {@code ai.chat.conversations.persistence.enabled=true} i turni sono anche
+ * accodati su file e le conversazioni sopravvivono al riavvio del servizio.
+ * <p>
+ * Una conversazione accetta un turno alla volta: un turno inviato mentre il
+ * precedente è ancora in generazione riceve 409. L'I/O su file avviene sempre
+ * fuori dal monitor dello store.
+ */
+@Slf4j
+@Component
+public class ConversationStore {
+
+    private final int maxSize;
+    private final int maxPerUser;
+    private final int maxMessages;
+    private final Duration ttl;
+    private final ConversationJournal journal;
+    private final Clock clock;
+
+    // Ordinata per accesso (LRU), protetta dal monitor dell'istanza
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, Integer> conversationsPerOwner = new HashMap<>();
+
+    @Autowired
+    public ConversationStore(@Value("${ai.chat.conversations.max-size:10000}") int maxSize,
+                             @Value("${ai.chat.conversations.max-per-user:20}") int maxPerUser,
+                             @Value("${ai.chat.conversations.max-messages:200}") int maxMessages,
+                             @Value("${ai.chat.conversations.ttl:2h}") Duration ttl,
+                             @Value("${ai.chat.conversations.persistence.enabled:false}") boolean persistenceEnabled,
+                             @Value("${ai.chat.conversations.persistence.directory:./data/conversations}") Path directory,
+                             ObjectMapper objectMapper) {
+        this(maxSize, maxPerUser, maxMessages, ttl,
+                persistenceEnabled ? new ConversationJournal(directory, objectMapper) : null, Clock.systemUTC());
+    }
+
+    ConversationStore(int maxSize, int maxPerUser, int maxMessages, Duration ttl, ConversationJournal journal,
+                      Clock clock) {
+        this.maxSize = maxSize;
+        this.maxPerUser = maxPerUser;
+        this.maxMessages = maxMessages;
+        this.ttl = ttl;
+        this.journal = journal;
+        this.clock = clock;
+    }
+
+    /**
+     * Crea una nuova conversazione vuota per l'utente indicato.
+     */
+    public Conversation create(String owner) {
+        var conversation = new Conversation(UUID.randomUUID().toString(), owner, clock.instant());
+        String dropped;
+        synchronized (this) {
+            dropped = enforceOwnerQuota(owner);
+            put(conversation);
+        }
+        if (journal != null) {
+            if (dropped != null) {
+                journal.delete(dropped);
+            }
+            journal.create(conversation);
+        }
+        log.debug("Creata conversazione {} per {}", conversation.getId(), owner);
+        return conversation;
+    }
+
+    /**
+     * Restituisce la conversazione se esiste, non è scaduta ed appartiene all'utente,
+     * altrimenti risponde 404 (senza distinguere tra conversazioni inesistenti e altrui).
+     */
+    public Conversation get(String id, String owner) {
+        var now = clock.instant();
+        Conversation conversation;
+        synchronized (this) {
+            conversation = conversations.get(id);
+        }
+        if (conversation == null && journal != null) {
+            // Conversazione non più in memoria (eviction o riavvio): la rilegge dal file
+            var loaded = journal.load(id, maxMessages).orElse(null);
+            if (loaded != null) {
+                synchronized (this) {
+                    conversation = conversations.get(id);
+                    if (conversation == null) {
+                        put(loaded);
+                        conversation = loaded;
+                    }
+                }
+            }
+        }
+        if (conversation != null && isExpired(conversation, now)) {
+            remove(id);
+            conversation = null;
+        }
+        if (conversation == null || !owner.equals(conversation.getOwner())) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Conversazione non trovata");
+        }
+        conversation.touch(now);
+        return conversation;
+    }
+
+    public void delete(String id, String owner) {
+        var conversation = get(id, owner);
+        remove(conversation.getId());
+    }
+
+    /**
+     * Esegue un turno della conversazione: {@code generation} riceve subito lo
+     * storico seguito dai nuovi messaggi e, quando la generazione termina
+     * correttamente, i nuovi messaggi e la risposta completa del modello sono
+     * registrati nello storico. Se lo stream viene interrotto o fallisce lo
+     * storico resta invariato.
+     *
+     * @throws ResponseStatusException 409 se un altro turno della stessa
+     *                                 conversazione è in corso, così i turni non si intrecciano nello storico
+     */
+    public Flux<String> recordTurn(Conversation conversation, List<Message> newMessages,
+                                   Function<List<Message>, Flux<String>> generation) {
+        if (!conversation.beginTurn()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Turno precedente della conversazione ancora in corso");
+        }
+        Flux<String> tokens;
+        try {
+            var messages = new ArrayList<>(conversation.getMessages());
+            messages.addAll(newMessages);
+            // invocata subito, nel thread della richiesta che porta il contesto di sicurezza
+            tokens = generation.apply(messages);
+        } catch (RuntimeException e) {
+            conversation.endTurn();
+            throw e;
+        }
+        return Flux.defer(() -> {
+            var reply = new StringBuilder();
+            return tokens
+                    .doOnNext(reply::append)
+                    .doOnComplete(() -> {
+                        var turn = new ArrayList<>(newMessages);
+                        turn.add(new AssistantMessage(reply.toString()));
+                        conversation.append(turn, maxMessages);
+                        conversation.touch(clock.instant());
+                        if (journal != null) {
+                            journal.append(conversation, turn, maxMessages);
+                        }
+                    });
+        }).doFinally(signal -> conversation.endTurn());
+    }
+
+    @Scheduled(fixedDelayString = "${ai.chat.conversations.purge-interval:5m}")
+    public void purgeExpired() {
+        var now = clock.instant();
+        var expired = new ArrayList<String>();
+        Set<String> live;
+        synchronized (this) {
+            Iterator<Map.Entry<String, Conversation>> it = conversations.entrySet().iterator();
+            while (it.hasNext()) {
+                var conversation = it.next().getValue();
+                if (isExpired(conversation, now)) {
+                    it.remove();
+                    decrementOwner(conversation.getOwner());
+                    expired.add(conversation.getId());
+                }
+            }
+            live = new HashSet<>(conversations.keySet());
+        }
+        if (journal != null) {
+            expired.forEach(journal::delete);
+            // Le conversazioni in memoria hanno la scadenza aggiornata da touch(), che
+            // non modifica il file: la data del file vale solo per quelle non caricate
+            journal.purgeOlderThan(now.minus(ttl), live);
+        }
+        if (!expired.isEmpty()) {
+            log.debug("Rimosse {} conversazioni scadute", expired.size());
+        }
+    }
+
+    private boolean isExpired(Conversation conversation, Instant now) {
+        return conversation.getLastAccess().plus(ttl).isBefore(now);
+    }
+
+    /**
+     * Rimuove la conversazione dalla memoria e ne cancella il file, fuori dal monitor.
+     */
+    private void remove(String id) {
+        synchronized (this) {
+            evict(id);
+        }
+        if (journal != null) {
+            journal.delete(id);
+        }
+    }
+
+    // I metodi seguenti vanno invocati tenendo il monitor dello store
+
+    private void put(Conversation conversation) {
+        conversations.put(conversation.getId(), conversation);
+        conversationsPerOwner.merge(conversation.getOwner(), 1, Integer::sum);
+        while (conversations.size() > maxSize) {
+            var eldest = conversations.keySet().iterator().next();
+            log.debug("Conversazione {} rimossa per limite di dimensione dello store", eldest);
+            evict(eldest);
+        }
+    }
+
+    /**
+     * @return id della conversazione rimossa, il cui file va cancellato, o {@code null}
+     */
+    private String enforceOwnerQuota(String owner) {
+        if (conversationsPerOwner.getOrDefault(owner, 0) < maxPerUser) {
+            return null;
+        }
+        // L'iterazione parte dalla conversazione usata meno di recente
+        var eldest = conversations.values().stream()
+                .filter(c -> c.getOwner().equals(owner))
+                .findFirst()
+                .orElse(null);
+        if (eldest == null) {
+            return null;
+        }
+        log.debug("Conversazione {} di {} rimossa per quota utente", eldest.getId(), owner);
+        evict(eldest.getId());
+        return eldest.getId();
+    }
+
+    private void evict(String id) {
+        // L'eviction libera la memoria ma mantiene l'eventuale file su disco fino alla scadenza
+        var removed = conversations.remove(id);
+        if (removed != null) {
+            decrementOwner(removed.getOwner());
+        }
+    }
+
+    private void decrementOwner(String owner) {
+        conversationsPerOwner.computeIfPresent(owner, (k, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageAccounting;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.ollama.api.OllamaChatOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Compattazione dello storico prima dell'invio al modello, per le conversazioni
+ * che superano la parte della finestra di contesto riservata allo storico
+ * ({@code ai.chat.history.budget-ratio} della finestra di {@link TokenCounter}).
+ * <p>
+ * Sotto il budget i messaggi sono inviati invariati, così il prefisso resta
+ * identico tra un turno e l'altro e Ollama può riusarne la cache. Oltre il
+ * budget, in ordine:
+ * <ol>
+ *   <li>nei messaggi più vecchi degli ultimi {@code ai.chat.history.keep-last}
+ *   sono rimossi i risultati dei tool e i blocchi JSON più lunghi di
+ *   {@code ai.chat.history.tool-output.max-chars}, già interpretati dal modello
+ *   nelle risposte successive;</li>
+ *   <li>se non basta, i turni più vecchi sono sostituiti da un riassunto prodotto
+ *   da {@code ai.chat.history.summary.model} (di default il modello della chat),
+ *   lasciando invariati gli ultimi messaggi fino a {@code ai.chat.history.target-ratio}
+ *   del budget;</li>
+ *   <li>se il riassunto è disabilitato o fallisce, i turni più vecchi sono scartati
+ *   (finestra scorrevole).</li>
+ * </ol>
+ * I riassunti sono memorizzati per prefisso della conversazione (hash dei
+ * messaggi riassunti): finché gli ultimi messaggi stanno nel budget i turni
+ * successivi riusano lo stesso riassunto, e quando serve estenderlo si
+ * riassumono solo i messaggi nuovi insieme al riassunto precedente. Le
+ * generazioni dei riassunti sono addebitate all'utente della conversazione.
+ */
+@Slf4j
+@Component
+public class HistoryCompactor implements MeterBinder {
+
+    static final String SUMMARY_PREFIX = "Riassunto della parte precedente della conversazione:\n";
+
+    private static final String SUMMARY_INSTRUCTIONS = """
+            Riassumi in italiano la conversazione che segue tra un utente e l'assistente. \
+            Conserva enti, nomi, date, numeri, esiti dei controlli e richieste ancora aperte; \
+            ometti saluti e ripetizioni. Rispondi solo con il riassunto.""";
+
+    private static final Pattern CODE_BLOCK = Pattern.compile("```[\\w-]*\\R.*?```", Pattern.DOTALL);
+
+    private final ChatModel chatModel;
+    private final TokenCounter tokenCounter;
+    private final UsageAccounting usageAccounting;
+    private final boolean enabled;
+    private final double budgetRatio;
+    private final double targetRatio;
+    private final int keepLast;
+    private final int maxToolOutputChars;
+    private final boolean summaryEnabled;
+    private final String summaryModel;
+    private final int summaryMaxTokens;
+    private final Duration summaryTimeout;
+    private final int cacheSize;
+
+    // Ordinata per accesso (LRU), protetta dal monitor dell'istanza
+    private final LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder slimmed = new LongAdder();
+    private final LongAdder summaryReused = new LongAdder();
+    private final LongAdder summarized = new LongAdder();
+    private final LongAdder truncated = new LongAdder();
+
+    public HistoryCompactor(ChatModel chatModel, TokenCounter tokenCounter, UsageAccounting usageAccounting,
+                            @Value("${ai.chat.history.compaction.enabled:true}") boolean enabled,
+                            @Value("${ai.chat.history.budget-ratio:0.5}") double budgetRatio,
+                            @Value("${ai.chat.history.target-ratio:0.5}") double targetRatio,
+                            @Value("${ai.chat.history.keep-last:4}") int keepLast,
+                            @Value("${ai.chat.history.tool-output.max-chars:2000}") int maxToolOutputChars,
+                            @Value("${ai.chat.history.summary.enabled:true}") boolean summaryEnabled,
+                            @Value("${ai.chat.history.summary.model:}") String summaryModel,
+                            @Value("${ai.chat.history.summary.max-tokens:512}") int summaryMaxTokens,
+                            @Value("${ai.chat.history.summary.timeout:60s}") Duration summaryTimeout,
+                            @Value("${ai.chat.history.summary.cache-size:1000}") int cacheSize) {
+        this.chatModel = chatModel;
+        this.tokenCounter = tokenCounter;
+        this.usageAccounting = usageAccounting;
+        this.enabled = enabled;
+        this.budgetRatio = budgetRatio;
+        this.targetRatio = targetRatio;
+        this.keepLast = keepLast;
+        this.maxToolOutputChars = maxToolOutputChars;
+        this.summaryEnabled = summaryEnabled;
+        this.summaryModel = summaryModel;
+        this.summaryMaxTokens = summaryMaxTokens;
+        this.summaryTimeout = summaryTimeout;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Storico da inviare a {@code model}: i messaggi stessi se stanno nel budget,
+     * altrimenti la loro versione compattata. Non fallisce mai: in caso di errore
+     * del riassunto si ripiega sulla finestra scorrevole. L'eventuale riassunto
+     * è addebitato ad {@code account}.
+     */
+    public Mono<List<Message>> compact(List<Message> messages, String model, UsageAccounting.Account account) {
+        if (!enabled || messages.size() <= keepLast) {
+            return Mono.just(messages);
+        }
+        int budget = (int) (tokenCounter.contextWindow(model) * budgetRatio);
+        int[] counts = new int[messages.size()];
+        int total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = tokenCounter.count(messages.get(i), model);
+            total += counts[i];
+        }
+        if (total <= budget) {
+            return Mono.just(messages);
+        }
+
+        int keepFrom = messages.size() - keepLast;
+        var slim = new ArrayList<>(slim(messages.subList(0, keepFrom)));
+        if (tokenCounter.count(slim, model) + sum(counts, keepFrom) <= budget) {
+            slimmed.increment();
+            slim.addAll(messages.subList(keepFrom, messages.size()));
+            return Mono.just(slim);
+        }
+        if (!summaryEnabled) {
+            truncated.increment();
+            return Mono.just(List.copyOf(messages.subList(cut(messages, counts, budget), messages.size())));
+        }
+
+        var prefixKeys = prefixKeys(messages, model);
+        // Riassunto già calcolato per un prefisso della conversazione: si riusa finché ci sta
+        int cached = latestSummary(prefixKeys, messages.size() - 1);
+        if (cached > 0) {
+            var summary = cachedSummary(prefixKeys[cached]);
+            if (summary != null && summary.tokens() + sum(counts, cached) <= budget) {
+                summaryReused.increment();
+                return Mono.just(withSummary(summary.text(), messages.subList(cached, messages.size())));
+            }
+        }
+
+        int cut = cut(messages, counts, (int) (budget * targetRatio));
+        int base = latestSummary(prefixKeys, cut);
+        var previous = base > 0 ? cachedSummary(prefixKeys[base]) : null;
+        var recent = messages.subList(cut, messages.size());
+        if (previous != null && base == cut) {
+            summaryReused.increment();
+            return Mono.just(withSummary(previous.text(), recent));
+        }
+        var toSummarize = slim(messages.subList(previous != null ? base : 0, cut));
+        return summarize(previous != null ? previous.text() : null, toSummarize, model, account)
+                .map(text -> {
+                    var summary = new Summary(text, tokenCounter.count(new SystemMessage(SUMMARY_PREFIX + text), model));
+                    putSummary(prefixKeys[cut], summary);
+                    summarized.increment();
+                    return withSummary(text, recent);
+                })
+                .onErrorResume(e -> {
+                    log.warn("History summarization failed, keeping only the last {} messages: {}",
+                            recent.size(), e.toString());
+                    truncated.increment();
+                    return Mono.just(List.copyOf(recent));
+                });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ai.chat.history.compactions", slimmed, LongAdder::sum)
+                .tag("action", "slimmed").register(registry);
+        FunctionCounter.builder("ai.chat.history.compactions", summaryReused, LongAdder::sum)
+                .tag("action", "summary_reused").register(registry);
+        FunctionCounter.builder("ai.chat.history.compactions", summarized, LongAdder::sum)
+                .tag("action", "summarized").register(registry);
+        FunctionCounter.builder("ai.chat.history.compactions", truncated, LongAdder::sum)
+                .tag("action", "truncated").register(registry);
+    }
+
+    /**
+     * Indice del primo messaggio da tenere perché gli ultimi stiano in {@code budget},
+     * tenendone comunque almeno {@code keepLast} e iniziando da un messaggio dell'utente.
+     */
+    private int cut(List<Message> messages, int[] counts, int budget) {
+        int cut = messages.size();
+        int tokens = 0;
+        while (cut > 0) {
+            if (messages.size() - cut >= keepLast && tokens + counts[cut - 1] > budget) {
+                break;
+            }
+            tokens += counts[--cut];
+        }
+        while (cut > 0 && cut < messages.size() - 1 && !(messages.get(cut) instanceof UserMessage)) {
+            cut++;
+        }
+        return Math.max(cut, 1);
+    }
+
+    /**
+     * Messaggi senza risultati dei tool né blocchi JSON voluminosi.
+     */
+    List<Message> slim(List<Message> messages) {
+        var result = new ArrayList<Message>(messages.size());
+        for (var message : messages) {
+            if (message instanceof ToolResponseMessage) {
+                continue;
+            }
+            var text = message.getText();
+            var slimText = text != null ? stripBulkyJson(text) : null;
+            if (message instanceof AssistantMessage assistant && assistant.hasToolCalls()) {
+                // le chiamate ai tool senza i relativi risultati non servono più
+                if (StringUtils.hasText(slimText)) {
+                    result.add(new AssistantMessage(slimText));
+                }
+            } else if (slimText != null && !slimText.equals(text)) {
+                result.add(message instanceof AssistantMessage ? new AssistantMessage(slimText)
+                        : message instanceof SystemMessage ? new SystemMessage(slimText) : new UserMessage(slimText));
+            } else {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    private String stripBulkyJson(String text) {
+        var trimmed = text.strip();
+        if (trimmed.length() > maxToolOutputChars && (trimmed.startsWith("{") || trimmed.startsWith("["))) {
+            return omitted(trimmed.length());
+        }
+        var matcher = CODE_BLOCK.matcher(text);
+        var result = new StringBuilder();
+        boolean changed = false;
+        while (matcher.find()) {
+            if (matcher.group().length() > maxToolOutputChars) {
+                matcher.appendReplacement(result, Matcher.quoteReplacement(omitted(matcher.group().length())));
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return text;
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private static String omitted(int length) {
+        return "[dati omessi: " + length + " caratteri]";
+    }
+
+    private Mono<String> summarize(String previousSummary, List<Message> messages, String model,
+                                   UsageAccounting.Account account) {
+        var transcript = new StringBuilder();
+        if (previousSummary != null) {
+            transcript.append("Riassunto precedente:\n").append(previousSummary).append("\n\n");
+        }
+        for (var message : messages) {
+            var label = switch (message.getMessageType()) {
+                case USER -> "Utente";
+                case ASSISTANT -> "Assistente";
+                case TOOL -> "Tool";
+                default -> "Sistema";
+            };
+            transcript.append(label).append(": ").append(TokenCounter.content(message)).append('\n');
+        }
+        var options = OllamaChatOptions.builder()
+                .model(StringUtils.hasText(summaryModel) ? summaryModel : model)
+                .numPredict(summaryMaxTokens)
+                .temperature(0.0)
+                .build();
+        var prompt = new Prompt(List.of(new SystemMessage(SUMMARY_INSTRUCTIONS), new UserMessage(transcript.toString())),
+                options);
+        return Mono.defer(() -> {
+            long startedAt = System.nanoTime();
+            var last = new AtomicReference<ChatResponse>();
+            return chatModel.stream(prompt)
+                    .doOnNext(last::set)
+                    .doFinally(signal -> usageAccounting.record(account, last.get(),
+                            Duration.ofNanos(System.nanoTime() - startedAt)))
+                    .mapNotNull(response -> response.getResult() != null ? response.getResult().getOutput().getText() : null)
+                    .collect(Collectors.joining())
+                    .map(String::strip)
+                    .filter(StringUtils::hasText)
+                    .switchIfEmpty(Mono.error(new IllegalStateException("empty summary")))
+                    .timeout(summaryTimeout);
+        });
+    }
+
+    private static List<Message> withSummary(String summary, List<Message> recent) {
+        var result = new ArrayList<Message>(recent.size() + 1);
+        result.add(new SystemMessage(SUMMARY_PREFIX + summary));
+        result.addAll(recent);
+        return result;
+    }
+
+    /**
+     * Chiavi dei prefissi: {@code keys[i]} identifica i primi {@code i} messaggi.
+     */
+    private static String[] prefixKeys(List<Message> messages, String model) {
+        var keys = new String[messages.size() + 1];
+        try {
+            var hash = new byte[0];
+            for (int i = 0; i < messages.size(); i++) {
+                var digest = MessageDigest.getInstance("SHA-256");
+                digest.update(hash);
+                digest.update(messages.get(i).getMessageType().name().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(TokenCounter.content(messages.get(i)).getBytes(StandardCharsets.UTF_8));
+                hash = digest.digest();
+                keys[i + 1] = model + '|' + HexFormat.of().formatHex(hash);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return keys;
+    }
+
+    /**
+     * Il prefisso più lungo, al più di {@code maxLength} messaggi, con un riassunto in cache; 0 se nessuno.
+     */
+    private synchronized int latestSummary(String[] prefixKeys, int maxLength) {
+        for (int i = maxLength; i > 0; i--) {
+            if (summaries.containsKey(prefixKeys[i])) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private synchronized Summary cachedSummary(String key) {
+        return summaries.get(key);
+    }
+
+    private synchronized void putSummary(String key, Summary summary) {
+        summaries.put(key, summary);
+        while (summaries.size() > cacheSize) {
+            summaries.remove(summaries.keySet().iterator().next());
+        }
+    }
+
+    private static int sum(int[] counts, int from) {
+        int sum = 0;
+        for (int i = from; i < counts.length; i++) {
+            sum += counts[i];
+        }
+        return sum;
+    }
+
+    private record Summary(String text, int tokens) {
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * Percorsi dei journal NDJSON su file, un file per conversazione o job batch
+ * con l'id come nome.
+ */
+public final class JournalFiles {
+
+    private static final String EXTENSION = ".ndjson";
+
+    private JournalFiles() {
+    }
+
+    /**
+     * Percorso del file di {@code id} in {@code directory}; {@code null} se l'id
+     * non è un UUID (evita path traversal con id arbitrari forniti dal client).
+     */
+    public static Path file(Path directory, String id) {
+        try {
+            return directory.resolve(UUID.fromString(id) + EXTENSION);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static boolean isJournal(Path file) {
+        return file.getFileName().toString().endsWith(EXTENSION);
+    }
+
+    /**
+     * Id a cui appartiene il file di un journal.
+     */
+    public static String idOf(Path file) {
+        var name = file.getFileName().toString();
+        return name.substring(0, name.length() - EXTENSION.length());
+    }
+}
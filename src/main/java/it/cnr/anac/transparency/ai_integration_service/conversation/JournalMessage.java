@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.UserMessage;
+
+/**
+ * Messaggio di una conversazione o di un job batch come riga di journal:
+ * ruolo ({@code user} o {@code assistant}) e testo.
+ */
+public record JournalMessage(String role, String text) {
+
+    private static final String ASSISTANT = "assistant";
+    private static final String USER = "user";
+
+    public static JournalMessage from(Message message) {
+        var role = message.getMessageType() == MessageType.ASSISTANT ? ASSISTANT : USER;
+        return new JournalMessage(role, message.getText());
+    }
+
+    public Message toMessage() {
+        return ASSISTANT.equals(role) ? new AssistantMessage(text) : new UserMessage(text);
+    }
+}
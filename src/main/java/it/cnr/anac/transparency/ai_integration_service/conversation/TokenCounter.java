@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Stima dei token dei messaggi e dimensione della finestra di contesto per modello.
+ * <p>
+ * I token sono contati con il tokenizer {@code cl100k} e corretti con un fattore
+ * per modello ({@code ai.chat.history.token-factors}, default
+ * {@code ai.chat.history.token-factor}): i tokenizer dei modelli Ollama producono
+ * in genere più token per un testo in italiano. La finestra di contesto è
+ * {@code ai.chat.history.context-windows} per il modello, altrimenti
+ * {@code ai.chat.history.context-window}. Le due proprietà per modello sono
+ * elenchi di coppie {@code modello=valore} separate da virgola, perché i nomi dei
+ * modelli contengono {@code :} e {@code .}.
+ * <p>
+ * Il conteggio del tokenizer è memorizzato per messaggio finché il messaggio è
+ * in uso: lo storico di una conversazione è ricontato a ogni turno, ma i suoi
+ * messaggi restano le stesse istanze e vanno tokenizzati una volta sola. Dei
+ * messaggi dei tool si contano anche nomi, argomenti e risultati (vedi
+ * {@link #content(Message)}), che {@link Message#getText()} non include.
+ */
+@Component
+public class TokenCounter {
+
+    // ruolo e delimitatori del template di chat
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    private final TokenCountEstimator estimator = new JTokkitTokenCountEstimator();
+    private final int defaultContextWindow;
+    private final double defaultTokenFactor;
+    private final Map<String, Integer> contextWindows = new HashMap<>();
+    private final Map<String, Double> tokenFactors = new HashMap<>();
+    // token cl100k per messaggio, prima del fattore del modello
+    private final Map<Message, Integer> estimates = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public TokenCounter(@Value("${ai.chat.history.context-window:8192}") int defaultContextWindow,
+                        @Value("${ai.chat.history.context-windows:}") List<String> contextWindows,
+                        @Value("${ai.chat.history.token-factor:1.2}") double defaultTokenFactor,
+                        @Value("${ai.chat.history.token-factors:}") List<String> tokenFactors) {
+        this.defaultContextWindow = defaultContextWindow;
+        this.defaultTokenFactor = defaultTokenFactor;
+        parse(contextWindows).forEach((model, value) -> this.contextWindows.put(model, Integer.parseInt(value)));
+        parse(tokenFactors).forEach((model, value) -> this.tokenFactors.put(model, Double.parseDouble(value)));
+    }
+
+    public int contextWindow(String model) {
+        return contextWindows.getOrDefault(model, defaultContextWindow);
+    }
+
+    public int count(Message message, String model) {
+        int tokens = estimate(message);
+        return (int) Math.ceil(tokens * tokenFactors.getOrDefault(model, defaultTokenFactor)) + MESSAGE_OVERHEAD;
+    }
+
+    public int count(List<Message> messages, String model) {
+        int total = 0;
+        for (var message : messages) {
+            total += count(message, model);
+        }
+        return total;
+    }
+
+    private int estimate(Message message) {
+        var cached = estimates.get(message);
+        if (cached != null) {
+            return cached;
+        }
+        var text = content(message);
+        int tokens = text.isEmpty() ? 0 : estimator.estimate(text);
+        estimates.put(message, tokens);
+        return tokens;
+    }
+
+    /**
+     * Contenuto del messaggio come arriva al modello: il testo, più le chiamate
+     * ai tool (nome e argomenti) di un messaggio dell'assistente e i risultati
+     * (nome e dati) di un messaggio dei tool.
+     */
+    static String content(Message message) {
+        var text = message.getText() != null ? message.getText() : "";
+        if (message instanceof ToolResponseMessage toolResponses) {
+            var result = new StringBuilder(text);
+            for (var response : toolResponses.getResponses()) {
+                result.append(response.name()).append('\n').append(response.responseData()).append('\n');
+            }
+            return result.toString();
+        }
+        if (message instanceof AssistantMessage assistant && assistant.hasToolCalls()) {
+            var result = new StringBuilder(text);
+            for (var toolCall : assistant.getToolCalls()) {
+                result.append('\n').append(toolCall.name()).append(' ').append(toolCall.arguments());
+            }
+            return result.toString();
+        }
+        return text;
+    }
+
+    private static Map<String, String> parse(List<String> entries) {
+        var result = new HashMap<String, String>();
+        for (var entry : entries) {
+            int separator = entry.lastIndexOf('=');
+            if (separator > 0) {
+                result.put(entry.substring(0, separator).strip(), entry.substring(separator + 1).strip());
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.ollama;
+
+/**
+ * Limite di concorrenza di un nodo che si adatta alla latenza osservata
+ * (algoritmo a gradiente).
+ * <p>
+ * La latenza di ogni richiesta fino alla prima risposta viene confrontata con
+ * una media di lungo periodo: finché resta in linea il limite cresce di circa
+ * {@code sqrt(limite)}, quando sale (Ollama sta accodando internamente) il
+ * limite scende in proporzione. Il limite non cresce se il nodo non lo sta
+ * usando, per non gonfiarlo nei periodi di basso carico.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private static final double LONG_TERM_SMOOTHING = 0.05;
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double TOLERANCE = 1.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private double longTermLatency;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.clamp(initialLimit, minLimit, maxLimit);
+    }
+
+    public synchronized int get() {
+        return (int) limit;
+    }
+
+    /**
+     * Aggiorna il limite con la latenza di una richiesta.
+     *
+     * @param latencyNanos latenza fino alla prima risposta del nodo
+     * @param inFlight     richieste in corso sul nodo quando la richiesta è partita
+     */
+    public synchronized void onSample(long latencyNanos, int inFlight) {
+        if (latencyNanos <= 0) {
+            return;
+        }
+        longTermLatency = longTermLatency == 0
+                ? latencyNanos
+                : longTermLatency + LONG_TERM_SMOOTHING * (latencyNanos - longTermLatency);
+        if (inFlight < limit / 2) {
+            // nodo poco carico: il campione non dice nulla sulla capacità
+            return;
+        }
+        double gradient = Math.clamp(TOLERANCE * longTermLatency / latencyNanos, 0.5, 1.0);
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.clamp(limit + LIMIT_SMOOTHING * (target - limit), minLimit, maxLimit);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.ollama;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mantiene caricati in memoria sui nodi Ollama i modelli di
+ * {@code ai.ollama.warmup.models}: all'avvio e poi ogni
+ * {@code ai.ollama.warmup.interval} invia a ogni nodo sano una richiesta
+ * {@code /api/generate} senza prompt, che carica il modello (se non lo è già) e
+ * ne rinnova il {@code keep_alive}. Così la prima richiesta dopo un periodo di
+ * inattività non paga il caricamento dei pesi in GPU.
+ * <p>
+ * L'intervallo deve essere minore del {@code keep_alive}. Il caricamento avviene
+ * in background: l'avvio dell'applicazione non lo attende.
+ */
+@Slf4j
+@Component
+public class ModelWarmUp {
+
+    private final OllamaBackendPool backendPool;
+    private final MeterRegistry registry;
+    private final boolean enabled;
+    private final List<String> models;
+    private final String keepAlive;
+    private final Duration timeout;
+
+    // Coppie nodo/modello con un caricamento in corso
+    private final Set<String> inProgress = ConcurrentHashMap.newKeySet();
+
+    public ModelWarmUp(OllamaBackendPool backendPool, MeterRegistry registry,
+                       @Value("${ai.ollama.warmup.enabled:true}") boolean enabled,
+                       @Value("${ai.ollama.warmup.models:${spring.ai.ollama.chat.options.model:}}") List<String> models,
+                       @Value("${spring.ai.ollama.chat.options.keep-alive:30m}") String keepAlive,
+                       @Value("${ai.ollama.warmup.timeout:5m}") Duration timeout) {
+        this.backendPool = backendPool;
+        this.registry = registry;
+        this.enabled = enabled;
+        this.models = models.stream().filter(model -> !model.isBlank()).map(String::strip).toList();
+        this.keepAlive = keepAlive;
+        this.timeout = timeout;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        warmUp().subscribe();
+    }
+
+    @Scheduled(fixedDelayString = "${ai.ollama.warmup.interval:10m}",
+            initialDelayString = "${ai.ollama.warmup.interval:10m}")
+    public void keepResident() {
+        warmUp().block();
+    }
+
+    Mono<Void> warmUp() {
+        if (!enabled || models.isEmpty()) {
+            return Mono.empty();
+        }
+        return Flux.fromIterable(backendPool.getBackends())
+                .filter(OllamaBackend::isHealthy)
+                .flatMap(backend -> Flux.fromIterable(models)
+                        // un nodo carica un modello per volta
+                        .concatMap(model -> load(backend, model)))
+                .then();
+    }
+
+    private Mono<Void> load(OllamaBackend backend, String model) {
+        var key = backend.getBaseUrl() + '|' + model;
+        if (!inProgress.add(key)) {
+            return Mono.empty();
+        }
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            var wasLoaded = backend.getLoadedModels().contains(OllamaBackendPool.normalizeModel(model));
+            return backend.getProbeClient().post()
+                    .uri("/api/generate")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("model", model, "keep_alive", keepAlive))
+                    .retrieve()
+                    .toBodilessEntity()
+                    .timeout(timeout)
+                    .doOnSuccess(response -> {
+                        if (!wasLoaded) {
+                            log.info("Model {} loaded on Ollama backend {} in {} ms", model, backend,
+                                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        }
+                        record(backend, model, wasLoaded ? "refreshed" : "loaded", start);
+                    })
+                    .doOnError(e -> record(backend, model, "error", start));
+        }).onErrorResume(e -> {
+            log.warn("Unable to warm up model {} on Ollama backend {}: {}", model, backend, e.getMessage());
+            return Mono.empty();
+        }).doFinally(signal -> inProgress.remove(key)).then();
+    }
+
+    private void record(OllamaBackend backend, String model, String outcome, long start) {
+        Timer.builder("ai.ollama.warmup")
+                .description("Richieste di caricamento dei modelli sui nodi Ollama")
+                .tags("backend", backend.getName(), "model", model, "outcome", outcome)
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.ollama;
+
+import lombok.Getter;
+import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Un nodo Ollama del pool con il suo stato di routing: richieste in corso e
+ * limite di concorrenza adattivo, throughput misurato, modelli caricati in memoria, esito delle sonde di salute,
+ * espulsione passiva e circuit breaker.
+ * <p>
+ * Lo stato del circuit breaker e dell'espulsione è protetto dal monitor
+ * dell'istanza; contatori e valori letti a ogni selezione sono volatili o atomici.
+ */
+public class OllamaBackend {
+
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Prenotazione del nodo per una richiesta, da restituire al termine.
+     * {@code trial} indica la richiesta di prova del circuito half-open: solo il
+     * suo esito chiude o riapre il circuito.
+     */
+    public record Lease(OllamaBackend backend, boolean trial) {
+    }
+
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    @Getter
+    private final String baseUrl;
+    /** {@code host:porta} del nodo, usato nei log e nei tag delle metriche al posto dell'URL. */
+    @Getter
+    private final String name;
+    @Getter
+    private final OllamaChatModel chatModel;
+    @Getter
+    private final WebClient probeClient;
+    @Getter
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder ejections = new LongAdder();
+
+    /** Token generati al secondo (media mobile esponenziale), 0 finché non misurato. */
+    private volatile double tokensPerSecond;
+    private volatile boolean healthy = true;
+    private volatile Set<String> loadedModels = Set.of();
+
+    // Espulsione passiva (outlier detection)
+    private int consecutiveFailures;
+    private int ejectionCount;
+    private Instant ejectedUntil = Instant.MIN;
+
+    // Circuit breaker a finestra scorrevole sugli ultimi esiti
+    private final boolean[] outcomes;
+    private int outcomeIndex;
+    private int recordedOutcomes;
+    private int failuresInWindow;
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private Instant openUntil = Instant.MIN;
+    private boolean trialInFlight;
+
+    OllamaBackend(String baseUrl, OllamaChatModel chatModel, WebClient probeClient,
+                  AdaptiveConcurrencyLimit concurrencyLimit, int circuitWindowSize) {
+        this.baseUrl = baseUrl;
+        this.name = name(baseUrl);
+        this.chatModel = chatModel;
+        this.probeClient = probeClient;
+        this.concurrencyLimit = concurrencyLimit;
+        this.outcomes = new boolean[circuitWindowSize];
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public double getTokensPerSecond() {
+        return tokensPerSecond;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public Set<String> getLoadedModels() {
+        return loadedModels;
+    }
+
+    public long getEjections() {
+        return ejections.sum();
+    }
+
+    public synchronized CircuitState getCircuitState() {
+        return circuitState;
+    }
+
+    /**
+     * Se il nodo può ricevere nuove richieste: sano secondo le sonde, non espulso
+     * e con il circuito chiuso (o aperto da abbastanza tempo da tentare una prova).
+     */
+    synchronized boolean isAvailable(Instant now) {
+        if (!healthy || now.isBefore(ejectedUntil)) {
+            return false;
+        }
+        return switch (circuitState) {
+            case CLOSED -> true;
+            case OPEN -> !now.isBefore(openUntil);
+            case HALF_OPEN -> !trialInFlight;
+        };
+    }
+
+    synchronized boolean isEjected(Instant now) {
+        return now.isBefore(ejectedUntil);
+    }
+
+    /**
+     * Prenota il nodo per una richiesta. In half-open è ammessa una sola
+     * richiesta di prova alla volta.
+     *
+     * @return la prenotazione, {@code null} se il nodo non è disponibile
+     */
+    synchronized Lease tryAcquire(Instant now) {
+        if (!isAvailable(now)) {
+            return null;
+        }
+        boolean trial = circuitState != CircuitState.CLOSED;
+        if (trial) {
+            circuitState = CircuitState.HALF_OPEN;
+            trialInFlight = true;
+        }
+        outstanding.incrementAndGet();
+        return new Lease(this, trial);
+    }
+
+    /**
+     * Rilascia la prenotazione quando la richiesta termina per annullamento
+     * senza un esito utile per il circuit breaker.
+     */
+    synchronized void release(Lease lease) {
+        outstanding.decrementAndGet();
+        if (lease.trial()) {
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Registra una richiesta riuscita. Le richieste partite prima dell'apertura
+     * del circuito non ne cambiano lo stato.
+     */
+    synchronized void onSuccess(Lease lease) {
+        outstanding.decrementAndGet();
+        consecutiveFailures = 0;
+        ejectionCount = 0;
+        if (lease.trial()) {
+            trialInFlight = false;
+            if (circuitState == CircuitState.HALF_OPEN) {
+                circuitState = CircuitState.CLOSED;
+                resetWindow();
+            }
+        }
+        if (circuitState == CircuitState.CLOSED) {
+            recordOutcome(false);
+        }
+    }
+
+    /**
+     * Registra un errore del nodo. Solo la richiesta di prova riapre un circuito
+     * half-open, e solo a circuito chiuso l'errore entra nella finestra.
+     *
+     * @return {@code true} se l'errore ha raggiunto la soglia di errori consecutivi
+     * per l'espulsione (che il pool può comunque negare)
+     */
+    synchronized boolean onFailure(Lease lease, Instant now, int consecutiveFailureThreshold,
+                                   double failureRateThreshold, Duration openDuration) {
+        outstanding.decrementAndGet();
+        consecutiveFailures++;
+        if (lease.trial()) {
+            trialInFlight = false;
+            if (circuitState == CircuitState.HALF_OPEN) {
+                // la richiesta di prova è fallita: il circuito si riapre
+                open(now, openDuration);
+            }
+        } else if (circuitState == CircuitState.CLOSED) {
+            recordOutcome(true);
+            if (recordedOutcomes == outcomes.length
+                    && failuresInWindow >= failureRateThreshold * outcomes.length) {
+                open(now, openDuration);
+            }
+        }
+        return consecutiveFailures >= consecutiveFailureThreshold;
+    }
+
+    /**
+     * Espelle il nodo per un tempo che cresce a ogni espulsione consecutiva.
+     */
+    synchronized void eject(Instant now, Duration baseEjectionTime, Duration maxEjectionTime) {
+        ejectionCount++;
+        var duration = baseEjectionTime.multipliedBy(ejectionCount);
+        ejectedUntil = now.plus(duration.compareTo(maxEjectionTime) > 0 ? maxEjectionTime : duration);
+        consecutiveFailures = 0;
+        ejections.increment();
+    }
+
+    void onProbe(boolean healthy, Set<String> loadedModels) {
+        this.healthy = healthy;
+        if (healthy) {
+            this.loadedModels = loadedModels;
+        }
+    }
+
+    /**
+     * Aggiorna la stima del throughput con una generazione appena conclusa.
+     */
+    void recordThroughput(int evalCount, Duration evalDuration) {
+        if (evalCount <= 0 || evalDuration.isZero() || evalDuration.isNegative()) {
+            return;
+        }
+        double sample = evalCount / (evalDuration.toNanos() / 1e9);
+        double current = tokensPerSecond;
+        tokensPerSecond = current == 0 ? sample : current + THROUGHPUT_SMOOTHING * (sample - current);
+    }
+
+    private void open(Instant now, Duration openDuration) {
+        circuitState = CircuitState.OPEN;
+        openUntil = now.plus(openDuration);
+        resetWindow();
+    }
+
+    private void recordOutcome(boolean failure) {
+        if (recordedOutcomes == outcomes.length && outcomes[outcomeIndex]) {
+            failuresInWindow--;
+        }
+        outcomes[outcomeIndex] = failure;
+        if (failure) {
+            failuresInWindow++;
+        }
+        outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+        recordedOutcomes = Math.min(recordedOutcomes + 1, outcomes.length);
+    }
+
+    private void resetWindow() {
+        Arrays.fill(outcomes, false);
+        outcomeIndex = 0;
+        recordedOutcomes = 0;
+        failuresInWindow = 0;
+    }
+
+    /**
+     * Nome del nodo ricavato dall'URL: solo host e porta, senza credenziali,
+     * percorso o parametri che l'URL configurato potrebbe contenere.
+     */
+    static String name(String baseUrl) {
+        var uri = URI.create(baseUrl);
+        var scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort() >= 0 ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+        return String.valueOf(uri.getHost()).toLowerCase(Locale.ROOT) + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
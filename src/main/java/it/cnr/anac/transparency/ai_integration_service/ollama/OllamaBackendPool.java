@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.ollama;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.observation.ObservationRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.model.ollama.autoconfigure.OllamaChatProperties;
+import org.springframework.ai.model.ollama.autoconfigure.OllamaInitializationProperties;
+import org.springframework.ai.model.tool.DefaultToolExecutionEligibilityPredicate;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.model.tool.ToolExecutionEligibilityPredicate;
+import org.springframework.ai.ollama.OllamaChatModel;
+import org.springframework.ai.ollama.api.OllamaApi;
+import org.springframework.ai.ollama.management.ModelManagementOptions;
+import org.springframework.ai.ollama.management.PullModelStrategy;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Pool dei nodi Ollama configurati in {@code ai.ollama.backends} (per default il
+ * solo {@code spring.ai.ollama.base-url}).
+ * <p>
+ * Ogni richiesta viene instradata sul nodo disponibile con il costo minore: le
+ * richieste in corso, pesate con il throughput misurato (token/s) se la strategia
+ * è {@code weighted}, più una penalità se il modello richiesto non è già caricato
+ * in memoria sul nodo (affinità di modello, per evitare lo swap dei pesi in GPU).
+ * <p>
+ * La salute dei nodi è verificata attivamente interrogando {@code /api/ps}, che
+ * fornisce anche i modelli caricati. In modo passivo, gli errori consecutivi
+ * espellono temporaneamente un nodo (al più {@code max-ejection-percent} del pool)
+ * e un circuit breaker per nodo si apre quando la quota di errori sulle ultime
+ * richieste supera la soglia.
+ */
+@Slf4j
+@Component
+public class OllamaBackendPool implements MeterBinder {
+
+    public enum Strategy { LEAST_OUTSTANDING, WEIGHTED }
+
+    private static final double SATURATION_PENALTY = 1_000;
+
+    private final List<OllamaBackend> backends;
+    private final Clock clock;
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    @Value("${ai.ollama.routing.strategy:weighted}")
+    Strategy strategy;
+    @Value("${ai.ollama.routing.model-affinity:true}")
+    boolean modelAffinity;
+    @Value("${ai.ollama.routing.model-swap-penalty:4}")
+    double modelSwapPenalty;
+    @Value("${ai.ollama.routing.max-failover-attempts:2}")
+    int maxFailoverAttempts;
+    @Value("${ai.ollama.health.timeout:2s}")
+    Duration probeTimeout;
+    @Value("${ai.ollama.outlier.consecutive-failures:3}")
+    int consecutiveFailures;
+    @Value("${ai.ollama.outlier.base-ejection-time:30s}")
+    Duration baseEjectionTime;
+    @Value("${ai.ollama.outlier.max-ejection-time:5m}")
+    Duration maxEjectionTime;
+    @Value("${ai.ollama.outlier.max-ejection-percent:50}")
+    int maxEjectionPercent;
+    @Value("${ai.ollama.circuit-breaker.failure-rate-threshold:0.5}")
+    double failureRateThreshold;
+    @Value("${ai.ollama.circuit-breaker.open-duration:30s}")
+    Duration openDuration;
+
+    public OllamaBackendPool(@Value("${ai.ollama.backends:${spring.ai.ollama.base-url:http://localhost:11434}}") List<String> baseUrls,
+                             @Value("${ai.ollama.circuit-breaker.window-size:20}") int circuitWindowSize,
+                             @Value("${ai.ollama.concurrency.initial-limit:4}") int initialLimit,
+                             @Value("${ai.ollama.concurrency.min-limit:1}") int minLimit,
+                             @Value("${ai.ollama.concurrency.max-limit:32}") int maxLimit,
+                             OllamaChatModel defaultChatModel,
+                             @Value("${spring.ai.ollama.base-url:http://localhost:11434}") String defaultBaseUrl,
+                             OllamaChatProperties chatProperties,
+                             OllamaInitializationProperties initProperties,
+                             ToolCallingManager toolCallingManager,
+                             ObjectProvider<ToolExecutionEligibilityPredicate> toolExecutionEligibilityPredicate,
+                             ObjectProvider<ObservationRegistry> observationRegistry,
+                             RetryTemplate retryTemplate,
+                             ObjectProvider<RestClient.Builder> restClientBuilder,
+                             ObjectProvider<WebClient.Builder> webClientBuilder,
+                             ResponseErrorHandler responseErrorHandler) {
+        this.clock = Clock.systemUTC();
+        var webClients = webClientBuilder.getIfAvailable(WebClient::builder);
+        var pullStrategy = initProperties.getChat().isInclude() ? initProperties.getPullModelStrategy() : PullModelStrategy.NEVER;
+        this.backends = new ArrayList<>();
+        for (var baseUrl : baseUrls.stream().map(String::trim).filter(url -> !url.isEmpty()).distinct().toList()) {
+            OllamaChatModel chatModel;
+            if (normalizeUrl(baseUrl).equals(normalizeUrl(defaultBaseUrl))) {
+                // il nodo principale riusa il modello creato dall'autoconfigurazione
+                chatModel = defaultChatModel;
+            } else {
+                var ollamaApi = OllamaApi.builder()
+                        .baseUrl(baseUrl)
+                        .restClientBuilder(restClientBuilder.getIfAvailable(RestClient::builder))
+                        .webClientBuilder(webClients.clone())
+                        .responseErrorHandler(responseErrorHandler)
+                        .build();
+                chatModel = OllamaChatModel.builder()
+                        .ollamaApi(ollamaApi)
+                        .defaultOptions(chatProperties.getOptions())
+                        .toolCallingManager(toolCallingManager)
+                        .toolExecutionEligibilityPredicate(
+                                toolExecutionEligibilityPredicate.getIfUnique(DefaultToolExecutionEligibilityPredicate::new))
+                        .observationRegistry(observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP))
+                        .modelManagementOptions(new ModelManagementOptions(pullStrategy,
+                                initProperties.getChat().getAdditionalModels(), initProperties.getTimeout(),
+                                initProperties.getMaxRetries()))
+                        .retryTemplate(retryTemplate)
+                        .build();
+            }
+            backends.add(new OllamaBackend(baseUrl, chatModel, webClients.clone().baseUrl(baseUrl).build(),
+                    new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit), circuitWindowSize));
+        }
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("Nessun backend Ollama configurato in ai.ollama.backends");
+        }
+        log.info("Ollama backend pool: {}", backends);
+    }
+
+    OllamaBackendPool(List<OllamaBackend> backends, Clock clock) {
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("Nessun backend Ollama configurato in ai.ollama.backends");
+        }
+        this.backends = new ArrayList<>(backends);
+        this.clock = clock;
+    }
+
+    public List<OllamaBackend> getBackends() {
+        return List.copyOf(backends);
+    }
+
+    public int getMaxFailoverAttempts() {
+        return maxFailoverAttempts;
+    }
+
+    /**
+     * Richieste che il pool può servire contemporaneamente: la somma dei limiti
+     * di concorrenza adattivi dei nodi disponibili.
+     */
+    public int capacity() {
+        var now = clock.instant();
+        return backends.stream()
+                .filter(backend -> backend.isAvailable(now))
+                .mapToInt(backend -> backend.getConcurrencyLimit().get())
+                .sum();
+    }
+
+    /**
+     * Sceglie e prenota il nodo per una richiesta verso {@code model}, escludendo
+     * i nodi già tentati. Se nessun nodo è disponibile risponde 503. La
+     * prenotazione va chiusa con {@link #onSuccess}, {@link #onFailure} o
+     * {@link #release}.
+     */
+    public OllamaBackend.Lease acquire(String model, Set<OllamaBackend> excluded) {
+        var wanted = normalizeModel(model);
+        while (true) {
+            var now = clock.instant();
+            OllamaBackend best = null;
+            double bestCost = Double.MAX_VALUE;
+            double meanThroughput = meanThroughput();
+            // partenza casuale: a parità di costo il carico si distribuisce tra i nodi
+            int offset = ThreadLocalRandom.current().nextInt(backends.size());
+            for (int i = 0; i < backends.size(); i++) {
+                var backend = backends.get((offset + i) % backends.size());
+                if (excluded.contains(backend) || !backend.isAvailable(now)) {
+                    continue;
+                }
+                double cost = cost(backend, wanted, meanThroughput);
+                if (cost < bestCost) {
+                    best = backend;
+                    bestCost = cost;
+                }
+            }
+            if (best == null) {
+                exhausted.increment();
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Nessun backend Ollama disponibile");
+            }
+            var lease = best.tryAcquire(now);
+            if (lease != null) {
+                return lease;
+            }
+            // un'altra richiesta ha preso l'unico slot di prova del circuito: si ripete la scelta
+        }
+    }
+
+    void onSuccess(OllamaBackend.Lease lease) {
+        lease.backend().onSuccess(lease);
+    }
+
+    void release(OllamaBackend.Lease lease) {
+        lease.backend().release(lease);
+    }
+
+    void onFailure(OllamaBackend.Lease lease, Throwable error) {
+        var backend = lease.backend();
+        var now = clock.instant();
+        var wasOpen = backend.getCircuitState() == OllamaBackend.CircuitState.OPEN;
+        if (backend.onFailure(lease, now, consecutiveFailures, failureRateThreshold, openDuration) && canEject(now)) {
+            backend.eject(now, baseEjectionTime, maxEjectionTime);
+            log.warn("Ollama backend {} ejected after {} consecutive failures: {}",
+                    backend, consecutiveFailures, error.getMessage());
+        }
+        if (!wasOpen && backend.getCircuitState() == OllamaBackend.CircuitState.OPEN) {
+            log.warn("Circuit breaker opened for Ollama backend {}", backend);
+        }
+    }
+
+    void onFailover(OllamaBackend backend, Throwable error) {
+        failovers.increment();
+        log.warn("Ollama backend {} failed before the first token, retrying on another backend: {}",
+                backend, error.getMessage());
+    }
+
+    /**
+     * Se l'errore è imputabile al nodo Ollama (connessione, timeout, 5xx) e non,
+     * ad esempio, a un tool MCP o a una richiesta non valida.
+     */
+    static boolean isBackendFailure(Throwable error) {
+        for (var cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof WebClientResponseException e) {
+                return e.getStatusCode().is5xxServerError();
+            }
+            if (cause instanceof WebClientRequestException || cause instanceof TimeoutException
+                    || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sonda attiva: {@code /api/ps} risponde solo se il nodo è raggiungibile e
+     * restituisce i modelli attualmente caricati in memoria.
+     * <p>
+     * Le sonde sono asincrone e non occupano il thread dello scheduler; se quelle
+     * del giro precedente non sono ancora terminate il giro viene saltato.
+     */
+    @Scheduled(fixedDelayString = "${ai.ollama.health.interval:10s}")
+    public void probe() {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+        probeAll()
+                .doFinally(signal -> probing.set(false))
+                .subscribe();
+    }
+
+    /**
+     * Interroga tutti i nodi in parallelo, ciascuno con il timeout {@code ai.ollama.health.timeout}.
+     */
+    Mono<Void> probeAll() {
+        return Flux.fromIterable(backends)
+                .flatMap(backend -> backend.getProbeClient().get()
+                        .uri("/api/ps")
+                        .retrieve()
+                        .bodyToMono(RunningModels.class)
+                        .timeout(probeTimeout)
+                        .map(running -> running.models() == null ? Set.<String>of() : running.models().stream()
+                                .map(RunningModel::name)
+                                .map(OllamaBackendPool::normalizeModel)
+                                .collect(Collectors.toUnmodifiableSet()))
+                        .doOnNext(models -> {
+                            if (!backend.isHealthy()) {
+                                log.info("Ollama backend {} is healthy again", backend);
+                            }
+                            backend.onProbe(true, models);
+                        })
+                        .onErrorResume(e -> {
+                            if (backend.isHealthy()) {
+                                log.warn("Ollama backend {} failed health probe: {}", backend, e.getMessage());
+                            }
+                            backend.onProbe(false, Set.of());
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        for (var backend : backends) {
+            // host:porta e non l'URL, che può contenere credenziali o parametri
+            var name = backend.getName();
+            Gauge.builder("ai.ollama.backend.outstanding", backend, OllamaBackend::getOutstanding)
+                    .tag("backend", name).register(registry);
+            Gauge.builder("ai.ollama.backend.tokens-per-second", backend, OllamaBackend::getTokensPerSecond)
+                    .tag("backend", name).register(registry);
+            Gauge.builder("ai.ollama.backend.concurrency-limit", backend, b -> b.getConcurrencyLimit().get())
+                    .tag("backend", name).register(registry);
+            Gauge.builder("ai.ollama.backend.available", backend, b -> b.isAvailable(clock.instant()) ? 1 : 0)
+                    .tag("backend", name).register(registry);
+            FunctionCounter.builder("ai.ollama.backend.ejections", backend, OllamaBackend::getEjections)
+                    .tag("backend", name).register(registry);
+        }
+        FunctionCounter.builder("ai.ollama.backend.failovers", failovers, LongAdder::sum).register(registry);
+        FunctionCounter.builder("ai.ollama.backend.exhausted", exhausted, LongAdder::sum).register(registry);
+    }
+
+    private double cost(OllamaBackend backend, String model, double meanThroughput) {
+        double load = backend.getOutstanding() + 1;
+        if (backend.getOutstanding() >= backend.getConcurrencyLimit().get()) {
+            // nodo al limite di concorrenza: scelto solo se lo sono tutti
+            load += SATURATION_PENALTY;
+        }
+        if (modelAffinity && model != null && !backend.getLoadedModels().contains(model)) {
+            load += modelSwapPenalty;
+        }
+        if (strategy == Strategy.WEIGHTED && meanThroughput > 0 && backend.getTokensPerSecond() > 0) {
+            // un nodo due volte più veloce della media regge il doppio delle richieste
+            return load * meanThroughput / backend.getTokensPerSecond();
+        }
+        return load;
+    }
+
+    private double meanThroughput() {
+        return backends.stream()
+                .mapToDouble(OllamaBackend::getTokensPerSecond)
+                .filter(tps -> tps > 0)
+                .average()
+                .orElse(0);
+    }
+
+    private boolean canEject(Instant now) {
+        long ejected = backends.stream().filter(backend -> backend.isEjected(now)).count();
+        return (ejected + 1) * 100 <= (long) maxEjectionPercent * backends.size();
+    }
+
+    static String normalizeModel(String model) {
+        if (model == null || model.isBlank()) {
+            return null;
+        }
+        return model.contains(":") ? model : model + ":latest";
+    }
+
+    private static String normalizeUrl(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record RunningModels(List<RunningModel> models) {
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    record RunningModel(String name) {
+    }
+}
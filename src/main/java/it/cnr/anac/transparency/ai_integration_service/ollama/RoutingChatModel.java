@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.ollama;
+
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link ChatModel} che distribuisce le richieste sui nodi di {@link OllamaBackendPool}.
+ * <p>
+ * È il modello usato dal {@code ChatClient}: ogni richiesta (compresi i giri di
+ * tool calling, che restano sullo stesso nodo) viene eseguita dal modello Ollama
+ * del nodo scelto. Se il nodo fallisce prima di aver prodotto la prima risposta
+ * la richiesta viene ripetuta su un altro nodo; dopo il primo token l'errore
+ * viene propagato, perché il client ha già ricevuto parte della risposta.
+ * La latenza fino alla prima risposta alimenta il limite di concorrenza
+ * adattivo del nodo.
+ */
+@Primary
+@Component
+public class RoutingChatModel implements ChatModel {
+
+    private static final String METADATA_EVAL_COUNT = "eval-count";
+    private static final String METADATA_EVAL_DURATION = "eval-duration";
+
+    private final OllamaBackendPool pool;
+
+    public RoutingChatModel(OllamaBackendPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        var model = modelOf(prompt);
+        var tried = new HashSet<OllamaBackend>();
+        while (true) {
+            var lease = pool.acquire(model, tried);
+            var backend = lease.backend();
+            tried.add(backend);
+            ChatResponse response;
+            try {
+                response = backend.getChatModel().call(prompt);
+            } catch (RuntimeException e) {
+                if (!OllamaBackendPool.isBackendFailure(e)) {
+                    pool.release(lease);
+                    throw e;
+                }
+                pool.onFailure(lease, e);
+                if (tried.size() > pool.getMaxFailoverAttempts()) {
+                    throw e;
+                }
+                pool.onFailover(backend, e);
+                continue;
+            }
+            recordThroughput(backend, response);
+            pool.onSuccess(lease);
+            return response;
+        }
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        var model = modelOf(prompt);
+        return Flux.defer(() -> stream(prompt, model, new HashSet<>()));
+    }
+
+    @Override
+    public ChatOptions getDefaultOptions() {
+        return pool.getBackends().getFirst().getChatModel().getDefaultOptions();
+    }
+
+    private Flux<ChatResponse> stream(Prompt prompt, String model, Set<OllamaBackend> tried) {
+        var lease = pool.acquire(model, tried);
+        var backend = lease.backend();
+        tried.add(backend);
+        var inFlight = backend.getOutstanding();
+        var startedAt = System.nanoTime();
+        var started = new AtomicBoolean();
+        // esito registrato una sola volta: errore, completamento o annullamento del client
+        var settled = new AtomicBoolean();
+        return backend.getChatModel().stream(prompt)
+                .doOnNext(response -> {
+                    if (started.compareAndSet(false, true)) {
+                        backend.getConcurrencyLimit().onSample(System.nanoTime() - startedAt, inFlight);
+                    }
+                    recordThroughput(backend, response);
+                })
+                .doOnComplete(() -> {
+                    if (settled.compareAndSet(false, true)) {
+                        pool.onSuccess(lease);
+                    }
+                })
+                .doFinally(signal -> {
+                    if (signal != SignalType.ON_COMPLETE && settled.compareAndSet(false, true)) {
+                        pool.release(lease);
+                    }
+                })
+                .onErrorResume(e -> {
+                    if (!OllamaBackendPool.isBackendFailure(e) || !settled.compareAndSet(false, true)) {
+                        return Flux.error(e);
+                    }
+                    pool.onFailure(lease, e);
+                    if (started.get() || tried.size() > pool.getMaxFailoverAttempts()) {
+                        return Flux.error(e);
+                    }
+                    pool.onFailover(backend, e);
+                    return Flux.defer(() -> stream(prompt, model, tried));
+                });
+    }
+
+    private String modelOf(Prompt prompt) {
+        var options = prompt.getOptions() != null ? prompt.getOptions() : getDefaultOptions();
+        return OllamaBackendPool.normalizeModel(options != null ? options.getModel() : null);
+    }
+
+    private static void recordThroughput(OllamaBackend backend, ChatResponse response) {
+        if (response == null || response.getMetadata() == null) {
+            return;
+        }
+        // Ollama riporta conteggi e durate solo nell'ultimo chunk della generazione
+        Integer evalCount = response.getMetadata().get(METADATA_EVAL_COUNT);
+        Duration evalDuration = response.getMetadata().get(METADATA_EVAL_DURATION);
+        if (evalCount != null && evalDuration != null) {
+            backend.recordThroughput(evalCount, evalDuration);
+        }
+    }
+}
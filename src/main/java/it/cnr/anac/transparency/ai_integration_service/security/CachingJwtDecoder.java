@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link JwtDecoder} che ricorda i token già verificati: un client che apre molti
+ * stream con lo stesso bearer token paga parsing, verifica della firma e
+ * validazione dei claim solo alla prima richiesta.
+ * <p>
+ * La chiave è lo SHA-256 del token; una voce vale fino alla scadenza del token
+ * ({@code exp}) e comunque non oltre {@code ai.security.jwt.cache.max-ttl}, e le
+ * voci sono rimosse in ordine LRU oltre {@code ai.security.jwt.cache.max-entries}.
+ * I token rifiutati non sono memorizzati.
+ */
+public class CachingJwtDecoder implements JwtDecoder, MeterBinder {
+
+    private static final String METRIC_NAME = "ai.security.jwt.cache";
+
+    private final JwtDecoder delegate;
+    private final boolean enabled;
+    private final int maxEntries;
+    private final Duration maxTtl;
+    private final Clock clock = Clock.systemUTC();
+
+    // Ordinata per accesso (LRU), protetta dal monitor dell'istanza
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CachingJwtDecoder(JwtDecoder delegate, boolean enabled, int maxEntries, Duration maxTtl) {
+        this.delegate = delegate;
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.maxTtl = maxTtl;
+    }
+
+    @Override
+    public Jwt decode(String token) throws JwtException {
+        if (!enabled || token == null) {
+            return delegate.decode(token);
+        }
+        var key = key(token);
+        var now = clock.instant();
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null && entry.expiresAt().isAfter(now) && entry.jwt().getTokenValue().equals(token)) {
+                hits.increment();
+                return entry.jwt();
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        var jwt = delegate.decode(token);
+        var expiresAt = now.plus(maxTtl);
+        if (jwt.getExpiresAt() != null && jwt.getExpiresAt().isBefore(expiresAt)) {
+            expiresAt = jwt.getExpiresAt();
+        }
+        if (expiresAt.isAfter(now)) {
+            synchronized (this) {
+                entries.put(key, new Entry(jwt, expiresAt));
+                while (entries.size() > maxEntries) {
+                    entries.remove(entries.keySet().iterator().next());
+                }
+            }
+        }
+        return jwt;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder(METRIC_NAME, hits, LongAdder::sum)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder(METRIC_NAME, misses, LongAdder::sum)
+                .tag("result", "miss").register(registry);
+        Gauge.builder(METRIC_NAME + ".size", this, cache -> {
+            synchronized (cache) {
+                return cache.entries.size();
+            }
+        }).register(registry);
+    }
+
+    private static String key(String token) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Entry(Jwt jwt, Instant expiresAt) {
+    }
+}
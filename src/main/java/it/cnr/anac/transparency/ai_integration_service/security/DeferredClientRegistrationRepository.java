@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.oauth2.client.OAuth2ClientProperties;
+import org.springframework.boot.autoconfigure.security.oauth2.client.OAuth2ClientPropertiesMapper;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.event.EventListener;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registrazioni dei client OAuth2 ({@code spring.security.oauth2.client.registration.*})
+ * risolte alla prima richiesta invece che durante l'avvio.
+ * <p>
+ * Sostituisce il repository di Spring Boot, che legge i metadati OIDC dei provider
+ * configurati con {@code issuer-uri} mentre crea il contesto: un authorization server
+ * lento allungava l'avvio di ogni istanza e uno non raggiungibile lo faceva fallire.
+ * Qui la discovery parte in background quando l'applicazione è pronta e, se fallisce,
+ * viene ripetuta alla prima richiesta utile, al più ogni
+ * {@code ai.mcp.oauth.discovery.retry-interval}.
+ */
+@Slf4j
+@Component
+@EnableConfigurationProperties(OAuth2ClientProperties.class)
+public class DeferredClientRegistrationRepository implements ClientRegistrationRepository, Iterable<ClientRegistration> {
+
+    private final OAuth2ClientProperties properties;
+    private final Duration retryInterval;
+    private final Clock clock = Clock.systemUTC();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile Map<String, ClientRegistration> registrations;
+    private RuntimeException lastFailure;
+    private Instant lastFailureAt = Instant.MIN;
+
+    public DeferredClientRegistrationRepository(OAuth2ClientProperties properties,
+                                                @Value("${ai.mcp.oauth.discovery.retry-interval:10s}") Duration retryInterval) {
+        this.properties = properties;
+        this.retryInterval = retryInterval;
+    }
+
+    @Override
+    public ClientRegistration findByRegistrationId(String registrationId) {
+        Assert.hasText(registrationId, "registrationId cannot be empty");
+        return registrations().get(registrationId);
+    }
+
+    @Override
+    public Iterator<ClientRegistration> iterator() {
+        return registrations().values().iterator();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        Mono.fromCallable(this::registrations)
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(loaded -> log.info("Loaded {} OAuth2 client registrations", loaded.size()),
+                        error -> log.warn("Unable to load the OAuth2 client registrations at startup, will retry on demand: {}",
+                                error.getMessage()));
+    }
+
+    private Map<String, ClientRegistration> registrations() {
+        var current = registrations;
+        if (current != null) {
+            return current;
+        }
+        lock.lock();
+        try {
+            if (registrations != null) {
+                return registrations;
+            }
+            // Discovery fallita da poco: non si ripete a ogni richiesta
+            if (lastFailure != null && clock.instant().isBefore(lastFailureAt.plus(retryInterval))) {
+                throw lastFailure;
+            }
+            try {
+                registrations = Map.copyOf(new OAuth2ClientPropertiesMapper(properties).asClientRegistrations());
+                lastFailure = null;
+                return registrations;
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                lastFailureAt = clock.instant();
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.jwk.source.OutageTolerantJWKSetSource;
+import com.nimbusds.jose.jwk.source.RefreshAheadCachingJWKSetSource;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jose.util.DefaultResourceRetriever;
+import com.nimbusds.jose.util.JSONObjectUtils;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.text.ParseException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chiavi pubbliche dell'authorization server usate per verificare i JWT dei client.
+ * <p>
+ * Il JWK set è tenuto in memoria per {@code ai.security.jwt.jwk-cache.ttl} e
+ * rinnovato in background {@code ai.security.jwt.jwk-cache.refresh-ahead} prima
+ * della scadenza, così nessuna richiesta attende il download delle chiavi. Se
+ * l'authorization server non risponde si continua a usare il set già scaricato
+ * per al più {@code ai.security.jwt.jwk-cache.outage-tolerance}; un {@code kid}
+ * sconosciuto (rotazione delle chiavi) provoca invece un rinnovo immediato.
+ * <p>
+ * L'URI del JWK set è {@code spring.security.oauth2.resourceserver.jwt.jwk-set-uri}
+ * oppure viene letto dai metadati OIDC dell'issuer. La discovery non blocca
+ * l'avvio: parte in background quando l'applicazione è pronta e, se fallisce,
+ * viene ripetuta alla prima richiesta utile, al più ogni
+ * {@code ai.security.jwt.discovery.retry-interval}.
+ */
+@Slf4j
+@Component
+public class IssuerJwkSource implements JWKSource<SecurityContext>, MeterBinder, DisposableBean {
+
+    private final String issuerUri;
+    private final String jwkSetUri;
+    private final Duration ttl;
+    private final Duration refreshAhead;
+    private final Duration outageTolerance;
+    private final Duration discoveryRetryInterval;
+    private final DefaultResourceRetriever resourceRetriever;
+    private final Clock clock = Clock.systemUTC();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile JWKSource<SecurityContext> delegate;
+    // ultimo errore di discovery, riproposto fino al prossimo tentativo utile
+    private volatile KeySourceException lastFailure;
+    private volatile Instant lastFailureAt;
+
+    private final LongAdder refreshFailures = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+
+    public IssuerJwkSource(@Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri:}") String issuerUri,
+                           @Value("${spring.security.oauth2.resourceserver.jwt.jwk-set-uri:}") String jwkSetUri,
+                           @Value("${ai.security.jwt.jwk-cache.ttl:5m}") Duration ttl,
+                           @Value("${ai.security.jwt.jwk-cache.refresh-ahead:30s}") Duration refreshAhead,
+                           @Value("${ai.security.jwt.jwk-cache.outage-tolerance:1h}") Duration outageTolerance,
+                           @Value("${ai.security.jwt.discovery.retry-interval:10s}") Duration discoveryRetryInterval,
+                           @Value("${ai.security.jwt.http-timeout:5s}") Duration httpTimeout) {
+        if (!StringUtils.hasText(issuerUri) && !StringUtils.hasText(jwkSetUri)) {
+            throw new IllegalStateException("Either spring.security.oauth2.resourceserver.jwt.issuer-uri or "
+                    + "spring.security.oauth2.resourceserver.jwt.jwk-set-uri must be set");
+        }
+        this.issuerUri = issuerUri;
+        this.jwkSetUri = jwkSetUri;
+        this.ttl = ttl;
+        this.refreshAhead = refreshAhead;
+        this.outageTolerance = outageTolerance;
+        this.discoveryRetryInterval = discoveryRetryInterval;
+        int timeoutMillis = (int) httpTimeout.toMillis();
+        this.resourceRetriever = new DefaultResourceRetriever(timeoutMillis, timeoutMillis,
+                JWKSourceBuilder.DEFAULT_HTTP_SIZE_LIMIT);
+    }
+
+    @Override
+    public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) throws KeySourceException {
+        return source().get(jwkSelector, context);
+    }
+
+    /**
+     * Discovery e primo download delle chiavi in background, prima delle richieste dei client.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        Mono.fromCallable(() -> get(new JWKSelector(new JWKMatcher.Builder().build()), null))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(keys -> log.info("Loaded {} JWT signing keys", keys.size()),
+                        error -> log.warn("Unable to load the JWT signing keys at startup, will retry on demand: {}",
+                                error.getMessage()));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder("ai.security.jwks.refresh.failures", refreshFailures, LongAdder::sum)
+                .description("Rinnovi in background del JWK set falliti")
+                .register(registry);
+        FunctionCounter.builder("ai.security.jwks.stale", staleServed, LongAdder::sum)
+                .description("Verifiche eseguite con il JWK set precedente perché l'authorization server non risponde")
+                .register(registry);
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (delegate instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+
+    private JWKSource<SecurityContext> source() throws KeySourceException {
+        var current = delegate;
+        if (current != null) {
+            return current;
+        }
+        lock.lock();
+        try {
+            if (delegate != null) {
+                return delegate;
+            }
+            var failedAt = lastFailureAt;
+            if (failedAt != null && clock.instant().isBefore(failedAt.plus(discoveryRetryInterval))) {
+                throw lastFailure;
+            }
+            try {
+                var uri = StringUtils.hasText(jwkSetUri) ? jwkSetUri : discoverJwkSetUri();
+                delegate = JWKSourceBuilder.<SecurityContext>create(URI.create(uri).toURL(), resourceRetriever)
+                        .cache(ttl.toMillis(), JWKSourceBuilder.DEFAULT_CACHE_REFRESH_TIMEOUT)
+                        .refreshAheadCache(refreshAhead.toMillis(), true, event -> {
+                            if (event instanceof RefreshAheadCachingJWKSetSource.ScheduledRefreshFailed<?> failed) {
+                                refreshFailures.increment();
+                                log.warn("Background refresh of the JWK set failed: {}",
+                                        failed.getException().getMessage());
+                            }
+                        })
+                        .outageTolerant(outageTolerance.toMillis(), event -> {
+                            if (event instanceof OutageTolerantJWKSetSource.OutageEvent<?> outage) {
+                                staleServed.increment();
+                                log.warn("JWK set unavailable, using the cached one for {} more ms: {}",
+                                        outage.getRemainingTime(), outage.getException().getMessage());
+                            }
+                        })
+                        .retrying(true)
+                        .build();
+                lastFailureAt = null;
+                log.debug("Using JWK set {}", uri);
+                return delegate;
+            } catch (IOException | ParseException | RuntimeException e) {
+                lastFailure = new KeySourceException("Unable to resolve the JWK set of " + issuerUri + ": "
+                        + e.getMessage(), e);
+                lastFailureAt = clock.instant();
+                throw lastFailure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String discoverJwkSetUri() throws IOException, ParseException {
+        var base = issuerUri.endsWith("/") ? issuerUri.substring(0, issuerUri.length() - 1) : issuerUri;
+        var resource = resourceRetriever.retrieveResource(
+                URI.create(base + "/.well-known/openid-configuration").toURL());
+        var metadata = JSONObjectUtils.parse(resource.getContent());
+        var issuer = JSONObjectUtils.getString(metadata, "issuer");
+        if (!issuerUri.equals(issuer)) {
+            throw new IllegalStateException("The issuer \"" + issuer + "\" in the OpenID configuration "
+                    + "does not match the configured issuer \"" + issuerUri + "\"");
+        }
+        var uri = JSONObjectUtils.getString(metadata, "jwks_uri");
+        if (uri == null) {
+            throw new IllegalStateException("The OpenID configuration of " + issuerUri + " has no jwks_uri");
+        }
+        return uri;
+    }
+}
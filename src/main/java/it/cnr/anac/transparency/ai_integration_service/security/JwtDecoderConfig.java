@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.proc.DefaultJOSEObjectTypeVerifier;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.core.DelegatingOAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtClaimNames;
+import org.springframework.security.oauth2.jwt.JwtClaimValidator;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+import org.springframework.util.StringUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * {@link org.springframework.security.oauth2.jwt.JwtDecoder} del resource server,
+ * al posto di quello di Spring Boot: chiavi da {@link IssuerJwkSource} (cache con
+ * rinnovo in background, nessuna discovery bloccante all'avvio) e token già
+ * verificati ricordati da {@link CachingJwtDecoder}. Algoritmi, issuer e audience
+ * sono letti dalle stesse proprietà {@code spring.security.oauth2.resourceserver.jwt.*}.
+ */
+@Configuration
+public class JwtDecoderConfig {
+
+    @Bean
+    CachingJwtDecoder jwtDecoder(IssuerJwkSource jwkSource,
+                                 @Value("${spring.security.oauth2.resourceserver.jwt.issuer-uri:}") String issuerUri,
+                                 @Value("${spring.security.oauth2.resourceserver.jwt.jws-algorithms:RS256}") List<String> algorithms,
+                                 @Value("${spring.security.oauth2.resourceserver.jwt.audiences:}") List<String> audiences,
+                                 @Value("${ai.security.jwt.cache.enabled:true}") boolean cacheEnabled,
+                                 @Value("${ai.security.jwt.cache.max-entries:10000}") int maxEntries,
+                                 @Value("${ai.security.jwt.cache.max-ttl:10m}") Duration maxTtl) {
+        var jwtProcessor = new DefaultJWTProcessor<SecurityContext>();
+        jwtProcessor.setJWSTypeVerifier(new DefaultJOSEObjectTypeVerifier<>(JOSEObjectType.JWT, null));
+        jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(
+                algorithms.stream().map(JWSAlgorithm::parse).collect(Collectors.toSet()), jwkSource));
+        // i claim sono validati da Spring Security
+        jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {
+        });
+
+        var decoder = new NimbusJwtDecoder(jwtProcessor);
+        decoder.setJwtValidator(validator(issuerUri, audiences));
+        return new CachingJwtDecoder(decoder, cacheEnabled, maxEntries, maxTtl);
+    }
+
+    private static OAuth2TokenValidator<Jwt> validator(String issuerUri, List<String> audiences) {
+        var validators = new ArrayList<OAuth2TokenValidator<Jwt>>();
+        validators.add(StringUtils.hasText(issuerUri)
+                ? JwtValidators.createDefaultWithIssuer(issuerUri)
+                : JwtValidators.createDefault());
+        var expectedAudiences = audiences.stream().filter(StringUtils::hasText).toList();
+        if (!expectedAudiences.isEmpty()) {
+            validators.add(new JwtClaimValidator<List<String>>(JwtClaimNames.AUD,
+                    aud -> aud != null && !Collections.disjoint(aud, expectedAudiences)));
+        }
+        return new DelegatingOAuth2TokenValidator<>(validators);
+    }
+}
@@ -17,15 +17,26 @@
 package it.cnr.anac.transparency.ai_integration_service.security;
 
 import it.cnr.anac.transparency.ai_integration_service.config.McpSyncClientExchangeFilterFunction;
+import it.cnr.anac.transparency.ai_integration_service.config.UpstreamClientHttpConnector;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.reactive.function.client.WebClientCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
+import org.springframework.security.authorization.AuthenticatedAuthorizationManager;
+import org.springframework.security.authorization.AuthorityAuthorizationManager;
+import org.springframework.security.authorization.AuthorizationManager;
 import org.springframework.security.config.Customizer;
+import org.springframework.security.config.ObjectPostProcessor;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configurers.CsrfConfigurer;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.access.intercept.RequestAuthorizationContext;
+import org.springframework.security.web.header.HeaderWriterFilter;
+import org.springframework.util.StringUtils;
 import org.springframework.web.reactive.function.client.WebClient;
 
 @Slf4j
@@ -35,27 +46,58 @@ public class SecurityConfig {
     /**
      * Overload Boot's default {@link WebClient.Builder}, so that we can inject an
      * oauth2-enabled {@link org.springframework.web.reactive.function.client.ExchangeFilterFunction}
-     * that adds OAuth2 tokens to requests sent to the MCP server.
+     * that adds OAuth2 tokens to requests sent to the MCP server. All clients share
+     * the {@link UpstreamClientHttpConnector}, with one Reactor Netty connection pool
+     * per upstream, so that a cancelled stream closes its connection. Boot's
+     * customizers are applied as well, so that codec settings such as
+     * {@code spring.codec.max-in-memory-size} still hold.
      */
     @Bean
-    WebClient.Builder webClientBuilder(McpSyncClientExchangeFilterFunction filterFunction) {
-        return WebClient.builder().apply(filterFunction.configuration());
+    WebClient.Builder webClientBuilder(McpSyncClientExchangeFilterFunction filterFunction,
+                                       UpstreamClientHttpConnector clientHttpConnector,
+                                       ObjectProvider<WebClientCustomizer> customizers) {
+        var builder = WebClient.builder();
+        customizers.orderedStream().forEach(customizer -> customizer.customize(builder));
+        return builder
+                .clientConnector(clientHttpConnector)
+                .apply(filterFunction.configuration());
     }
 
+    /**
+     * Le API e gli endpoint di management diversi da health e info (ad es.
+     * {@code /actuator/prometheus}, che espone nodi, upstream e tool) richiedono
+     * un JWT valido; per il management si può esigere anche un'autorità
+     * ({@code ai.security.actuator.authority}, ad es. {@code SCOPE_metrics}).
+     */
     @Bean
-    public SecurityFilterChain securityFilterChainJwt(HttpSecurity http) throws Exception {
+    public SecurityFilterChain securityFilterChainJwt(HttpSecurity http,
+                                                      @Value("${ai.security.actuator.authority:}") String actuatorAuthority)
+            throws Exception {
+        AuthorizationManager<RequestAuthorizationContext> actuatorAccess = StringUtils.hasText(actuatorAuthority)
+                ? AuthorityAuthorizationManager.hasAuthority(actuatorAuthority)
+                : AuthenticatedAuthorizationManager.authenticated();
         http
                 .oauth2Client(Customizer.withDefaults())
                 .cors(Customizer.withDefaults())
                 .csrf(CsrfConfigurer::disable)
+                // Gli header di sicurezza vanno scritti prima di avviare lo streaming: scritti a fine
+                // richiesta dal thread servlet competerebbero con il primo flush dello stream asincrono
+                .headers(headers -> headers.withObjectPostProcessor(new ObjectPostProcessor<HeaderWriterFilter>() {
+                    @Override
+                    public <O extends HeaderWriterFilter> O postProcess(O filter) {
+                        filter.setShouldWriteHeadersEagerly(true);
+                        return filter;
+                    }
+                }))
                 .sessionManagement(sm -> sm.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .authorizeHttpRequests(auth -> auth
                         // consenti statici e actuator health/info
                         .requestMatchers("/", "/index.html", "/static/**", "/css/**", "/js/**").permitAll()
                         .requestMatchers("/actuator/health", "/actuator/health/**", "/actuator/info").permitAll()
                         .requestMatchers(HttpMethod.OPTIONS, "/**").permitAll()
-                        // proteggi API
+                        // proteggi API e management
                         .requestMatchers("/v1/**").authenticated()
+                        .requestMatchers("/actuator/**").access(actuatorAccess)
                         // tutto il resto consentito (puoi restringere se necessario)
                         .anyRequest().permitAll()
                 )
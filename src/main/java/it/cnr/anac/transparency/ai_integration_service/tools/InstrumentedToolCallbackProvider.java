@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Avvolge i tool MCP per misurarne latenza ed esito: timer
+ * {@code ai.mcp.tool.calls} con tag {@code tool} e {@code outcome}
+ * ({@code success}/{@code error}). Gli span delle chiamate sono già prodotti
+ * dall'osservazione {@code spring.ai.tool} del {@code ToolCallingManager}.
+ */
+public class InstrumentedToolCallbackProvider implements ToolCallbackProvider {
+
+    private final ToolCallbackProvider delegate;
+    private final MeterRegistry registry;
+
+    public InstrumentedToolCallbackProvider(ToolCallbackProvider delegate, MeterRegistry registry) {
+        this.delegate = delegate;
+        this.registry = registry;
+    }
+
+    @Override
+    public ToolCallback[] getToolCallbacks() {
+        return Arrays.stream(delegate.getToolCallbacks())
+                .map(InstrumentedToolCallback::new)
+                .toArray(ToolCallback[]::new);
+    }
+
+    private final class InstrumentedToolCallback implements ToolCallback {
+
+        private final ToolCallback delegate;
+        private final Timer succeeded;
+        private final Timer failed;
+
+        InstrumentedToolCallback(ToolCallback delegate) {
+            this.delegate = delegate;
+            this.succeeded = timer(delegate.getToolDefinition().name(), "success");
+            this.failed = timer(delegate.getToolDefinition().name(), "error");
+        }
+
+        @Override
+        public ToolDefinition getToolDefinition() {
+            return delegate.getToolDefinition();
+        }
+
+        @Override
+        public ToolMetadata getToolMetadata() {
+            return delegate.getToolMetadata();
+        }
+
+        @Override
+        public String call(String toolInput) {
+            return call(toolInput, null);
+        }
+
+        @Override
+        public String call(String toolInput, ToolContext toolContext) {
+            long start = System.nanoTime();
+            var timer = failed;
+            try {
+                var result = toolContext != null ? delegate.call(toolInput, toolContext) : delegate.call(toolInput);
+                timer = succeeded;
+                return result;
+            } finally {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private Timer timer(String tool, String outcome) {
+            return Timer.builder("ai.mcp.tool.calls")
+                    .description("Chiamate ai tool MCP")
+                    .tags("tool", tool, "outcome", outcome)
+                    .register(registry);
+        }
+    }
+}
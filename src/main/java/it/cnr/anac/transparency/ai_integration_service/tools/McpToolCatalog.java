@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.modelcontextprotocol.client.McpSyncClient;
+import io.modelcontextprotocol.spec.McpSchema;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.mcp.McpToolUtils;
+import org.springframework.ai.mcp.McpToolsChangedEvent;
+import org.springframework.ai.mcp.SyncMcpToolCallback;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.ToolCallbackProvider;
+import org.springframework.ai.tool.definition.DefaultToolDefinition;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalogo dei tool esposti dai server MCP, con un ciclo di vita proprio.
+ * <p>
+ * I tool sono letti ({@code tools/list}) all'avvio dell'applicazione, alla
+ * notifica {@code tools/list_changed} di un server e comunque dopo
+ * {@code ai.mcp.tools.catalog.ttl}; le richieste di chat usano sempre il
+ * catalogo in memoria, con le definizioni (e gli schemi JSON) già serializzate.
+ * Ogni server è aggiornato in modo indipendente e con un timeout: se un server
+ * è lento o non raggiungibile restano in uso i suoi tool dell'ultimo
+ * aggiornamento riuscito, e il tentativo è ripetuto a ogni
+ * {@code ai.mcp.tools.catalog.check-interval}.
+ * <p>
+ * I nomi dei tool sono quelli dichiarati dai server; in caso di nomi uguali su
+ * server diversi il secondo è prefissato con il nome della connessione. I tool
+ * sono ordinati per nome e gli schemi serializzati a chiavi ordinate, così il
+ * blocco dei tool nel prompt resta identico tra le richieste e Ollama può
+ * riusarne la cache del prefisso.
+ */
+@Slf4j
+@Component
+public class McpToolCatalog implements ToolCallbackProvider, ApplicationListener<McpToolsChangedEvent> {
+
+    private final List<McpSyncClient> mcpClients;
+    private final MeterRegistry registry;
+    private final Duration ttl;
+    private final Duration refreshTimeout;
+    private final Clock clock = Clock.systemUTC();
+    private final ObjectMapper canonicalMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    // Stato dei server, protetto dal monitor dell'istanza
+    private final Map<McpSyncClient, ServerState> servers = new HashMap<>();
+    private volatile ToolCallback[] toolCallbacks = new ToolCallback[0];
+
+    public McpToolCatalog(List<McpSyncClient> mcpClients, MeterRegistry registry,
+                          @Value("${ai.mcp.tools.catalog.ttl:10m}") Duration ttl,
+                          @Value("${ai.mcp.tools.catalog.refresh-timeout:10s}") Duration refreshTimeout) {
+        this.mcpClients = List.copyOf(mcpClients);
+        this.registry = registry;
+        this.ttl = ttl;
+        this.refreshTimeout = refreshTimeout;
+        Gauge.builder("ai.mcp.catalog.tools", this, catalog -> catalog.toolCallbacks.length)
+                .description("Tool MCP disponibili nel catalogo")
+                .register(registry);
+        for (var client : this.mcpClients) {
+            Gauge.builder("ai.mcp.catalog.age", this, catalog -> catalog.ageSeconds(client))
+                    .description("Secondi dall'ultimo aggiornamento riuscito dei tool del server")
+                    .baseUnit("seconds")
+                    .tag("server", connectionName(client))
+                    .register(registry);
+        }
+    }
+
+    @Override
+    public ToolCallback[] getToolCallbacks() {
+        return toolCallbacks.clone();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        refresh(mcpClients);
+        log.info("MCP tool catalog ready with {} tools from {} servers", toolCallbacks.length, mcpClients.size());
+    }
+
+    /**
+     * Aggiorna i server con il catalogo scaduto o con l'ultimo aggiornamento fallito.
+     */
+    @Scheduled(fixedDelayString = "${ai.mcp.tools.catalog.check-interval:30s}",
+            initialDelayString = "${ai.mcp.tools.catalog.check-interval:30s}")
+    public void refreshStale() {
+        var now = clock.instant();
+        List<McpSyncClient> stale;
+        synchronized (this) {
+            stale = mcpClients.stream()
+                    .filter(client -> {
+                        var state = servers.get(client);
+                        return state == null || state.lastFailed() || !state.refreshedAt().plus(ttl).isAfter(now);
+                    })
+                    .toList();
+        }
+        refresh(stale);
+    }
+
+    /**
+     * Notifica {@code tools/list_changed}: la lista dei tool arriva già con l'evento.
+     */
+    @Override
+    public void onApplicationEvent(McpToolsChangedEvent event) {
+        mcpClients.stream()
+                .filter(client -> event.getConnectionName().equals(connectionName(client)))
+                .findFirst()
+                .ifPresent(client -> {
+                    log.info("MCP server {} changed its tools, updating the catalog", event.getConnectionName());
+                    update(client, event.getTools());
+                });
+    }
+
+    private void refresh(List<McpSyncClient> clients) {
+        Flux.fromIterable(clients)
+                .flatMap(this::refresh)
+                .then()
+                .block();
+    }
+
+    private Mono<Void> refresh(McpSyncClient client) {
+        var server = connectionName(client);
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return Mono.fromCallable(() -> client.listTools().tools())
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .timeout(refreshTimeout)
+                    .doOnNext(tools -> {
+                        update(client, tools);
+                        recordRefresh(server, "success", start);
+                    })
+                    .doOnError(e -> recordRefresh(server, "error", start))
+                    .then();
+        }).onErrorResume(e -> {
+            log.warn("Unable to refresh the tools of MCP server {}, keeping the cached ones: {}",
+                    server, e.toString());
+            markFailed(client);
+            return Mono.empty();
+        });
+    }
+
+    private void recordRefresh(String server, String outcome, long start) {
+        Timer.builder("ai.mcp.catalog.refresh")
+                .description("Durata dell'aggiornamento dei tool di un server MCP")
+                .tags("server", server, "outcome", outcome)
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void update(McpSyncClient client, List<McpSchema.Tool> tools) {
+        var previous = servers.put(client, new ServerState(List.copyOf(tools), clock.instant(), false));
+        if (previous == null || !previous.tools().equals(tools)) {
+            rebuild();
+        }
+    }
+
+    private synchronized void markFailed(McpSyncClient client) {
+        var state = servers.get(client);
+        servers.put(client, state != null
+                ? new ServerState(state.tools(), state.refreshedAt(), true)
+                : new ServerState(List.of(), Instant.EPOCH, true));
+    }
+
+    /**
+     * Ricostruisce le callback nell'ordine dei server configurati, calcolando
+     * una sola volta le definizioni dei tool.
+     */
+    private void rebuild() {
+        var callbacks = new ArrayList<ToolCallback>();
+        var names = new HashSet<String>();
+        for (var client : mcpClients) {
+            var state = servers.get(client);
+            if (state == null) {
+                continue;
+            }
+            for (var tool : state.tools()) {
+                var name = McpToolUtils.format(tool.name());
+                if (!names.add(name)) {
+                    name = McpToolUtils.format(connectionName(client) + "_" + tool.name());
+                    names.add(name);
+                    log.warn("Tool name '{}' already exists, using '{}'", tool.name(), name);
+                }
+                var callback = SyncMcpToolCallback.builder()
+                        .mcpClient(client)
+                        .tool(tool)
+                        .prefixedToolName(name)
+                        .build();
+                callbacks.add(new CatalogToolCallback(callback, canonicalDefinition(name, tool)));
+            }
+        }
+        // ordine stabile: i tool fanno parte del prefisso del prompt valutato da Ollama
+        callbacks.sort(Comparator.comparing(callback -> callback.getToolDefinition().name()));
+        toolCallbacks = callbacks.toArray(ToolCallback[]::new);
+    }
+
+    /**
+     * Definizione del tool con lo schema JSON serializzato a chiavi ordinate: lo
+     * stesso schema produce sempre gli stessi byte nel prompt, anche se il server
+     * lo restituisce con le proprietà in un ordine diverso.
+     */
+    private ToolDefinition canonicalDefinition(String name, McpSchema.Tool tool) {
+        var definition = McpToolUtils.createToolDefinition(name, tool);
+        try {
+            var schema = canonicalMapper.writeValueAsString(
+                    canonicalMapper.readValue(definition.inputSchema(), Object.class));
+            return DefaultToolDefinition.builder()
+                    .name(definition.name())
+                    .description(definition.description())
+                    .inputSchema(schema)
+                    .build();
+        } catch (JsonProcessingException e) {
+            return definition;
+        }
+    }
+
+    private synchronized double ageSeconds(McpSyncClient client) {
+        var state = servers.get(client);
+        if (state == null || Instant.EPOCH.equals(state.refreshedAt())) {
+            return Double.NaN;
+        }
+        return Duration.between(state.refreshedAt(), clock.instant()).toMillis() / 1000.0;
+    }
+
+    /**
+     * Nome della connessione ({@code spring.ai.mcp.client.*.connections.<nome>}),
+     * che l'autoconfigurazione usa come titolo del client.
+     */
+    private static String connectionName(McpSyncClient client) {
+        var info = client.getClientInfo();
+        return Objects.requireNonNullElse(info.title(), info.name());
+    }
+
+    private record ServerState(List<McpSchema.Tool> tools, Instant refreshedAt, boolean lastFailed) {
+    }
+
+    /**
+     * Tool MCP con la definizione calcolata alla costruzione del catalogo.
+     */
+    private static final class CatalogToolCallback implements ToolCallback {
+
+        private final SyncMcpToolCallback delegate;
+        private final ToolDefinition toolDefinition;
+
+        CatalogToolCallback(SyncMcpToolCallback delegate, ToolDefinition toolDefinition) {
+            this.delegate = delegate;
+            this.toolDefinition = toolDefinition;
+        }
+
+        @Override
+        public ToolDefinition getToolDefinition() {
+            return toolDefinition;
+        }
+
+        @Override
+        public ToolMetadata getToolMetadata() {
+            return delegate.getToolMetadata();
+        }
+
+        @Override
+        public String call(String toolInput) {
+            return delegate.call(toolInput);
+        }
+
+        @Override
+        public String call(String toolInput, ToolContext toolContext) {
+            return delegate.call(toolInput, toolContext);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.observation.Observation;
+import io.micrometer.observation.ObservationRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.DefaultToolCallingManager;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.model.tool.ToolCallingManager;
+import org.springframework.ai.model.tool.ToolExecutionResult;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.ToolExecutionException;
+import org.springframework.ai.tool.execution.ToolExecutionExceptionProcessor;
+import org.springframework.ai.tool.observation.DefaultToolCallingObservationConvention;
+import org.springframework.ai.tool.observation.ToolCallingObservationContext;
+import org.springframework.ai.tool.observation.ToolCallingObservationDocumentation;
+import org.springframework.ai.tool.resolution.ToolCallbackResolver;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link ToolCallingManager} che esegue in parallelo i tool richiesti dal modello
+ * nello stesso turno, invece che uno dopo l'altro.
+ * <p>
+ * Ogni chiamata ha un timeout ({@code ai.mcp.tools.timeout}, sovrascrivibile per
+ * tool con {@code ai.mcp.tools.timeouts.<nome>}); allo scadere il modello riceve
+ * un messaggio di errore come risultato del tool e può proseguire. I risultati
+ * dei tool idempotenti sono letti e scritti in {@link ToolResultCache}.
+ * Le risposte sono restituite nell'ordine delle richieste del modello.
+ * <p>
+ * Spring AI invoca questo metodo fuori dalla catena reattiva della generazione:
+ * il contesto Reactor della generazione arriva come voce
+ * {@link #GENERATION_CONTEXT} del {@link ToolContext} della richiesta, che non
+ * viene passata ai tool. Il contesto di sicurezza del thread chiamante, o in sua
+ * assenza l'{@link Authentication} presente nel contesto della generazione, è
+ * riportato sui thread delle chiamate, dove il filtro OAuth2 verso gli MCP server
+ * lo usa per inoltrare il JWT dell'utente.
+ * <p>
+ * Le chiamate girano su un pool dedicato ({@code ai.mcp.tools.threads}) e non
+ * sul {@code boundedElastic} condiviso: Spring AI esegue già questo metodo su un
+ * thread {@code boundedElastic} che resta bloccato in attesa dei tool, e con
+ * molti stream concorrenti le chiamate resterebbero in coda dietro ai thread
+ * che le attendono fino allo scadere del timeout. Con
+ * {@code spring.threads.virtual.enabled} ogni chiamata usa invece un proprio
+ * virtual thread: l'attesa bloccante del client MCP sincrono non occupa un
+ * thread di piattaforma e il limite di thread non si applica.
+ * <p>
+ * Al termine di ogni chiamata viene notificato l'eventuale {@link ToolCallListener}
+ * presente nel contesto della generazione. Se la generazione è annullata
+ * (client disconnesso o limite di durata) mentre i tool sono in esecuzione, il
+ * segnale {@link Cancellation} presente nel contesto interrompe le chiamate
+ * ancora aperte e il turno termina senza un'ulteriore richiesta al modello.
+ * Concluso il turno, l'eventuale {@link ToolRoundListener} nel contesto riceve
+ * la richiesta del modello e le risposte dei tool.
+ */
+@Slf4j
+@Component
+public class ParallelToolCallingManager implements ToolCallingManager, DisposableBean {
+
+    /**
+     * Chiave del {@link ToolContext} con il contesto Reactor ({@link ContextView})
+     * della generazione: listener, segnale di annullamento e autenticazione.
+     */
+    public static final String GENERATION_CONTEXT = ParallelToolCallingManager.class.getName() + ".GENERATION_CONTEXT";
+
+    private static final DefaultToolCallingObservationConvention DEFAULT_OBSERVATION_CONVENTION =
+            new DefaultToolCallingObservationConvention();
+
+    /**
+     * Riceve l'esito delle chiamate ai tool; va inserito nel contesto Reactor
+     * della generazione con chiave {@code ToolCallListener.class}.
+     */
+    @FunctionalInterface
+    public interface ToolCallListener {
+        void onToolCall(String tool, Duration duration, boolean timedOut);
+    }
+
+    /**
+     * Riceve, per ogni turno di tool calling, il messaggio del modello con le
+     * chiamate richieste e le risposte dei tool; va inserito nel contesto Reactor
+     * della generazione con chiave {@code ToolRoundListener.class}.
+     */
+    @FunctionalInterface
+    public interface ToolRoundListener {
+        void onToolRound(AssistantMessage toolCalls, ToolResponseMessage toolResponses);
+    }
+
+    /**
+     * Segnale di annullamento della generazione; va inserito nel contesto Reactor
+     * della generazione con chiave {@code Cancellation.class}. All'emissione di
+     * {@code signal} le chiamate ai tool in corso sono annullate.
+     */
+    public record Cancellation(Mono<?> signal) {
+    }
+
+    private final ToolCallingManager definitionResolver;
+    private final ToolCallbackResolver toolCallbackResolver;
+    private final ToolExecutionExceptionProcessor toolExecutionExceptionProcessor;
+    private final ObservationRegistry observationRegistry;
+    private final ToolResultCache toolResultCache;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+    private final Duration defaultTimeout;
+    private final int maxConcurrency;
+    private final Scheduler toolScheduler;
+
+    public ParallelToolCallingManager(ToolCallbackResolver toolCallbackResolver,
+                                      ToolExecutionExceptionProcessor toolExecutionExceptionProcessor,
+                                      ObjectProvider<ObservationRegistry> observationRegistry,
+                                      ToolResultCache toolResultCache,
+                                      MeterRegistry meterRegistry,
+                                      Environment environment,
+                                      @Value("${ai.mcp.tools.timeout:30s}") Duration defaultTimeout,
+                                      @Value("${ai.mcp.tools.max-concurrency:8}") int maxConcurrency,
+                                      @Value("${ai.mcp.tools.threads:64}") int threads,
+                                      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.toolCallbackResolver = toolCallbackResolver;
+        this.toolExecutionExceptionProcessor = toolExecutionExceptionProcessor;
+        this.observationRegistry = observationRegistry.getIfUnique(() -> ObservationRegistry.NOOP);
+        this.toolResultCache = toolResultCache;
+        this.meterRegistry = meterRegistry;
+        this.environment = environment;
+        this.defaultTimeout = defaultTimeout;
+        this.maxConcurrency = maxConcurrency;
+        this.toolScheduler = virtualThreads
+                ? Schedulers.fromExecutorService(Executors.newThreadPerTaskExecutor(
+                        Thread.ofVirtual().name("mcp-tool-", 0).factory()), "mcp-tool")
+                : Schedulers.newBoundedElastic(threads, Integer.MAX_VALUE, "mcp-tool");
+        this.definitionResolver = DefaultToolCallingManager.builder()
+                .observationRegistry(this.observationRegistry)
+                .toolCallbackResolver(toolCallbackResolver)
+                .toolExecutionExceptionProcessor(toolExecutionExceptionProcessor)
+                .build();
+    }
+
+    @Override
+    public List<ToolDefinition> resolveToolDefinitions(ToolCallingChatOptions chatOptions) {
+        return definitionResolver.resolveToolDefinitions(chatOptions);
+    }
+
+    @Override
+    public ToolExecutionResult executeToolCalls(Prompt prompt, ChatResponse chatResponse) {
+        var assistantMessage = chatResponse.getResults().stream()
+                .map(generation -> generation.getOutput())
+                .filter(output -> !CollectionUtils.isEmpty(output.getToolCalls()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No tool call requested by the chat model"));
+        var toolContext = buildToolContext(prompt, assistantMessage);
+
+        List<ToolCallback> toolCallbacks = prompt.getOptions() instanceof ToolCallingChatOptions options
+                ? options.getToolCallbacks()
+                : List.of();
+        var calls = new ArrayList<PendingCall>();
+        boolean returnDirect = true;
+        for (var toolCall : assistantMessage.getToolCalls()) {
+            var callback = toolCallbacks.stream()
+                    .filter(tool -> toolCall.name().equals(tool.getToolDefinition().name()))
+                    .findFirst()
+                    .orElseGet(() -> toolCallbackResolver.resolve(toolCall.name()));
+            if (callback == null) {
+                throw new IllegalStateException("No ToolCallback found for tool name: " + toolCall.name());
+            }
+            returnDirect &= callback.getToolMetadata().returnDirect();
+            var arguments = StringUtils.hasText(toolCall.arguments()) ? toolCall.arguments() : "{}";
+            calls.add(new PendingCall(toolCall, callback, arguments));
+        }
+
+        // Contesti della generazione e del thread chiamante, da riportare sui thread che eseguono i tool
+        var generationContext = generationContext(prompt);
+        var caller = new CallerContext(generationContext, securityContext(generationContext),
+                observationRegistry.getCurrentObservation());
+
+        Cancellation cancellation = generationContext.getOrDefault(Cancellation.class, null);
+        var cancelled = new AtomicBoolean();
+        var responses = Flux.fromIterable(calls)
+                .flatMapSequential(call -> execute(call, toolContext, caller), maxConcurrency)
+                .takeUntilOther(cancellation != null
+                        ? cancellation.signal().doOnNext(signal -> cancelled.set(true))
+                        : Mono.never())
+                .collectList()
+                .block();
+        if (cancelled.get()) {
+            // le chiamate ancora aperte sono già state annullate (e i loro thread interrotti)
+            Counter.builder("ai.mcp.tool.cancelled")
+                    .description("Chiamate ai tool interrotte per l'annullamento della generazione")
+                    .register(meterRegistry)
+                    .increment(calls.size() - responses.size());
+            throw new CancellationException("Generation cancelled while waiting for " + calls.size() + " tool calls");
+        }
+
+        var toolResponseMessage = ToolResponseMessage.builder().responses(responses).build();
+        ToolRoundListener roundListener = generationContext.getOrDefault(ToolRoundListener.class, null);
+        if (roundListener != null) {
+            roundListener.onToolRound(assistantMessage, toolResponseMessage);
+        }
+        List<Message> conversationHistory = new ArrayList<>(prompt.copy().getInstructions());
+        conversationHistory.add(assistantMessage);
+        conversationHistory.add(toolResponseMessage);
+        return ToolExecutionResult.builder()
+                .conversationHistory(conversationHistory)
+                .returnDirect(returnDirect)
+                .build();
+    }
+
+    private Mono<ToolResponseMessage.ToolResponse> execute(PendingCall call, ToolContext toolContext,
+                                                          CallerContext caller) {
+        var name = call.toolCall().name();
+        var timeout = environment.getProperty("ai.mcp.tools.timeouts." + name, Duration.class, defaultTimeout);
+        ToolCallListener listener = caller.generationContext().getOrDefault(ToolCallListener.class, null);
+        var timedOut = new boolean[1];
+        return Mono.fromCallable(() -> callTool(call, toolContext, caller))
+                .subscribeOn(toolScheduler)
+                .timeout(timeout, Mono.fromSupplier(() -> {
+                    log.warn("Tool '{}' did not answer within {}", name, timeout);
+                    Counter.builder("ai.mcp.tool.timeouts")
+                            .tag("tool", name)
+                            .register(meterRegistry)
+                            .increment();
+                    timedOut[0] = true;
+                    return "Il tool " + name + " non ha risposto entro " + timeout.toSeconds() + " secondi";
+                }))
+                .elapsed()
+                .map(elapsed -> {
+                    if (listener != null) {
+                        listener.onToolCall(name, Duration.ofMillis(elapsed.getT1()), timedOut[0]);
+                    }
+                    return new ToolResponseMessage.ToolResponse(call.toolCall().id(), name, elapsed.getT2());
+                });
+    }
+
+    private String callTool(PendingCall call, ToolContext toolContext, CallerContext caller) {
+        SecurityContextHolder.setContext(caller.securityContext());
+        try (var scope = caller.observation() != null ? caller.observation().openScope() : null) {
+            return observedCall(call, toolContext);
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    private String observedCall(PendingCall call, ToolContext toolContext) {
+        var name = call.toolCall().name();
+        var cacheable = toolResultCache.isCacheable(name);
+        if (cacheable) {
+            var cached = toolResultCache.get(name, call.arguments());
+            if (cached != null) {
+                return cached;
+            }
+        }
+        var observationContext = ToolCallingObservationContext.builder()
+                .toolDefinition(call.callback().getToolDefinition())
+                .toolMetadata(call.callback().getToolMetadata())
+                .toolCallArguments(call.arguments())
+                .build();
+        String result = ToolCallingObservationDocumentation.TOOL_CALL
+                .observation(null, DEFAULT_OBSERVATION_CONVENTION, () -> observationContext, observationRegistry)
+                .observe(() -> {
+                    String toolResult;
+                    try {
+                        toolResult = call.callback().call(call.arguments(), toolContext);
+                        if (cacheable) {
+                            toolResultCache.put(name, call.arguments(), toolResult);
+                        }
+                    } catch (ToolExecutionException e) {
+                        toolResult = toolExecutionExceptionProcessor.process(e);
+                    }
+                    observationContext.setToolCallResult(toolResult);
+                    return toolResult;
+                });
+        return result != null ? result : "";
+    }
+
+    @Override
+    public void destroy() {
+        toolScheduler.dispose();
+    }
+
+    private static ContextView generationContext(Prompt prompt) {
+        if (prompt.getOptions() instanceof ToolCallingChatOptions options && options.getToolContext() != null
+                && options.getToolContext().get(GENERATION_CONTEXT) instanceof ContextView context) {
+            return context;
+        }
+        return Context.empty();
+    }
+
+    /**
+     * Contesto di sicurezza per i tool: quello del thread chiamante se autenticato
+     * (chiamata sincrona da una richiesta servlet), altrimenti uno con
+     * l'autenticazione dell'utente salvata nel contesto della generazione.
+     */
+    private static SecurityContext securityContext(ContextView generationContext) {
+        var current = SecurityContextHolder.getContext();
+        Authentication authentication = generationContext.getOrDefault(Authentication.class, null);
+        if (current.getAuthentication() != null || authentication == null) {
+            return current;
+        }
+        var context = SecurityContextHolder.createEmptyContext();
+        context.setAuthentication(authentication);
+        return context;
+    }
+
+    private static ToolContext buildToolContext(Prompt prompt, AssistantMessage assistantMessage) {
+        Map<String, Object> toolContextMap = new HashMap<>();
+        if (prompt.getOptions() instanceof ToolCallingChatOptions options && options.getToolContext() != null) {
+            toolContextMap.putAll(options.getToolContext());
+            // il contesto della generazione serve solo al manager: i tool MCP lo inoltrerebbero nei _meta
+            toolContextMap.remove(GENERATION_CONTEXT);
+        }
+        if (!toolContextMap.isEmpty()) {
+            List<Message> history = new ArrayList<>(prompt.copy().getInstructions());
+            history.add(AssistantMessage.builder()
+                    .content(assistantMessage.getText())
+                    .properties(assistantMessage.getMetadata())
+                    .toolCalls(assistantMessage.getToolCalls())
+                    .build());
+            toolContextMap.put(ToolContext.TOOL_CALL_HISTORY, history);
+        }
+        return new ToolContext(toolContextMap);
+    }
+
+    private record PendingCall(AssistantMessage.ToolCall toolCall, ToolCallback callback, String arguments) {
+    }
+
+    private record CallerContext(ContextView generationContext, SecurityContext securityContext,
+                                 Observation observation) {
+    }
+}
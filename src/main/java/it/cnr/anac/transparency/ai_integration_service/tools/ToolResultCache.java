@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache in memoria dei risultati dei tool MCP idempotenti (ad es. ricerca del
+ * codice IPA, ultimo controllo di trasparenza di un ente).
+ * <p>
+ * Sono memorizzati solo i tool elencati in {@code ai.mcp.tools.cache.tools}; la
+ * chiave è il nome del tool più gli argomenti in forma canonica (JSON con le
+ * chiavi ordinate e senza spazi), così richieste equivalenti scritte dal modello
+ * in modo diverso condividono la voce. Le voci scadono dopo
+ * {@code ai.mcp.tools.cache.ttl} e sono rimosse in ordine LRU oltre
+ * {@code ai.mcp.tools.cache.max-entries}. I risultati sono condivisi tra utenti:
+ * vanno elencati solo tool che restituiscono dati pubblici.
+ */
+@Component
+public class ToolResultCache implements MeterBinder {
+
+    private static final String METRIC_NAME = "ai.mcp.tool.cache";
+
+    private final ObjectMapper canonicalMapper = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+
+    private final boolean enabled;
+    private final Set<String> cacheableTools;
+    private final Duration ttl;
+    private final int maxEntries;
+    private final Clock clock = Clock.systemUTC();
+
+    // Ordinata per accesso (LRU), protetta dal monitor dell'istanza
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ToolResultCache(@Value("${ai.mcp.tools.cache.enabled:true}") boolean enabled,
+                           @Value("${ai.mcp.tools.cache.tools:}") Set<String> cacheableTools,
+                           @Value("${ai.mcp.tools.cache.ttl:10m}") Duration ttl,
+                           @Value("${ai.mcp.tools.cache.max-entries:5000}") int maxEntries) {
+        this.enabled = enabled;
+        this.cacheableTools = Set.copyOf(cacheableTools);
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isCacheable(String toolName) {
+        return enabled && cacheableTools.contains(toolName);
+    }
+
+    /**
+     * Risultato in cache per la chiamata indicata, {@code null} se assente o scaduto.
+     */
+    public String get(String toolName, String arguments) {
+        var key = key(toolName, arguments);
+        synchronized (this) {
+            var entry = entries.get(key);
+            if (entry != null && entry.expiresAt().isAfter(clock.instant())) {
+                hits.increment();
+                return entry.result();
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String toolName, String arguments, String result) {
+        if (result == null) {
+            return;
+        }
+        var entry = new Entry(result, clock.instant().plus(ttl));
+        var key = key(toolName, arguments);
+        synchronized (this) {
+            entries.put(key, entry);
+            while (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        FunctionCounter.builder(METRIC_NAME, hits, LongAdder::sum)
+                .tag("result", "hit").register(registry);
+        FunctionCounter.builder(METRIC_NAME, misses, LongAdder::sum)
+                .tag("result", "miss").register(registry);
+        Gauge.builder(METRIC_NAME + ".size", this, cache -> {
+            synchronized (cache) {
+                return cache.entries.size();
+            }
+        }).register(registry);
+    }
+
+    private String key(String toolName, String arguments) {
+        return toolName + '\n' + canonicalize(arguments);
+    }
+
+    /**
+     * Forma canonica degli argomenti JSON: chiavi ordinate a ogni livello e
+     * nessuno spazio. Gli argomenti non validi sono usati così come sono.
+     */
+    String canonicalize(String arguments) {
+        if (arguments == null || arguments.isBlank()) {
+            return "{}";
+        }
+        try {
+            return canonicalMapper.writeValueAsString(canonicalMapper.readValue(arguments, Object.class));
+        } catch (JsonProcessingException e) {
+            return arguments.strip();
+        }
+    }
+
+    private record Entry(String result, Instant expiresAt) {
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import it.cnr.anac.transparency.ai_integration_service.chat.AdmissionRejectedException;
+
+import java.time.Duration;
+
+/**
+ * Richiesta rifiutata perché l'utente ha superato il limite di richieste o la
+ * quota di consumo del suo livello: come per il controllo di ammissione risponde
+ * 429 con {@code Retry-After}, e i job batch rimandano l'elemento senza
+ * consumare tentativi.
+ */
+public class QuotaExceededException extends AdmissionRejectedException {
+
+    public QuotaExceededException(String reason, Duration retryAfter) {
+        super(reason, retryAfter);
+    }
+}
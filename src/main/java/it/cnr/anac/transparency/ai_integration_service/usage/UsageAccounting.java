@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contabilità dei consumi per utente (subject del JWT) e client (claim
+ * {@code ai.usage.client-claim}, di default {@code azp}): richieste, token di
+ * prompt e di risposta e tempo GPU occupato, preso dalle durate che Ollama
+ * riporta nella risposta finale (il tempo trascorso solo per le generazioni
+ * interrotte prima della risposta finale). Sono addebitate solo le generazioni effettive: non le risposte
+ * servite dalla cache né i client che si agganciano a una generazione identica
+ * già in corso, il cui costo resta a chi l'ha avviata.
+ * <p>
+ * I contatori sono aggregati in memoria senza lock ({@link LongAdder}) e ogni
+ * {@code ai.usage.flush-interval} i consumi dall'ultima scrittura sono accodati
+ * al registro su file ({@code ai.usage.persistence.*}), da cui al riavvio sono
+ * ricostruite le quote di {@link UsageQuotas}. Il livello delle quote dipende
+ * dai ruoli nel claim {@code ai.usage.role-claim} (percorso separato da punti).
+ */
+@Slf4j
+@Component
+public class UsageAccounting implements DisposableBean {
+
+    /**
+     * Client a cui sono addebitati i job batch, eseguiti fuori da una richiesta HTTP.
+     */
+    public static final String BATCH_CLIENT = "batch";
+    private static final String UNKNOWN_CLIENT = "unknown";
+    private static final String METADATA_TOTAL_DURATION = "total-duration";
+    private static final String METADATA_LOAD_DURATION = "load-duration";
+    private static final String METADATA_PROMPT_EVAL_DURATION = "prompt-eval-duration";
+    private static final String METADATA_EVAL_DURATION = "eval-duration";
+
+    /**
+     * Destinatario dell'addebito di una generazione.
+     */
+    public record Account(String subject, String clientId, String tier) {
+    }
+
+    /**
+     * Consumi di un utente tramite un client dall'avvio del servizio.
+     */
+    public record ClientUsage(String clientId, String tier, long requests, long promptTokens, long completionTokens,
+                              Duration gpuTime) {
+    }
+
+    private final UsageQuotas quotas;
+    private final UsageLog usageLog;
+    private final List<String> roleClaim;
+    private final String clientClaim;
+    private final Clock clock = Clock.systemUTC();
+    private final ConcurrentHashMap<Account, Counters> counters = new ConcurrentHashMap<>();
+
+    public UsageAccounting(UsageQuotas quotas,
+                           @Value("${ai.usage.role-claim:realm_access.roles}") String roleClaim,
+                           @Value("${ai.usage.client-claim:azp}") String clientClaim,
+                           @Value("${ai.usage.persistence.enabled:true}") boolean persistenceEnabled,
+                           @Value("${ai.usage.persistence.directory:./data/usage}") Path directory,
+                           ObjectMapper objectMapper) {
+        this.quotas = quotas;
+        this.roleClaim = Arrays.asList(roleClaim.split("\\."));
+        this.clientClaim = clientClaim;
+        this.usageLog = persistenceEnabled ? new UsageLog(directory, objectMapper) : null;
+    }
+
+    /**
+     * Destinatario dell'addebito per l'utente autenticato.
+     */
+    public Account account(Authentication authentication) {
+        if (authentication == null) {
+            return new Account("", UNKNOWN_CLIENT, UsageQuotas.DEFAULT_TIER);
+        }
+        if (authentication instanceof JwtAuthenticationToken jwtAuth) {
+            var claims = jwtAuth.getToken().getClaims();
+            var clientId = claims.get(clientClaim);
+            return new Account(authentication.getName(), clientId != null ? clientId.toString() : UNKNOWN_CLIENT,
+                    quotas.tierOf(roles(claims)));
+        }
+        return new Account(authentication.getName(), UNKNOWN_CLIENT, UsageQuotas.DEFAULT_TIER);
+    }
+
+    /**
+     * Destinatario dell'addebito per la richiesta HTTP corrente.
+     */
+    public Account currentAccount() {
+        return account(SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    /**
+     * Destinatario dell'addebito per i job batch di {@code subject}, con il
+     * livello dell'ultima richiesta dell'utente.
+     */
+    public Account batchAccount(String subject) {
+        return new Account(subject, BATCH_CLIENT, quotas.lastTierOf(subject));
+    }
+
+    /**
+     * Verifica le quote dell'utente prima di avviare una generazione.
+     *
+     * @param rateLimited applica anche il limite di richieste al minuto
+     * @throws QuotaExceededException se un limite è superato
+     */
+    public void checkQuota(Account account, boolean rateLimited) {
+        quotas.check(account.subject(), account.tier(), rateLimited);
+    }
+
+    /**
+     * Addebita una generazione a partire dall'ultima risposta ricevuta. Se è la
+     * risposta finale di Ollama il tempo GPU è la durata riportata
+     * ({@code total-duration}, in mancanza la somma di caricamento, valutazione
+     * del prompt e generazione); se lo stream è stato interrotto prima, non
+     * essendoci durate riportate, si addebita il tempo trascorso.
+     *
+     * @param last    ultima risposta dello stream, {@code null} se non ne è arrivata nessuna
+     * @param elapsed tempo trascorso dall'avvio della generazione
+     */
+    public void record(Account account, ChatResponse last, Duration elapsed) {
+        var reported = last != null ? reportedDuration(last) : null;
+        record(account, last != null ? last.getMetadata().getUsage() : null, reported != null ? reported : elapsed);
+    }
+
+    /**
+     * Addebita una generazione conclusa (anche se annullata o troncata).
+     *
+     * @param usage token riportati dal modello, {@code null} se non disponibili
+     */
+    public void record(Account account, Usage usage, Duration generationTime) {
+        var accountCounters = counters.get(account);
+        if (accountCounters == null) {
+            accountCounters = counters.computeIfAbsent(account, a -> new Counters());
+        }
+        long promptTokens = usage != null && usage.getPromptTokens() != null ? usage.getPromptTokens() : 0;
+        long completionTokens = usage != null && usage.getCompletionTokens() != null ? usage.getCompletionTokens() : 0;
+        accountCounters.requests.increment();
+        accountCounters.promptTokens.add(promptTokens);
+        accountCounters.completionTokens.add(completionTokens);
+        accountCounters.gpuNanos.add(generationTime.toNanos());
+        quotas.consume(account.subject(), promptTokens + completionTokens, generationTime.toNanos(), clock.instant());
+    }
+
+    /**
+     * Durata della generazione riportata da Ollama, {@code null} se la risposta
+     * non è quella finale.
+     */
+    static Duration reportedDuration(ChatResponse response) {
+        var metadata = response.getMetadata();
+        Duration total = metadata.get(METADATA_TOTAL_DURATION);
+        if (total != null && total.isPositive()) {
+            return total;
+        }
+        Duration promptEval = metadata.get(METADATA_PROMPT_EVAL_DURATION);
+        Duration eval = metadata.get(METADATA_EVAL_DURATION);
+        if (promptEval == null && eval == null) {
+            return null;
+        }
+        Duration load = metadata.get(METADATA_LOAD_DURATION);
+        return Duration.ZERO
+                .plus(load != null ? load : Duration.ZERO)
+                .plus(promptEval != null ? promptEval : Duration.ZERO)
+                .plus(eval != null ? eval : Duration.ZERO);
+    }
+
+    /**
+     * Consumi dell'utente dall'avvio del servizio, per client.
+     */
+    public List<ClientUsage> usageOf(String subject) {
+        var usage = new ArrayList<ClientUsage>();
+        counters.forEach((account, accountCounters) -> {
+            if (account.subject().equals(subject)) {
+                usage.add(new ClientUsage(account.clientId(), account.tier(), accountCounters.requests.sum(),
+                        accountCounters.promptTokens.sum(), accountCounters.completionTokens.sum(),
+                        Duration.ofNanos(accountCounters.gpuNanos.sum())));
+            }
+        });
+        return usage;
+    }
+
+    /**
+     * Ricostruisce i consumi nella finestra delle quote dal registro su file.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restore() {
+        if (usageLog == null) {
+            return;
+        }
+        var entries = usageLog.loadSince(clock.instant().minus(quotas.window()));
+        for (var entry : entries) {
+            quotas.consume(entry.subject(), entry.promptTokens() + entry.completionTokens(),
+                    (long) (entry.gpuSeconds() * 1_000_000_000L), entry.timestamp());
+        }
+        if (!entries.isEmpty()) {
+            log.info("Restored {} usage records from the usage log", entries.size());
+        }
+    }
+
+    /**
+     * Accoda al registro i consumi dall'ultima scrittura; se la scrittura non
+     * riesce sono riproposti alla successiva.
+     */
+    @Scheduled(fixedDelayString = "${ai.usage.flush-interval:1m}")
+    public synchronized void flush() {
+        if (usageLog == null) {
+            return;
+        }
+        var now = clock.instant();
+        var entries = new ArrayList<UsageLog.Entry>();
+        var snapshots = new ArrayList<Map.Entry<Counters, long[]>>();
+        counters.forEach((account, accountCounters) -> {
+            var snapshot = accountCounters.snapshot();
+            var flushed = accountCounters.flushed;
+            if (snapshot[0] > flushed[0] || snapshot[3] > flushed[3]) {
+                entries.add(new UsageLog.Entry(now, account.subject(), account.clientId(), account.tier(),
+                        snapshot[0] - flushed[0], snapshot[1] - flushed[1], snapshot[2] - flushed[2],
+                        (snapshot[3] - flushed[3]) / 1e9));
+                snapshots.add(Map.entry(accountCounters, snapshot));
+            }
+        });
+        if (!entries.isEmpty() && usageLog.append(now, entries)) {
+            snapshots.forEach(snapshot -> snapshot.getKey().flushed = snapshot.getValue());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        flush();
+    }
+
+    private List<String> roles(Map<String, Object> claims) {
+        Object value = claims;
+        for (var name : roleClaim) {
+            if (!(value instanceof Map<?, ?> map)) {
+                return List.of();
+            }
+            value = map.get(name);
+        }
+        if (value instanceof Collection<?> collection) {
+            return collection.stream().map(String::valueOf).toList();
+        }
+        // claim come "scope": valori separati da spazi
+        return value instanceof String string ? Arrays.asList(string.split(" ")) : List.of();
+    }
+
+    private static final class Counters {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder promptTokens = new LongAdder();
+        private final LongAdder completionTokens = new LongAdder();
+        private final LongAdder gpuNanos = new LongAdder();
+        /** Valori già scritti nel registro, usati solo da {@link #flush()}. */
+        private long[] flushed = new long[4];
+
+        long[] snapshot() {
+            return new long[]{requests.sum(), promptTokens.sum(), completionTokens.sum(), gpuNanos.sum()};
+        }
+    }
+}
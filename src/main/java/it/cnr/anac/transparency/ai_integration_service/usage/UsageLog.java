@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Registro dei consumi su file: un file NDJSON per giorno (UTC), con una riga
+ * per utente e client a ogni scrittura periodica, contenente i consumi
+ * dall'ultima scrittura. Le righe sono solo accodate; al riavvio le righe
+ * recenti ricostruiscono i consumi nella finestra delle quote.
+ */
+@Slf4j
+class UsageLog {
+
+    private static final String PREFIX = "usage-";
+    private static final String SUFFIX = ".ndjson";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    UsageLog(Path directory, ObjectMapper objectMapper) {
+        this.directory = directory;
+        this.objectMapper = objectMapper;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile creare la directory dei consumi " + directory, e);
+        }
+    }
+
+    /**
+     * Accoda le righe al file del giorno corrente.
+     *
+     * @return {@code false} se la scrittura non è riuscita
+     */
+    synchronized boolean append(Instant now, List<Entry> entries) {
+        var file = directory.resolve(PREFIX + LocalDate.ofInstant(now, ZoneOffset.UTC) + SUFFIX);
+        try {
+            var lines = new StringBuilder();
+            for (var entry : entries) {
+                lines.append(objectMapper.writeValueAsString(entry)).append('\n');
+            }
+            Files.writeString(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            return true;
+        } catch (IOException e) {
+            log.warn("Impossibile aggiornare il registro dei consumi {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Righe registrate a partire dall'istante indicato.
+     */
+    List<Entry> loadSince(Instant since) {
+        var first = PREFIX + LocalDate.ofInstant(since, ZoneOffset.UTC) + SUFFIX;
+        var entries = new ArrayList<Entry>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(f -> {
+                        var name = f.getFileName().toString();
+                        // i nomi dei file sono ordinabili per data
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && name.compareTo(first) >= 0;
+                    })
+                    .sorted()
+                    .forEach(f -> load(f, since, entries));
+        } catch (IOException e) {
+            log.warn("Impossibile leggere la directory dei consumi {}: {}", directory, e.getMessage());
+        }
+        return entries;
+    }
+
+    private void load(Path file, Instant since, List<Entry> entries) {
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.isBlank()).forEach(line -> {
+                try {
+                    var entry = objectMapper.readValue(line, Entry.class);
+                    if (!entry.timestamp().isBefore(since)) {
+                        entries.add(entry);
+                    }
+                } catch (IOException e) {
+                    // riga troncata da un arresto durante la scrittura
+                    log.debug("Skipping an unreadable line of {}: {}", file, e.getMessage());
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Impossibile leggere il registro dei consumi {}: {}", file, e.getMessage());
+        }
+    }
+
+    record Entry(Instant timestamp, String subject, String clientId, String tier, long requests,
+                 long promptTokens, long completionTokens, double gpuSeconds) {}
+}
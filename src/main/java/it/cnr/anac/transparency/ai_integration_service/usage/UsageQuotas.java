@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limiti di consumo per utente (subject del JWT), configurati per livello in
+ * {@code ai.usage.tiers.<livello>.*}. Il livello di un utente è il primo, in
+ * ordine di dichiarazione, il cui {@code role} è tra i ruoli del token; in
+ * mancanza si applica il livello {@code default} (se non è configurato, nessun
+ * limite).
+ * <p>
+ * Ogni livello prevede:
+ * <ul>
+ *     <li>un limite di richieste al minuto ({@code requests-per-minute}), con
+ *     raffiche fino a {@code burst} richieste (token bucket per utente);</li>
+ *     <li>una quota di token (prompt e risposta, {@code max-tokens}) e di tempo
+ *     di generazione ({@code max-gpu-time}) nella finestra mobile
+ *     {@code ai.usage.quota.window}, suddivisa in {@code ai.usage.quota.slots}
+ *     intervalli che scadono uno alla volta.</li>
+ * </ul>
+ * Il consumo di una generazione è noto solo al suo termine: una richiesta è
+ * ammessa finché la quota non è esaurita, e l'ultima può superarla. {@code 0}
+ * disabilita il singolo limite.
+ */
+@Component
+public class UsageQuotas implements MeterBinder {
+
+    public static final String DEFAULT_TIER = "default";
+
+    private static final Tier UNLIMITED = new Tier(null, 0, 0, 0, Duration.ZERO);
+
+    /**
+     * Limiti di un livello.
+     *
+     * @param role              ruolo del token che assegna il livello
+     * @param requestsPerMinute richieste ammesse al minuto, 0 = nessun limite
+     * @param burst             richieste consecutive ammesse senza attesa, 0 = pari a {@code requestsPerMinute}
+     * @param maxTokens         token consumabili nella finestra, 0 = nessun limite
+     * @param maxGpuTime        tempo di generazione consumabile nella finestra, 0 = nessun limite
+     */
+    public record Tier(String role, int requestsPerMinute, int burst, long maxTokens, Duration maxGpuTime) {
+
+        public Tier {
+            maxGpuTime = maxGpuTime != null ? maxGpuTime : Duration.ZERO;
+        }
+    }
+
+    /**
+     * Consumo di un utente nella finestra mobile.
+     */
+    public record Consumption(long tokens, Duration gpuTime) {
+    }
+
+    private final boolean enabled;
+    private final Duration window;
+    private final long slotMillis;
+    private final int slots;
+    private final Map<String, Tier> tiers;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, SubjectState> subjects = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> rejected = new LinkedHashMap<>();
+
+    @Autowired
+    public UsageQuotas(Environment environment) {
+        this(environment.getProperty("ai.usage.quota.enabled", Boolean.class, true),
+                environment.getProperty("ai.usage.quota.window", Duration.class, Duration.ofDays(1)),
+                environment.getProperty("ai.usage.quota.slots", Integer.class, 24),
+                Binder.get(environment).bind("ai.usage.tiers", Bindable.mapOf(String.class, Tier.class))
+                        .orElse(Map.of()),
+                Clock.systemUTC());
+    }
+
+    UsageQuotas(boolean enabled, Duration window, int slots, Map<String, Tier> tiers, Clock clock) {
+        this.enabled = enabled;
+        this.window = window;
+        this.slots = slots;
+        this.slotMillis = Math.max(1, window.toMillis() / slots);
+        this.tiers = tiers;
+        this.clock = clock;
+        for (var reason : List.of("rate-limit", "token-quota", "gpu-quota")) {
+            rejected.put(reason, new LongAdder());
+        }
+    }
+
+    /**
+     * Livello assegnato a chi ha i ruoli indicati.
+     */
+    public String tierOf(Collection<String> roles) {
+        for (var entry : tiers.entrySet()) {
+            var role = entry.getValue().role();
+            if (role != null && !role.isBlank() && roles.contains(role)) {
+                return entry.getKey();
+            }
+        }
+        return DEFAULT_TIER;
+    }
+
+    /**
+     * Ultimo livello con cui l'utente ha inviato una richiesta, per le
+     * generazioni eseguite fuori da una richiesta HTTP (job batch).
+     */
+    public String lastTierOf(String subject) {
+        var state = subjects.get(subject);
+        return state != null && state.tier != null ? state.tier : DEFAULT_TIER;
+    }
+
+    public Tier tier(String name) {
+        return tiers.getOrDefault(name, UNLIMITED);
+    }
+
+    public Duration window() {
+        return window;
+    }
+
+    /**
+     * Verifica quota e, con {@code rateLimited}, limite di richieste, prelevando
+     * un gettone dal token bucket dell'utente.
+     *
+     * @throws QuotaExceededException se un limite è superato
+     */
+    public void check(String subject, String tierName, boolean rateLimited) {
+        var state = subjects.computeIfAbsent(subject, s -> new SubjectState());
+        state.tier = tierName;
+        if (!enabled) {
+            return;
+        }
+        var tier = tier(tierName);
+        long now = clock.millis();
+        String reason;
+        long retryAfterMillis;
+        synchronized (state) {
+            if (tier.maxTokens() > 0 && state.tokens(now) >= tier.maxTokens()) {
+                reason = "token-quota";
+                retryAfterMillis = state.untilRelease(now);
+            } else if (tier.maxGpuTime().isPositive() && state.gpuNanos(now) >= tier.maxGpuTime().toNanos()) {
+                reason = "gpu-quota";
+                retryAfterMillis = state.untilRelease(now);
+            } else if (rateLimited && tier.requestsPerMinute() > 0) {
+                retryAfterMillis = state.takeRequest(tier, now);
+                reason = retryAfterMillis > 0 ? "rate-limit" : null;
+            } else {
+                reason = null;
+                retryAfterMillis = 0;
+            }
+        }
+        if (reason != null) {
+            rejected.get(reason).increment();
+            throw new QuotaExceededException(switch (reason) {
+                case "rate-limit" -> "Troppe richieste, riprovare più tardi";
+                case "token-quota" -> "Quota di token esaurita";
+                default -> "Quota di tempo di generazione esaurita";
+            }, Duration.ofMillis(retryAfterMillis));
+        }
+    }
+
+    /**
+     * Addebita il consumo di una generazione, avvenuta all'istante indicato.
+     */
+    public void consume(String subject, long tokens, long gpuNanos, Instant at) {
+        var state = subjects.computeIfAbsent(subject, s -> new SubjectState());
+        synchronized (state) {
+            state.add(at.toEpochMilli(), clock.millis(), tokens, gpuNanos);
+        }
+    }
+
+    public Consumption consumption(String subject) {
+        var state = subjects.get(subject);
+        if (state == null) {
+            return new Consumption(0, Duration.ZERO);
+        }
+        long now = clock.millis();
+        synchronized (state) {
+            return new Consumption(state.tokens(now), Duration.ofNanos(state.gpuNanos(now)));
+        }
+    }
+
+    /**
+     * Richieste che l'utente può inviare subito, {@code -1} se non c'è limite.
+     */
+    public long availableRequests(String subject, String tierName) {
+        var tier = tier(tierName);
+        if (tier.requestsPerMinute() <= 0) {
+            return -1;
+        }
+        var state = subjects.get(subject);
+        if (state == null) {
+            return capacity(tier);
+        }
+        synchronized (state) {
+            return (long) state.refill(tier, clock.millis());
+        }
+    }
+
+    /**
+     * Rimuove gli utenti senza consumi nella finestra e con il token bucket pieno.
+     */
+    @Scheduled(fixedDelayString = "${ai.usage.quota.purge-interval:10m}")
+    public void purge() {
+        long now = clock.millis();
+        subjects.forEach((subject, state) -> {
+            var tier = tier(state.tier != null ? state.tier : DEFAULT_TIER);
+            synchronized (state) {
+                if (state.tokens(now) == 0 && state.gpuNanos(now) == 0 && state.refill(tier, now) >= capacity(tier)) {
+                    subjects.remove(subject, state);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        rejected.forEach((reason, counter) -> FunctionCounter.builder("ai.usage.rejected", counter, LongAdder::sum)
+                .tag("reason", reason)
+                .register(registry));
+        Gauge.builder("ai.usage.subjects", subjects, Map::size).register(registry);
+    }
+
+    private static int capacity(Tier tier) {
+        return tier.burst() > 0 ? tier.burst() : Math.max(1, tier.requestsPerMinute());
+    }
+
+    /**
+     * Stato di un utente, protetto dal suo monitor: token bucket e consumi per
+     * intervallo della finestra mobile (array circolari indicizzati per intervallo).
+     */
+    private final class SubjectState {
+        private volatile String tier;
+        private final long[] slotIds = new long[slots];
+        private final long[] tokens = new long[slots];
+        private final long[] gpuNanos = new long[slots];
+        private double bucket = -1;
+        private long refilledAt;
+
+        void add(long at, long now, long tokenCount, long nanos) {
+            long slot = at / slotMillis;
+            if (slot <= now / slotMillis - slots) {
+                return; // fuori dalla finestra
+            }
+            int index = (int) (slot % slots);
+            if (slotIds[index] > slot) {
+                return; // intervallo già riutilizzato da consumi più recenti
+            }
+            if (slotIds[index] < slot) {
+                slotIds[index] = slot;
+                tokens[index] = 0;
+                gpuNanos[index] = 0;
+            }
+            tokens[index] += tokenCount;
+            gpuNanos[index] += nanos;
+        }
+
+        long tokens(long now) {
+            return sum(tokens, now);
+        }
+
+        long gpuNanos(long now) {
+            return sum(gpuNanos, now);
+        }
+
+        private long sum(long[] values, long now) {
+            long current = now / slotMillis;
+            long total = 0;
+            for (int i = 0; i < slots; i++) {
+                if (slotIds[i] > current - slots) {
+                    total += values[i];
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Millisecondi alla scadenza dell'intervallo più vecchio con consumi.
+         */
+        long untilRelease(long now) {
+            long current = now / slotMillis;
+            long oldest = current;
+            for (int i = 0; i < slots; i++) {
+                if (slotIds[i] > current - slots && (tokens[i] > 0 || gpuNanos[i] > 0)) {
+                    oldest = Math.min(oldest, slotIds[i]);
+                }
+            }
+            return (oldest + slots) * slotMillis - now;
+        }
+
+        double refill(Tier tier, long now) {
+            int capacity = capacity(tier);
+            if (bucket < 0) {
+                bucket = capacity;
+            } else if (tier.requestsPerMinute() > 0) {
+                bucket = Math.min(capacity, bucket + (now - refilledAt) * tier.requestsPerMinute() / 60_000.0);
+            }
+            refilledAt = now;
+            return bucket;
+        }
+
+        /**
+         * Preleva un gettone: 0 se disponibile, altrimenti i millisecondi di attesa.
+         */
+        long takeRequest(Tier tier, long now) {
+            if (refill(tier, now) >= 1) {
+                bucket -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - bucket) * 60_000.0 / tier.requestsPerMinute());
+        }
+    }
+}
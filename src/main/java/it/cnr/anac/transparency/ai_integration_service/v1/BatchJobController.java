@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import it.cnr.anac.transparency.ai_integration_service.batch.BatchJob;
+import it.cnr.anac.transparency.ai_integration_service.batch.BatchJobService;
+import it.cnr.anac.transparency.ai_integration_service.v1.ChatStreamController.RoleMessageRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import reactor.core.publisher.Flux;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Job batch: lo stesso tipo di richiesta di {@code POST /v1/chat} eseguito in
+ * background su molti elementi (ad es. l'analisi dei risultati di trasparenza
+ * di migliaia di PA), senza tenere aperta una richiesta per elemento.
+ * <p>
+ * Gli elementi si inviano come JSON ({@code {"items":[...]}}) o come NDJSON (un
+ * elemento per riga); ciascuno ha un {@code id} facoltativo e un {@code message}
+ * oppure un elenco di {@code messages}. I risultati si leggono in NDJSON, anche
+ * mentre il job è in corso.
+ */
+@SecurityRequirement(name = "bearer_authentication")
+@Tag(
+        name = "AI Integration Service Batch",
+        description = "Endpoint REST per l'esecuzione di job batch di prompt.")
+@RequiredArgsConstructor
+@CrossOrigin
+@RestController
+@RequestMapping(ApiRoutes.BASE_PATH + "/batch/jobs")
+public class BatchJobController {
+
+    private final BatchJobService batchJobService;
+    private final ObjectMapper objectMapper;
+
+    @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<JobResponse> submit(@RequestBody JobRequest body, Authentication authentication) {
+        var items = body.items() != null ? body.items() : List.<ItemRequest>of();
+        return accepted(batchJobService.submit(authentication.getName(), toItems(items)));
+    }
+
+    @PostMapping(consumes = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<JobResponse> submitNdjson(@RequestBody String body, Authentication authentication) {
+        var items = new ArrayList<ItemRequest>();
+        var lines = body.lines().filter(StringUtils::hasText).toList();
+        for (int i = 0; i < lines.size(); i++) {
+            try {
+                items.add(objectMapper.readValue(lines.get(i), ItemRequest.class));
+            } catch (JsonProcessingException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Riga " + (i + 1) + " non valida");
+            }
+        }
+        return accepted(batchJobService.submit(authentication.getName(), toItems(items)));
+    }
+
+    @GetMapping
+    public List<JobResponse> list(Authentication authentication) {
+        return batchJobService.list(authentication.getName()).stream().map(JobResponse::from).toList();
+    }
+
+    @GetMapping("/{id}")
+    public JobResponse get(@PathVariable String id, Authentication authentication) {
+        return JobResponse.from(batchJobService.get(id, authentication.getName()));
+    }
+
+    /**
+     * Esiti degli elementi in ordine di completamento, uno per riga. Con
+     * {@code follow=true} lo stream resta aperto fino alla fine del job.
+     */
+    @GetMapping(path = "/{id}/results", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<BatchJob.ItemResult> results(@PathVariable String id,
+                                             @RequestParam(name = "follow", defaultValue = "false") boolean follow,
+                                             Authentication authentication) {
+        return batchJobService.get(id, authentication.getName()).results(follow);
+    }
+
+    /**
+     * Annulla il job: gli elementi non ancora eseguiti sono scartati, i risultati
+     * già prodotti restano disponibili.
+     */
+    @DeleteMapping("/{id}")
+    public JobResponse cancel(@PathVariable String id, Authentication authentication) {
+        return JobResponse.from(batchJobService.cancel(id, authentication.getName()));
+    }
+
+    private ResponseEntity<JobResponse> accepted(BatchJob job) {
+        var location = ServletUriComponentsBuilder.fromCurrentRequest().path("/{id}").buildAndExpand(job.getId()).toUri();
+        return ResponseEntity.accepted().location(location).body(JobResponse.from(job));
+    }
+
+    private static List<BatchJobService.ItemRequest> toItems(List<ItemRequest> items) {
+        var result = new ArrayList<BatchJobService.ItemRequest>();
+        for (int i = 0; i < items.size(); i++) {
+            var item = items.get(i);
+            List<Message> messages;
+            if (item.messages() != null && !item.messages().isEmpty()) {
+                messages = item.messages().stream().map(BatchJobController::toMessage).toList();
+            } else if (StringUtils.hasText(item.message())) {
+                messages = List.of(new UserMessage(item.message()));
+            } else {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Elemento " + (i + 1) + ": 'message' o 'messages' obbligatorio");
+            }
+            result.add(new BatchJobService.ItemRequest(item.id(), messages));
+        }
+        return result;
+    }
+
+    private static Message toMessage(RoleMessageRequest msg) {
+        return switch (msg.role()) {
+            case "user" -> new UserMessage(msg.text());
+            case "ai", "assistant" -> new AssistantMessage(msg.text());
+            default -> throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Ruolo non valido: " + msg.role());
+        };
+    }
+
+    /**
+     * DTO della richiesta JSON: gli elementi del job.
+     */
+    public record JobRequest(List<ItemRequest> items) {}
+
+    public record ItemRequest(String id, String message, List<RoleMessageRequest> messages) {}
+
+    /**
+     * DTO con stato e avanzamento di un job.
+     */
+    public record JobResponse(String id, BatchJob.Status status, Instant createdAt, Instant finishedAt,
+                              BatchJob.Progress progress) {
+
+        static JobResponse from(BatchJob job) {
+            return new JobResponse(job.getId(), job.getStatus(), job.getCreatedAt(), job.getFinishedAt(),
+                    job.getProgress());
+        }
+    }
+}
@@ -18,129 +18,224 @@ package it.cnr.anac.transparency.ai_integration_service.v1;
 
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
-import lombok.RequiredArgsConstructor;
+import it.cnr.anac.transparency.ai_integration_service.chat.AdmissionControl;
+import it.cnr.anac.transparency.ai_integration_service.chat.ChatMetrics;
+import it.cnr.anac.transparency.ai_integration_service.chat.ChatService;
+import it.cnr.anac.transparency.ai_integration_service.conversation.ConversationStore;
+import it.cnr.anac.transparency.ai_integration_service.tools.ParallelToolCallingManager;
 import lombok.extern.slf4j.Slf4j;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.messages.AbstractMessage;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.security.core.Authentication;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.http.HttpStatus;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
-import java.io.IOException;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static it.cnr.anac.transparency.ai_integration_service.chat.AdmissionControl.Priority.INTERACTIVE;
 
 /**
- * Controller REST che espone un endpoint SSE per lo streaming dei token
- * generati dal modello Ollama tramite Spring AI.
+ * Controller REST che espone un endpoint per lo streaming dei token generati
+ * dal modello Ollama tramite Spring AI, in SSE o in NDJSON a seconda
+ * dell'header {@code Accept}.
  */
 @SecurityRequirement(name = "bearer_authentication")
 @Tag(
         name = "AI Integration Service Controller",
         description = "Endpoint REST per l'interazione tramite messaggi di testo con LLM.")
 @Slf4j
-@RequiredArgsConstructor
 @CrossOrigin
 @RestController
 @RequestMapping(ApiRoutes.BASE_PATH + "/chat")
 public class ChatStreamController {
 
-    private final ChatClient chatClient;
-    private final ObjectMapper objectMapper;
-
-
-    private SseEmitter emitter(Flux<String> stringFlux) {
-        // Timeout: 2 minuti per conversazione (0L = infinito, ma meglio evitare connessioni orfane)
-        SseEmitter emitter = new SseEmitter(Duration.ofMinutes(2).toMillis());
-
-        // Sottoscrizione allo stream dei contenuti (token) del modello
-        var subscription = stringFlux
-                .subscribe(
-                        chunk -> {
-                            try {
-                                // Avvolgi il chunk in JSON per preservare spazi iniziali/finali attraverso SSE
-                                String json = toJson(new Chunk(chunk));
-                                emitter.send(SseEmitter.event()
-                                        .name("token")
-                                        .data(json, MediaType.APPLICATION_JSON)
-                                );
-                            } catch (IOException e) {
-                                // Se il client ha chiuso la connessione o c'è I/O error, interrompi lo stream
-                                try {
-                                    emitter.send(SseEmitter.event().name("error").data("Connessione client interrotta"));
-                                } catch (IOException ignored) {}
-                                emitter.complete();
-                            }
-                        },
-                        err -> {
-                            try {
-                                String msg = err.getMessage();
-                                if (msg == null) msg = err.getClass().getSimpleName();
-                                emitter.send(SseEmitter.event()
-                                        .name("error")
-                                        .data(msg, MediaType.TEXT_PLAIN)
-                                );
-                            } catch (IOException ignored) {
-                            } finally {
-                                emitter.complete();
-                            }
-                        },
-                        () -> {
-                            try {
-                                emitter.send(SseEmitter.event().name("end"));
-                            } catch (IOException ignored) {
-                            } finally {
-                                emitter.complete();
-                            }
-                        }
-                );
-
-        // Se il client chiude la connessione, annulla la sottoscrizione
-        emitter.onCompletion(subscription::dispose);
-        emitter.onTimeout(() -> {
-            try {
-                emitter.send(SseEmitter.event().name("error").data("Timeout connessione"));
-            } catch (IOException ignored) {
-            } finally {
-                subscription.dispose();
-                emitter.complete();
-            }
-        });
-
-        return emitter;
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    private final ChatService chatService;
+    private final TokenFrameEncoder tokenFrameEncoder;
+    private final ConversationStore conversationStore;
+    private final ChatMetrics chatMetrics;
+    private final ResumableStreams resumableStreams;
+    private final Duration streamTimeout;
+
+    public ChatStreamController(ChatService chatService, TokenFrameEncoder tokenFrameEncoder,
+                                ConversationStore conversationStore, ChatMetrics chatMetrics,
+                                ResumableStreams resumableStreams,
+                                @Value("${ai.chat.stream-timeout:2m}") Duration streamTimeout) {
+        this.chatService = chatService;
+        this.tokenFrameEncoder = tokenFrameEncoder;
+        this.conversationStore = conversationStore;
+        this.chatMetrics = chatMetrics;
+        this.resumableStreams = resumableStreams;
+        this.streamTimeout = streamTimeout;
+    }
+
+    /**
+     * Converte lo stream dei token del modello negli eventi dello stream, serviti
+     * poi come SSE o come NDJSON.
+     * <p>
+     * Lo stream è consumato in modo non bloccante: Spring MVC richiede un evento
+     * alla volta (backpressure) e nessun thread servlet resta occupato durante la
+     * generazione. Se il client chiude la connessione la sottoscrizione viene
+     * cancellata e con essa la richiesta verso Ollama (per SSE solo se il client
+     * non si riconnette entro il periodo di grazia, vedi {@link ResumableStreams}).
+     *
+     * @param coalesce accorpa più token per evento (vedi {@link TokenFrameEncoder}), {@code null} per il default
+     */
+    private Flux<StreamEvent> toStreamEvents(Flux<String> stringFlux, Boolean coalesce) {
+        // Stato della coda di generazione ed esiti dei tool, inviati man mano che arrivano
+        Sinks.Many<StreamEvent> progress = Sinks.many().unicast().onBackpressureBuffer();
+        AdmissionControl.QueueListener queueListener = status -> emit(progress, queuedEvent(status));
+        ParallelToolCallingManager.ToolCallListener toolCallListener =
+                (tool, duration, timedOut) -> emit(progress, toolEvent(tool, duration, timedOut));
+        // Token consumati, inviati dopo l'ultimo token e prima della fine dello stream
+        var usage = new AtomicReference<Usage>();
+        ChatService.UsageListener usageListener = usage::set;
+        // Avvolgi i chunk in JSON per preservare spazi iniziali/finali attraverso SSE
+        var events = tokenFrameEncoder.encode(stringFlux, coalesce)
+                .map(frame -> new StreamEvent(StreamEvent.TOKEN, frame))
+                .concatWith(Mono.fromSupplier(usage::get).map(ChatStreamController::usageEvent))
+                .concatWith(Mono.fromSupplier(StreamEvent::end))
+                .onErrorResume(err -> {
+                    String msg = err instanceof ResponseStatusException rse ? rse.getReason() : err.getMessage();
+                    if (msg == null) msg = err.getClass().getSimpleName();
+                    return Mono.just(StreamEvent.error(msg));
+                })
+                .contextWrite(ctx -> ctx.put(AdmissionControl.QueueListener.class, queueListener)
+                        .put(ParallelToolCallingManager.ToolCallListener.class, toolCallListener)
+                        .put(ChatService.UsageListener.class, usageListener));
+        // Timeout complessivo della conversazione (evita connessioni orfane)
+        var timeout = Mono.delay(streamTimeout)
+                .doOnNext(t -> chatMetrics.sseTimeout())
+                .map(t -> StreamEvent.error("Timeout connessione"));
+        return Flux.merge(progress.asFlux(), events, timeout)
+                .takeUntil(StreamEvent::isTerminal);
+    }
+
+    /**
+     * Eventi SSE con id, riprendibili con {@code Last-Event-ID} (vedi {@link ResumableStreams}).
+     */
+    private Flux<ServerSentEvent<String>> toServerSentEvents(Flux<String> stringFlux, Boolean coalesce,
+                                                             Authentication authentication) {
+        return chatMetrics.sseStream(resumableStreams.start(authentication.getName(),
+                toStreamEvents(stringFlux, coalesce)));
+    }
+
+    /**
+     * Righe NDJSON già codificate: Spring MVC le scrive così come sono, seguite
+     * da un a capo, e svuota il buffer della risposta dopo ogni riga.
+     */
+    private Flux<byte[]> toNdjson(Flux<String> stringFlux, Boolean coalesce) {
+        return chatMetrics.sseStream(toStreamEvents(stringFlux, coalesce).map(StreamEvent::toNdjson));
+    }
+
+    private static void emit(Sinks.Many<StreamEvent> sink, StreamEvent event) {
+        // le notifiche possono arrivare da thread diversi (scheduler della coda, tool in parallelo)
+        synchronized (sink) {
+            sink.tryEmitNext(event);
+        }
+    }
+
+    private static StreamEvent queuedEvent(AdmissionControl.QueueStatus status) {
+        return new StreamEvent(StreamEvent.QUEUED, "{\"position\":" + status.position()
+                + ",\"queueSize\":" + status.queueSize()
+                + ",\"waitedMs\":" + status.waited().toMillis() + "}");
+    }
+
+    private static StreamEvent toolEvent(String tool, Duration duration, boolean timedOut) {
+        var data = new StringBuilder(64).append("{\"name\":\"");
+        TokenFrameEncoder.appendEscaped(data, tool);
+        data.append("\",\"durationMs\":").append(duration.toMillis())
+                .append(",\"timedOut\":").append(timedOut).append('}');
+        return new StreamEvent(StreamEvent.TOOL, data.toString());
+    }
+
+    private static StreamEvent usageEvent(Usage usage) {
+        return new StreamEvent(StreamEvent.USAGE, "{\"promptTokens\":" + usage.getPromptTokens()
+                + ",\"completionTokens\":" + usage.getCompletionTokens() + "}");
+    }
+
+    /**
+     * La cache delle risposte si salta con {@code ?cache=false} (utile per EventSource,
+     * che non permette header) o con {@code Cache-Control: no-cache}/{@code no-store}.
+     */
+    private static boolean useCache(Boolean cacheParam, String cacheControl) {
+        if (cacheParam != null) {
+            return cacheParam;
+        }
+        return cacheControl == null || !(cacheControl.contains("no-cache") || cacheControl.contains("no-store"));
     }
 
     /**
      * Avvia lo streaming SSE dei token della risposta del modello.
      * Eventi inviati:
-     *  - name: "token" (chunk di testo)
+     *  - name: "queued" (posizione in coda e attesa, finché la generazione non parte)
+     *  - name: "token" (chunk di testo, uno o più token accorpati)
+     *  - name: "tool" (esito di una chiamata a un tool MCP: nome, durata, timeout)
+     *  - name: "usage" (token di prompt e di risposta, se riportati dal modello)
      *  - name: "end" (fine stream)
      *  - name: "error" (errore durante l'elaborazione)
+     * Con l'header {@code Last-Event-ID} di uno stream ancora in memoria la risposta
+     * riprende dall'evento successivo e il body è ignorato.
      */
     @PostMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter postStream(@RequestBody StreamRequest body) {
-        List<Message> messages = Arrays.stream(body.messages())
-                .map(this::convertToMessage)
+    public Flux<ServerSentEvent<String>> postStream(@RequestBody StreamRequest body,
+                                                    @RequestParam(name = "coalesce", required = false) Boolean coalesce,
+                                                    @RequestParam(name = "cache", required = false) Boolean cache,
+                                                    @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
+                                                    @RequestHeader(name = LAST_EVENT_ID, required = false) String lastEventId,
+                                                    Authentication authentication) {
+        var resumed = resumableStreams.resume(lastEventId, authentication.getName());
+        if (resumed != null) {
+            return chatMetrics.sseStream(resumed);
+        }
+        return toServerSentEvents(streamTokens(body, useCache(cache, cacheControl), authentication), coalesce,
+                authentication);
+    }
+
+    /**
+     * Come {@link #postStream}, per i client che chiedono {@code Accept: application/x-ndjson}:
+     * un oggetto JSON compatto per riga con il tipo di evento nel campo {@code type},
+     * es. {@code {"type":"token","text":"Ciao"}}, {@code {"type":"error","message":"..."}}.
+     */
+    @PostMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<byte[]> postStreamNdjson(@RequestBody StreamRequest body,
+                                         @RequestParam(name = "coalesce", required = false) Boolean coalesce,
+                                         @RequestParam(name = "cache", required = false) Boolean cache,
+                                         @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
+                                         Authentication authentication) {
+        return toNdjson(streamTokens(body, useCache(cache, cacheControl), authentication), coalesce);
+    }
+
+    private Flux<String> streamTokens(StreamRequest body, boolean useCache, Authentication authentication) {
+        List<Message> newMessages = Arrays.stream(body.messages())
+                .map(ChatStreamController::convertToMessage)
                 .toList();
-        return emitter(this.chatClient
-                .prompt()
-                .messages(messages)
-                .stream()
-                .content());
+        if (!StringUtils.hasText(body.conversationId())) {
+            // Conversazione gestita dal client: i messaggi contengono l'intero storico
+            return chatService.stream(newMessages, useCache, INTERACTIVE);
+        }
+        // Conversazione lato server: lo storico è nello store, il client invia solo i nuovi messaggi
+        var conversation = conversationStore.get(body.conversationId(), authentication.getName());
+        return conversationStore.recordTurn(conversation, newMessages,
+                messages -> chatService.stream(messages, useCache, INTERACTIVE));
     }
 
-    private Message convertToMessage(RoleMessageRequest msg) {
+    static Message convertToMessage(RoleMessageRequest msg) {
         return switch (msg.role()) {
             case "user" -> new UserMessage(msg.text());
             case "ai", "assistant" -> new AssistantMessage(msg.text());
@@ -149,33 +244,51 @@ public class ChatStreamController {
     }
 
     @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter stream(@RequestParam(name = "message") String message) {
+    public Flux<ServerSentEvent<String>> stream(@RequestParam(name = "message") String message,
+                                                @RequestParam(name = "coalesce", required = false) Boolean coalesce,
+                                                @RequestParam(name = "cache", required = false) Boolean cache,
+                                                @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
+                                                @RequestHeader(name = LAST_EVENT_ID, required = false) String lastEventId,
+                                                Authentication authentication) {
         if (!StringUtils.hasText(message)) {
             // errore immediato con SSE minimale (chiudiamo subito)
-            SseEmitter bad = new SseEmitter(0L);
-            try {
-                bad.send(SseEmitter.event().name("error").data("Parametro 'message' obbligatorio"));
-            } catch (IOException ignored) {
-            }
-            bad.complete();
-            return bad;
+            return Flux.just(StreamEvent.error("Parametro 'message' obbligatorio").toServerSentEvent());
         }
-        return emitter(this.chatClient
-                .prompt()
-                .user(message)
-                .stream()
-                .content());
+        // EventSource si riconnette allo stesso URL inviando l'id dell'ultimo evento ricevuto
+        var resumed = resumableStreams.resume(lastEventId, authentication.getName());
+        if (resumed != null) {
+            return chatMetrics.sseStream(resumed);
+        }
+        return toServerSentEvents(chatService.stream(List.of(new UserMessage(message)),
+                useCache(cache, cacheControl), INTERACTIVE), coalesce, authentication);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<byte[]> streamNdjson(@RequestParam(name = "message") String message,
+                                     @RequestParam(name = "coalesce", required = false) Boolean coalesce,
+                                     @RequestParam(name = "cache", required = false) Boolean cache,
+                                     @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl) {
+        if (!StringUtils.hasText(message)) {
+            return Flux.just(StreamEvent.error("Parametro 'message' obbligatorio").toNdjson());
+        }
+        return toNdjson(chatService.stream(List.of(new UserMessage(message)),
+                useCache(cache, cacheControl), INTERACTIVE), coalesce);
     }
 
     /**
      * Endpoint non-streaming compatibile con client che inviano POST /api/chat.
      * Accetta sia JSON {"message":"..."} sia il parametro di query/form "message".
      * Ritorna la risposta completa in testo semplice.
+     * La generazione è aggregata in modo non bloccante: il thread servlet viene
+     * rilasciato subito e la risposta è scritta al completamento. Le risposte
+     * sono servite dalla cache quando possibile (opt-out con {@code ?cache=false}).
      */
     // Accetta sia /api/chat che /api/chat/
     @PostMapping(path = {"", "/"}, produces = MediaType.TEXT_PLAIN_VALUE)
-    public String chat(@RequestBody(required = false) MessageRequest body,
-                       @RequestParam(name = "message", required = false) String message) {
+    public Mono<String> chat(@RequestBody(required = false) MessageRequest body,
+                       @RequestParam(name = "message", required = false) String message,
+                       @RequestParam(name = "cache", required = false) Boolean cache,
+                       @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl) {
         if (log.isInfoEnabled()) {
             log.info("[POST /api/chat] message(param)='{}', message(body)='{}'",
                     message, (body != null ? body.message() : null));
@@ -193,12 +306,7 @@ public class ChatStreamController {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parametro 'message' obbligatorio");
         }
 
-        // Chiamata sincrona non-streaming
-        return this.chatClient
-                .prompt()
-                .user(prompt)
-                .call()
-                .content();
+        return chatService.call(List.of(new UserMessage(prompt)), useCache(cache, cacheControl));
     }
 
     /**
@@ -206,8 +314,10 @@ public class ChatStreamController {
      * Utile per client che inviano il corpo come testo invece che JSON.
      */
     @PostMapping(path = {"", "/"}, consumes = MediaType.TEXT_PLAIN_VALUE, produces = MediaType.TEXT_PLAIN_VALUE)
-    public String chatText(@RequestBody String prompt,
-                           @RequestParam(name = "message", required = false) String messageParam) {
+    public Mono<String> chatText(@RequestBody String prompt,
+                           @RequestParam(name = "message", required = false) String messageParam,
+                           @RequestParam(name = "cache", required = false) Boolean cache,
+                           @RequestHeader(name = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl) {
         if (log.isInfoEnabled()) {
             log.info("[POST /api/chat text/plain] message(param)='{}', bodyLength={}",
                     messageParam, (prompt != null ? prompt.length() : null));
@@ -224,11 +334,7 @@ public class ChatStreamController {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Parametro 'message' obbligatorio");
         }
 
-        return this.chatClient
-                .prompt()
-                .user(effective)
-                .call()
-                .content();
+        return chatService.call(List.of(new UserMessage(effective)), useCache(cache, cacheControl));
     }
 
     /**
@@ -248,23 +354,10 @@ public class ChatStreamController {
     public record MessageRequest(String message) {}
     /**
      * DTO minimale per il body JSON della richiesta POST con STREAM.
+     * Con {@code conversationId} (vedi {@link ConversationController}) i messaggi
+     * sono solo quelli del turno corrente, altrimenti l'intero storico.
      */
-    public record StreamRequest(RoleMessageRequest[] messages) {}
+    public record StreamRequest(RoleMessageRequest[] messages, String conversationId) {}
 
     public record RoleMessageRequest(String role, String text) {}
-
-    // Wrapper JSON per preservare gli spazi nei chunk: {"c":"..."}
-    private record Chunk(String text) {}
-
-    private String toJson(Object obj) {
-        try {
-            return objectMapper.writeValueAsString(obj);
-        } catch (JsonProcessingException e) {
-            // Fallback minimale
-            if (obj instanceof Chunk) {
-                return "{\"text\":\"\"}";
-            }
-            return "{}";
-        }
-    }
 }
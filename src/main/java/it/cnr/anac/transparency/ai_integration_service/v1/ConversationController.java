@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import it.cnr.anac.transparency.ai_integration_service.conversation.Conversation;
+import it.cnr.anac.transparency.ai_integration_service.conversation.ConversationStore;
+import it.cnr.anac.transparency.ai_integration_service.v1.ChatStreamController.RoleMessageRequest;
+import lombok.RequiredArgsConstructor;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Gestione delle conversazioni mantenute lato server. Una volta creata una
+ * conversazione il client invia a {@code POST /v1/chat/stream} il suo
+ * {@code conversationId} e solo i nuovi messaggi di ogni turno.
+ */
+@SecurityRequirement(name = "bearer_authentication")
+@Tag(
+        name = "AI Integration Service Conversations",
+        description = "Endpoint REST per la gestione delle conversazioni mantenute lato server.")
+@RequiredArgsConstructor
+@CrossOrigin
+@RestController
+@RequestMapping(ApiRoutes.BASE_PATH + "/chat/conversations")
+public class ConversationController {
+
+    private final ConversationStore conversationStore;
+
+    @PostMapping
+    @ResponseStatus(HttpStatus.CREATED)
+    public ConversationResponse create(Authentication authentication) {
+        return ConversationResponse.from(conversationStore.create(authentication.getName()));
+    }
+
+    @GetMapping("/{id}")
+    public ConversationResponse get(@PathVariable String id, Authentication authentication) {
+        return ConversationResponse.from(conversationStore.get(id, authentication.getName()));
+    }
+
+    @DeleteMapping("/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void delete(@PathVariable String id, Authentication authentication) {
+        conversationStore.delete(id, authentication.getName());
+    }
+
+    /**
+     * DTO con l'identificativo e lo storico di una conversazione.
+     */
+    public record ConversationResponse(String id, List<RoleMessageRequest> messages) {
+
+        static ConversationResponse from(Conversation conversation) {
+            return new ConversationResponse(conversation.getId(), conversation.getMessages().stream()
+                    .map(m -> new RoleMessageRequest(
+                            m.getMessageType() == MessageType.ASSISTANT ? "assistant" : "user", m.getText()))
+                    .toList());
+        }
+    }
+}
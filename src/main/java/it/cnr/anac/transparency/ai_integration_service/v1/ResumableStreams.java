@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stream SSE riprendibili dopo una disconnessione.
+ * <p>
+ * Ogni evento ha un {@code id} SSE {@code <stream>:<n>} con {@code n} crescente.
+ * Gli ultimi {@code ai.chat.sse.resume.buffer-size} eventi restano in un buffer
+ * circolare; se il client si disconnette la generazione prosegue per
+ * {@code ai.chat.sse.resume.grace-period} e viene annullata solo se nessun
+ * client si riconnette. Una richiesta con l'header {@code Last-Event-ID} (inviato
+ * in automatico da {@code EventSource}) riceve gli eventi successivi a quello
+ * indicato e poi quelli nuovi, senza rigenerare la risposta. Concluso, lo stream
+ * resta riprendibile per lo stesso periodo.
+ */
+@Slf4j
+@Component
+public class ResumableStreams implements MeterBinder {
+
+    private static final char ID_SEPARATOR = ':';
+
+    private final boolean enabled;
+    private final Duration gracePeriod;
+    private final int bufferSize;
+    private final Map<String, ResumableStream> streams = new ConcurrentHashMap<>();
+
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder notResumable = new LongAdder();
+    private final LongAdder abandoned = new LongAdder();
+
+    public ResumableStreams(@Value("${ai.chat.sse.resume.enabled:true}") boolean enabled,
+                            @Value("${ai.chat.sse.resume.grace-period:30s}") Duration gracePeriod,
+                            @Value("${ai.chat.sse.resume.buffer-size:1024}") int bufferSize) {
+        this.enabled = enabled;
+        this.gracePeriod = gracePeriod;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Serve {@code events} come nuovo stream riprendibile di {@code owner}. La
+     * sottoscrizione a {@code events} parte con quella del primo client.
+     */
+    public Flux<ServerSentEvent<String>> start(String owner, Flux<StreamEvent> events) {
+        if (!enabled) {
+            return events.map(StreamEvent::toServerSentEvent);
+        }
+        var stream = new ResumableStream(UUID.randomUUID().toString(), owner, events);
+        streams.put(stream.id, stream);
+        return stream.subscribe(0);
+    }
+
+    /**
+     * Riprende lo stream dopo l'evento {@code lastEventId}; {@code null} se lo
+     * stream non esiste più (o non è di {@code owner}) e va quindi avviata una
+     * nuova generazione.
+     */
+    public Flux<ServerSentEvent<String>> resume(String lastEventId, String owner) {
+        if (!enabled || lastEventId == null) {
+            return null;
+        }
+        int separator = lastEventId.lastIndexOf(ID_SEPARATOR);
+        var stream = separator > 0 ? streams.get(lastEventId.substring(0, separator)) : null;
+        if (stream == null || !stream.owner.equals(owner)) {
+            notResumable.increment();
+            return null;
+        }
+        long after;
+        try {
+            after = Long.parseLong(lastEventId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            notResumable.increment();
+            return null;
+        }
+        resumed.increment();
+        log.debug("Resuming SSE stream {} after event {}", stream.id, after);
+        return stream.subscribe(after);
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("ai.chat.sse.resume.streams", streams, Map::size)
+                .description("Stream SSE riprendibili in memoria")
+                .register(registry);
+        FunctionCounter.builder("ai.chat.sse.resume.requests", resumed, LongAdder::sum)
+                .tag("outcome", "resumed").register(registry);
+        FunctionCounter.builder("ai.chat.sse.resume.requests", notResumable, LongAdder::sum)
+                .tag("outcome", "unknown").register(registry);
+        FunctionCounter.builder("ai.chat.sse.resume.abandoned", abandoned, LongAdder::sum)
+                .description("Generazioni annullate perché il client non si è riconnesso")
+                .register(registry);
+    }
+
+    private record Entry(long sequence, StreamEvent event) {
+    }
+
+    /**
+     * Stream condiviso tra il client originale e quelli che si riconnettono.
+     * Gli eventi sono inoltrati ai client sotto il monitor dell'istanza, così
+     * l'ordine è lo stesso del buffer anche durante una ripresa.
+     */
+    private final class ResumableStream {
+
+        private final String id;
+        private final String owner;
+        private final Flux<StreamEvent> events;
+
+        // protetti dal monitor dell'istanza
+        private final ArrayDeque<Entry> buffer = new ArrayDeque<>();
+        private final List<FluxSink<Entry>> clients = new CopyOnWriteArrayList<>();
+        private long lastSequence;
+        private boolean connected;
+        private boolean done;
+        private Disposable source;
+        private Disposable graceTimer;
+
+        ResumableStream(String id, String owner, Flux<StreamEvent> events) {
+            this.id = id;
+            this.owner = owner;
+            this.events = events;
+        }
+
+        Flux<ServerSentEvent<String>> subscribe(long after) {
+            return Flux.<Entry>create(sink -> {
+                        sink.onDispose(() -> detach(sink));
+                        if (attach(sink, after)) {
+                            connect();
+                        }
+                    })
+                    .takeUntil(entry -> entry.event().isTerminal())
+                    .map(entry -> entry.sequence() > 0
+                            ? entry.event().toServerSentEvent(id + ID_SEPARATOR + entry.sequence())
+                            : entry.event().toServerSentEvent());
+        }
+
+        /**
+         * Invia al client gli eventi del buffer successivi ad {@code after} e lo
+         * registra per quelli nuovi; {@code true} se va avviata la generazione.
+         */
+        private synchronized boolean attach(FluxSink<Entry> sink, long after) {
+            var first = buffer.peekFirst();
+            if (first != null && first.sequence() > after + 1) {
+                // il buffer circolare ha già scartato eventi che il client non ha ricevuto
+                sink.next(new Entry(0, StreamEvent.error("Impossibile riprendere lo stream: eventi non più disponibili")));
+                return false;
+            }
+            for (var entry : buffer) {
+                if (entry.sequence() > after) {
+                    sink.next(entry);
+                }
+            }
+            if (done) {
+                sink.complete();
+                return false;
+            }
+            if (!sink.isCancelled()) {
+                clients.add(sink);
+                if (graceTimer != null) {
+                    graceTimer.dispose();
+                    graceTimer = null;
+                }
+            }
+            var connect = !connected;
+            connected = true;
+            return connect;
+        }
+
+        private void connect() {
+            var subscription = events.subscribe(this::append, this::fail, this::complete);
+            boolean finished;
+            synchronized (this) {
+                source = subscription;
+                finished = done;
+            }
+            if (finished) {
+                // concluso (o abbandonato) prima che la sottoscrizione fosse registrata
+                subscription.dispose();
+            }
+        }
+
+        private synchronized void detach(FluxSink<Entry> sink) {
+            if (clients.remove(sink) && clients.isEmpty() && !done) {
+                // nessun client connesso: la generazione prosegue fino alla fine del periodo di grazia
+                graceTimer = Mono.delay(gracePeriod).subscribe(tick -> abandon());
+            }
+        }
+
+        private void abandon() {
+            Disposable toCancel;
+            synchronized (this) {
+                if (!clients.isEmpty() || done) {
+                    return;
+                }
+                done = true;
+                toCancel = source;
+            }
+            streams.remove(id, this);
+            abandoned.increment();
+            log.debug("SSE stream {} abandoned by its client, generation cancelled", id);
+            if (toCancel != null) {
+                toCancel.dispose();
+            }
+        }
+
+        private synchronized void append(StreamEvent event) {
+            var entry = new Entry(++lastSequence, event);
+            buffer.addLast(entry);
+            if (buffer.size() > bufferSize) {
+                buffer.removeFirst();
+            }
+            clients.forEach(client -> client.next(entry));
+        }
+
+        private void fail(Throwable error) {
+            append(StreamEvent.error(error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName()));
+            complete();
+        }
+
+        private void complete() {
+            synchronized (this) {
+                done = true;
+                clients.forEach(FluxSink::complete);
+            }
+            // lo stream concluso resta riprendibile per il periodo di grazia
+            Mono.delay(gracePeriod).subscribe(tick -> streams.remove(id, this));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import org.springframework.http.codec.ServerSentEvent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Evento di uno stream di chat, indipendente dal formato di trasporto: lo
+ * stesso stream è servito come SSE ({@code text/event-stream}) o come NDJSON
+ * ({@code application/x-ndjson}).
+ * <p>
+ * {@code data} è un oggetto JSON per tutti gli eventi tranne {@code error}
+ * (messaggio di testo) ed {@code end} (nessun dato), come negli eventi SSE.
+ *
+ * @param type nome dell'evento: {@code queued}, {@code token}, {@code tool}, {@code usage}, {@code end}, {@code error}
+ */
+record StreamEvent(String type, String data) {
+
+    static final String TOKEN = "token";
+    static final String QUEUED = "queued";
+    static final String TOOL = "tool";
+    static final String USAGE = "usage";
+    static final String END = "end";
+    static final String ERROR = "error";
+
+    private static final byte[] END_LINE = "{\"type\":\"end\"}".getBytes(StandardCharsets.UTF_8);
+
+    static StreamEvent end() {
+        return new StreamEvent(END, null);
+    }
+
+    static StreamEvent error(String message) {
+        return new StreamEvent(ERROR, message);
+    }
+
+    boolean isTerminal() {
+        return END.equals(type) || ERROR.equals(type);
+    }
+
+    ServerSentEvent<String> toServerSentEvent() {
+        return ServerSentEvent.<String>builder().event(type).data(data).build();
+    }
+
+    ServerSentEvent<String> toServerSentEvent(String id) {
+        return ServerSentEvent.<String>builder().id(id).event(type).data(data).build();
+    }
+
+    /**
+     * Riga NDJSON già codificata in UTF-8 (senza il separatore, aggiunto da
+     * Spring MVC): il tipo è il primo campo dell'oggetto, seguito dai campi di
+     * {@code data}, es. {@code {"type":"token","text":"Ciao"}}.
+     */
+    byte[] toNdjson() {
+        if (data == null) {
+            return END.equals(type) ? END_LINE : ("{\"type\":\"" + type + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+        var line = new StringBuilder(data.length() + type.length() + 24).append("{\"type\":\"").append(type);
+        if (ERROR.equals(type)) {
+            line.append("\",\"message\":\"");
+            TokenFrameEncoder.appendEscaped(line, data);
+            line.append("\"}");
+        } else {
+            // data è un oggetto JSON non vuoto: se ne riusano i campi dopo la '{'
+            line.append('"');
+            if (data.length() > 2) {
+                line.append(',');
+            }
+            line.append(data, 1, data.length());
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
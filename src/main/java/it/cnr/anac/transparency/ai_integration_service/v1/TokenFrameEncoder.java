@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codifica i token generati dal modello nei frame JSON {@code {"text":"..."}}
+ * inviati negli eventi SSE {@code token}.
+ * <p>
+ * Il JSON viene scritto direttamente in un buffer riusato per tutto lo stream,
+ * senza passare da Jackson. In modalità coalescente i token sono accorpati in
+ * un unico frame per finestra temporale ({@code ai.chat.sse.coalesce.window}) o
+ * al raggiungimento di una soglia in byte ({@code ai.chat.sse.coalesce.max-bytes});
+ * se il client è lento i token continuano ad accumularsi nello stesso frame
+ * invece di accodare eventi. La modalità un-evento-per-token resta disponibile.
+ */
+@Component
+public class TokenFrameEncoder {
+
+    private static final String FRAME_PREFIX = "{\"text\":\"";
+    private static final String FRAME_SUFFIX = "\"}";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final boolean coalesceByDefault;
+    private final Duration window;
+    private final int maxBytes;
+    private final Scheduler scheduler = Schedulers.parallel();
+
+    public TokenFrameEncoder(@Value("${ai.chat.sse.coalesce.enabled:true}") boolean coalesceByDefault,
+                             @Value("${ai.chat.sse.coalesce.window:20ms}") Duration window,
+                             @Value("${ai.chat.sse.coalesce.max-bytes:256}") int maxBytes) {
+        this.coalesceByDefault = coalesceByDefault;
+        this.window = window;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Trasforma lo stream dei token in frame JSON.
+     *
+     * @param coalesce {@code true}/{@code false} per forzare la modalità, {@code null} per il default configurato
+     */
+    public Flux<String> encode(Flux<String> tokens, Boolean coalesce) {
+        boolean coalesced = coalesce != null ? coalesce : coalesceByDefault;
+        if (!coalesced) {
+            return Flux.defer(() -> {
+                var buffer = new StringBuilder(64);
+                return tokens.map(token -> {
+                    buffer.setLength(0);
+                    buffer.append(FRAME_PREFIX);
+                    appendEscaped(buffer, token);
+                    return buffer.append(FRAME_SUFFIX).toString();
+                });
+            });
+        }
+        return Flux.create(sink -> {
+            var coalescer = new Coalescer(sink);
+            sink.onRequest(n -> coalescer.drain());
+            sink.onDispose(coalescer::shutdown);
+            tokens.subscribe(coalescer);
+        });
+    }
+
+    /**
+     * Scrive {@code text} come contenuto di una stringa JSON (senza virgolette).
+     */
+    static void appendEscaped(StringBuilder out, CharSequence text) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                case '\b' -> out.append("\\b");
+                case '\f' -> out.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lunghezza in byte UTF-8 di {@code text}, senza allocare l'array codificato.
+     */
+    static int utf8Length(CharSequence text) {
+        int bytes = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                // ogni metà di una coppia surrogata vale 2 dei 4 byte del code point
+                bytes += 2;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Accumula i token in un frame ed emette quando la finestra scade, la soglia
+     * in byte è raggiunta o lo stream termina, sempre solo se il client ha
+     * richiesto un nuovo elemento. Lo stato è protetto dal monitor dell'istanza,
+     * così l'ordine dei frame è preservato anche quando emette il timer.
+     */
+    private final class Coalescer extends BaseSubscriber<String> {
+
+        private final FluxSink<String> sink;
+        private final StringBuilder pending = new StringBuilder(512);
+        private int pendingBytes;
+        private boolean windowExpired;
+        private Disposable timer;
+        private boolean done;
+        private Throwable error;
+        private boolean terminated;
+
+        Coalescer(FluxSink<String> sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public Context currentContext() {
+            return Context.of(sink.contextView());
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        protected synchronized void hookOnNext(String token) {
+            if (pending.isEmpty()) {
+                pending.append(FRAME_PREFIX);
+            }
+            appendEscaped(pending, token);
+            pendingBytes += utf8Length(token);
+            if (pendingBytes < maxBytes && timer == null && !windowExpired) {
+                timer = scheduler.schedule(this::onWindowExpired, window.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            drain();
+        }
+
+        @Override
+        protected synchronized void hookOnComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        protected synchronized void hookOnError(Throwable throwable) {
+            done = true;
+            error = throwable;
+            drain();
+        }
+
+        private synchronized void onWindowExpired() {
+            timer = null;
+            windowExpired = true;
+            drain();
+        }
+
+        synchronized void drain() {
+            if (terminated) {
+                return;
+            }
+            boolean ready = windowExpired || pendingBytes >= maxBytes || done;
+            if (!pending.isEmpty() && ready && sink.requestedFromDownstream() > 0) {
+                String frame = pending.append(FRAME_SUFFIX).toString();
+                pending.setLength(0);
+                pendingBytes = 0;
+                windowExpired = false;
+                if (timer != null) {
+                    timer.dispose();
+                    timer = null;
+                }
+                sink.next(frame);
+            }
+            if (done && pending.isEmpty()) {
+                terminated = true;
+                if (error != null) {
+                    sink.error(error);
+                } else {
+                    sink.complete();
+                }
+            }
+        }
+
+        synchronized void shutdown() {
+            if (timer != null) {
+                timer.dispose();
+                timer = null;
+            }
+            cancel();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageAccounting;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageQuotas;
+import lombok.RequiredArgsConstructor;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+/**
+ * Consumi dell'utente autenticato: utilizzo nella finestra delle quote, limiti
+ * del suo livello e totali per client dall'avvio del servizio.
+ */
+@SecurityRequirement(name = "bearer_authentication")
+@Tag(
+        name = "AI Integration Service Usage",
+        description = "Endpoint REST per la consultazione dei consumi e delle quote dell'utente.")
+@RequiredArgsConstructor
+@CrossOrigin
+@RestController
+@RequestMapping(ApiRoutes.BASE_PATH + "/usage")
+public class UsageController {
+
+    private final UsageAccounting usageAccounting;
+    private final UsageQuotas usageQuotas;
+
+    @GetMapping
+    public UsageResponse usage(Authentication authentication) {
+        var account = usageAccounting.account(authentication);
+        var tier = usageQuotas.tier(account.tier());
+        var consumption = usageQuotas.consumption(account.subject());
+        var window = new WindowUsage(usageQuotas.window().toSeconds(), consumption.tokens(),
+                consumption.gpuTime().toMillis() / 1000.0);
+        var limits = new Limits(tier.requestsPerMinute(), tier.burst(),
+                usageQuotas.availableRequests(account.subject(), account.tier()),
+                tier.maxTokens(), tier.maxGpuTime().toSeconds());
+        var clients = usageAccounting.usageOf(account.subject()).stream()
+                .map(usage -> new ClientUsage(usage.clientId(), usage.requests(), usage.promptTokens(),
+                        usage.completionTokens(), usage.gpuTime().toMillis() / 1000.0))
+                .toList();
+        return new UsageResponse(account.subject(), account.tier(), window, limits, clients);
+    }
+
+    /**
+     * DTO con i consumi dell'utente. I limiti a {@code 0} non sono applicati;
+     * {@code availableRequests} è {@code -1} se non c'è limite di richieste.
+     */
+    public record UsageResponse(String subject, String tier, WindowUsage window, Limits limits,
+                                List<ClientUsage> clients) {}
+
+    public record WindowUsage(long durationSeconds, long tokens, double gpuSeconds) {}
+
+    public record Limits(int requestsPerMinute, int burst, long availableRequests, long maxTokens,
+                         long maxGpuSeconds) {}
+
+    public record ClientUsage(String clientId, long requests, long promptTokens, long completionTokens,
+                              double gpuSeconds) {}
+}
@@ -0,0 +1,27 @@
+package it.cnr.anac.transparency.ai_integration_service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.TypeReference;
+import org.springframework.aot.hint.predicate.RuntimeHintsPredicates;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AiIntegrationRuntimeHintsTest {
+
+	@Test
+	void journalRecordsAreBoundByReflection() {
+		var hints = new RuntimeHints();
+		new AiIntegrationRuntimeHints().registerHints(hints, getClass().getClassLoader());
+
+		for (var type : AiIntegrationRuntimeHints.JSON_TYPES) {
+			assertTrue(RuntimeHintsPredicates.reflection().onType(TypeReference.of(type))
+					.withMemberCategory(MemberCategory.INVOKE_DECLARED_CONSTRUCTORS).test(hints), type);
+		}
+		// tipi dei componenti, raggiunti a partire dai record registrati
+		assertTrue(RuntimeHintsPredicates.reflection()
+				.onType(TypeReference.of("it.cnr.anac.transparency.ai_integration_service.batch.BatchJournal$JournalItem"))
+				.test(hints));
+	}
+}
@@ -0,0 +1,125 @@
+package it.cnr.anac.transparency.ai_integration_service.batch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.cnr.anac.transparency.ai_integration_service.chat.ChatService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BatchJobServiceTest {
+
+	@TempDir
+	Path journalDirectory;
+
+	private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+	@Test
+	void failedItemsAreRetried() {
+		var chatService = mock(ChatService.class);
+		var calls = new AtomicInteger();
+		when(chatService.callAs(anyList(), anyString())).thenAnswer(invocation -> {
+			List<Message> messages = invocation.getArgument(0);
+			if (messages.getFirst().getText().equals("instabile") && calls.incrementAndGet() == 1) {
+				return Mono.error(new IllegalStateException("Ollama non raggiungibile"));
+			}
+			return Mono.just("risposta a " + messages.getFirst().getText());
+		});
+		var service = service(chatService);
+
+		var job = service.submit("alice", List.of(item("a", "stabile"), item("b", "instabile")));
+
+		var results = job.results(true).collectList().block(Duration.ofSeconds(5));
+		assertEquals(BatchJob.Status.COMPLETED, job.getStatus());
+		assertEquals(2, results.size());
+		var retried = results.stream().filter(result -> result.id().equals("b")).findFirst().orElseThrow();
+		assertEquals("done", retried.status());
+		assertEquals(2, retried.attempts());
+	}
+
+	@Test
+	void unfinishedJobIsResumedFromTheJournal() {
+		var interrupted = mock(ChatService.class);
+		when(interrupted.callAs(anyList(), anyString())).thenAnswer(invocation -> {
+			List<Message> messages = invocation.getArgument(0);
+			return messages.getFirst().getText().equals("primo") ? Mono.just("uno") : Mono.never();
+		});
+		var job = service(interrupted).submit("alice", List.of(item("1", "primo"), item("2", "secondo")));
+		assertEquals(new BatchJob.Progress(2, 0, 1, 1, 0), job.getProgress());
+
+		var restarted = mock(ChatService.class);
+		when(restarted.callAs(anyList(), anyString())).thenReturn(Mono.just("due"));
+		var service = service(restarted);
+		service.resume();
+
+		var resumed = service.get(job.getId(), "alice");
+		var results = resumed.results(true).map(BatchJob.ItemResult::result).collectList().block(Duration.ofSeconds(5));
+		assertEquals(List.of("uno", "due"), results);
+		assertEquals(BatchJob.Status.COMPLETED, resumed.getStatus());
+	}
+
+	@Test
+	void cancellingALargeJobDropsItsQueuedItems() {
+		var chatService = mock(ChatService.class);
+		when(chatService.callAs(anyList(), anyString())).thenReturn(Mono.never());
+		var service = service(chatService, 10_000);
+		var registry = new SimpleMeterRegistry();
+		service.bindTo(registry);
+		var job = service.submit("alice", items(10_000));
+		assertEquals(9_998, registry.get("ai.batch.queue.size").gauge().value());
+
+		service.cancel(job.getId(), "alice");
+
+		assertEquals(BatchJob.Status.CANCELLED, job.getStatus());
+		assertEquals(0, registry.get("ai.batch.queue.size").gauge().value());
+		assertEquals(0, registry.get("ai.batch.running").gauge().value());
+	}
+
+	@Test
+	void itemsCompletingSynchronouslyDoNotNestDispatches() {
+		var chatService = mock(ChatService.class);
+		when(chatService.callAs(anyList(), anyString())).thenReturn(Mono.just("ok"));
+		var service = service(chatService, 10_000);
+
+		var job = service.submit("alice", items(10_000));
+
+		assertEquals(BatchJob.Status.COMPLETED, job.getStatus());
+		assertEquals(10_000, job.getProgress().done());
+	}
+
+	private BatchJobService service(ChatService chatService) {
+		return service(chatService, 100);
+	}
+
+	private BatchJobService service(ChatService chatService, int maxItems) {
+		return new BatchJobService(chatService, 2, maxItems, 3, Duration.ofSeconds(5), Duration.ofMillis(10),
+				Duration.ofDays(1), true, journalDirectory, objectMapper);
+	}
+
+	private static BatchJobService.ItemRequest item(String id, String text) {
+		return new BatchJobService.ItemRequest(id, List.of(new UserMessage(text)));
+	}
+
+	private static List<BatchJobService.ItemRequest> items(int count) {
+		var items = new ArrayList<BatchJobService.ItemRequest>(count);
+		for (int i = 0; i < count; i++) {
+			items.add(item(String.valueOf(i), "domanda " + i));
+		}
+		return items;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResponseCacheTest {
+
+	private static final List<Message> QUESTION = List.of(new UserMessage("Quali obblighi ha il Comune?"));
+
+	private final MutableClock clock = new MutableClock(Instant.parse("2026-01-01T00:00:00Z"));
+	private final ResponseCache cache = new ResponseCache(true, 100, 65536, Duration.ofMinutes(10), 0.95,
+			"system", null, clock);
+
+	@Test
+	void responsesAreNotSharedBetweenUsers() {
+		cache.put(cache.lookup(QUESTION, "alice", "model", true).block(), "risposta per alice");
+
+		var alice = cache.lookup(QUESTION, "alice", "model", true).block();
+		var bob = cache.lookup(QUESTION, "bob", "model", true).block();
+
+		assertEquals("risposta per alice", alice.response());
+		assertFalse(bob.hit());
+		assertNotEquals(alice.key(), bob.key());
+	}
+
+	@Test
+	void keyKeepsCaseAndIgnoresWhitespace() {
+		var original = cache.lookup(QUESTION, "alice", "model", true).block();
+		var spaced = cache.lookup(List.of(new UserMessage("  Quali  obblighi ha\nil Comune? ")), "alice", "model", true)
+				.block();
+		var lowercase = cache.lookup(List.of(new UserMessage("quali obblighi ha il comune?")), "alice", "model", true)
+				.block();
+		var otherModel = cache.lookup(QUESTION, "alice", "other-model", true).block();
+
+		assertEquals(original.key(), spaced.key());
+		assertNotEquals(original.key(), lowercase.key());
+		assertNotEquals(original.key(), otherModel.key());
+	}
+
+	@Test
+	void optOutNeitherReadsNorWritesTheCache() {
+		cache.put(cache.lookup(QUESTION, "alice", "model", true).block(), "in cache");
+
+		var optedOut = cache.lookup(QUESTION, "alice", "model", false).block();
+		assertFalse(optedOut.hit());
+		assertFalse(optedOut.cacheable());
+
+		cache.put(optedOut, "nuova risposta");
+		assertEquals("in cache", cache.lookup(QUESTION, "alice", "model", true).block().response());
+	}
+
+	@Test
+	void entriesExpireAfterTheTtl() {
+		cache.put(cache.lookup(QUESTION, "alice", "model", true).block(), "risposta");
+
+		clock.advance(Duration.ofMinutes(9));
+		assertTrue(cache.lookup(QUESTION, "alice", "model", true).block().hit());
+
+		clock.advance(Duration.ofMinutes(2));
+		assertFalse(cache.lookup(QUESTION, "alice", "model", true).block().hit());
+	}
+
+	static final class MutableClock extends Clock {
+
+		private Instant now;
+
+		MutableClock(Instant now) {
+			this.now = now;
+		}
+
+		void advance(Duration duration) {
+			now = now.plus(duration);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import it.cnr.anac.transparency.ai_integration_service.chat.AdmissionControl.Priority;
+import it.cnr.anac.transparency.ai_integration_service.ollama.OllamaBackendPool;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdmissionControlTest {
+
+	private final List<String> started = new ArrayList<>();
+	private final Map<String, Sinks.Empty<String>> running = new HashMap<>();
+
+	@Test
+	void interactiveFirstThenRoundRobinBetweenUsers() {
+		var admission = new AdmissionControl(poolWithCapacity(1), true, 10, Duration.ofMinutes(1));
+
+		submit(admission, "running", Priority.INTERACTIVE, "alice");
+		submit(admission, "alice-batch", Priority.BATCH, "alice");
+		submit(admission, "alice-1", Priority.INTERACTIVE, "alice");
+		submit(admission, "alice-2", Priority.INTERACTIVE, "alice");
+		submit(admission, "bob-1", Priority.INTERACTIVE, "bob");
+		assertEquals(List.of("running"), started);
+
+		for (var name : List.of("running", "alice-1", "bob-1", "alice-2")) {
+			running.get(name).tryEmitEmpty();
+		}
+
+		assertEquals(List.of("running", "alice-1", "bob-1", "alice-2", "alice-batch"), started);
+	}
+
+	@Test
+	void cancelledWaiterLeavesTheQueue() {
+		var admission = new AdmissionControl(poolWithCapacity(1), true, 10, Duration.ofMinutes(1));
+
+		submit(admission, "running", Priority.INTERACTIVE, "alice");
+		submit(admission, "cancelled", Priority.INTERACTIVE, "bob").dispose();
+		submit(admission, "next", Priority.INTERACTIVE, "carol");
+		running.get("running").tryEmitEmpty();
+
+		assertEquals(List.of("running", "next"), started);
+	}
+
+	@Test
+	void fullQueueIsRejectedWithRetryAfter() {
+		var admission = new AdmissionControl(poolWithCapacity(1), true, 1, Duration.ofMinutes(1));
+		submit(admission, "running", Priority.INTERACTIVE, "alice");
+		submit(admission, "queued", Priority.INTERACTIVE, "bob");
+
+		var error = new ArrayList<Throwable>();
+		admission.admit(Priority.INTERACTIVE, "carol", Flux.just("x")).subscribe(null, error::add);
+
+		var rejection = assertInstanceOf(AdmissionRejectedException.class, error.getFirst());
+		assertEquals(429, rejection.getStatusCode().value());
+		assertEquals("1", rejection.getHeaders().getFirst("Retry-After"));
+	}
+
+	private Disposable submit(AdmissionControl admission, String name, Priority priority, String subject) {
+		var done = Sinks.<String>empty();
+		running.put(name, done);
+		var work = Flux.defer(() -> {
+			started.add(name);
+			return done.asMono().flux();
+		});
+		return admission.admit(priority, subject, work).subscribe();
+	}
+
+	private static OllamaBackendPool poolWithCapacity(int capacity) {
+		var pool = mock(OllamaBackendPool.class);
+		when(pool.capacity()).thenReturn(capacity);
+		return pool;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.beans.factory.ObjectProvider;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChatMetricsTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@Test
+	void tokensAreTimedWithMetersRegisteredOncePerModelAndEndpoint() {
+		var metrics = metrics();
+
+		metrics.generation(responses("a", "b", "c"), "llama3.1:8b", "/v1/chat/stream").blockLast();
+		int meterCount = registry.getMeters().size();
+		metrics.generation(responses("d", "e"), "llama3.1:8b", "/v1/chat/stream").blockLast();
+
+		assertEquals(meterCount, registry.getMeters().size());
+		assertEquals(2, registry.get("ai.chat.ttft").tag("model", "llama3.1:8b").timer().count());
+		assertEquals(3, registry.get("ai.chat.inter-token.latency").tag("model", "llama3.1:8b").timer().count());
+		assertEquals(2, registry.get("ai.chat.generation.duration").tag("outcome", "success").timer().count());
+	}
+
+	@Test
+	void cancelledGenerationsAreCountedByReason() {
+		var metrics = metrics();
+
+		metrics.generation(responses("a", "b", "c"), "llama3.1:8b", "/v1/chat/stream",
+				() -> ChatMetrics.StopReason.MAX_DURATION).take(1).blockLast();
+
+		assertEquals(1, registry.get("ai.chat.generations.stopped").tag("reason", "max_duration").counter().count());
+		assertEquals(1, registry.get("ai.chat.generation.duration").tag("outcome", "cancelled").timer().count());
+	}
+
+	@SuppressWarnings("unchecked")
+	private ChatMetrics metrics() {
+		ObjectProvider<ObservationRegistry> observationRegistry = mock(ObjectProvider.class);
+		when(observationRegistry.getIfUnique(any())).thenReturn(ObservationRegistry.NOOP);
+		return new ChatMetrics(registry, observationRegistry);
+	}
+
+	private static Flux<ChatResponse> responses(String... tokens) {
+		return Flux.fromArray(tokens)
+				.map(token -> new ChatResponse(List.of(new Generation(new AssistantMessage(token)))));
+	}
+}
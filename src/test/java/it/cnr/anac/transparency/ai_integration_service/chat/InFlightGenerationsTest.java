@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InFlightGenerationsTest {
+
+	private final AtomicInteger generations = new AtomicInteger();
+	private final Sinks.Many<String> tokens = Sinks.many().replay().all();
+
+	@Test
+	void sameUserSharesOneGeneration() {
+		var inFlight = new InFlightGenerations(true);
+		var first = new ArrayList<String>();
+		var second = new ArrayList<String>();
+
+		inFlight.join("alice", "key", this::generation).subscribe(first::add);
+		tokens.tryEmitNext("a");
+		inFlight.join("alice", "key", this::generation).subscribe(second::add);
+		tokens.tryEmitNext("b");
+		tokens.tryEmitComplete();
+
+		assertEquals(1, generations.get());
+		assertEquals(List.of("a", "b"), first);
+		assertEquals(List.of("a", "b"), second);
+	}
+
+	@Test
+	void differentUsersNeverShareAGeneration() {
+		var inFlight = new InFlightGenerations(true);
+
+		inFlight.join("alice", "key", this::generation).subscribe();
+		inFlight.join("bob", "key", this::generation).subscribe();
+
+		assertEquals(2, generations.get());
+	}
+
+	@Test
+	void finishedGenerationIsNotReused() {
+		var inFlight = new InFlightGenerations(true);
+
+		inFlight.join("alice", "key", () -> countedJust("a")).blockLast();
+		inFlight.join("alice", "key", () -> countedJust("b")).blockLast();
+
+		assertEquals(2, generations.get());
+	}
+
+	@Test
+	void disabledCoalescingAlwaysStartsANewGeneration() {
+		var inFlight = new InFlightGenerations(false);
+
+		inFlight.join("alice", "key", this::generation).subscribe();
+		inFlight.join("alice", "key", this::generation).subscribe();
+
+		assertEquals(2, generations.get());
+	}
+
+	private Flux<String> generation() {
+		generations.incrementAndGet();
+		return tokens.asFlux();
+	}
+
+	private Flux<String> countedJust(String token) {
+		generations.incrementAndGet();
+		return Flux.just(token);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.chat;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Flux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+
+class ModelRouterTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final List<String> clients = new ArrayList<>();
+
+	@Test
+	void requestsAreRoutedByLengthDepthAndLikelyTools() {
+		var router = router(environment());
+
+		assertEquals(List.of("mixtral:8x22b", "qwen2.5:7b"), clients);
+		var simple = router.route(List.of(new UserMessage("Grazie, puoi riassumere?")));
+		assertEquals("small", simple.name());
+		assertEquals("mixtral:8x22b", simple.fallbackModel());
+
+		var tools = router.route(List.of(new UserMessage("Quali sono i risultati del codice IPA c_h501?")));
+		assertEquals("two-stage", tools.name());
+		assertEquals("qwen2.5:7b", tools.toolModel());
+		assertEquals("mixtral:8x22b", tools.model());
+
+		assertEquals("large", router.route(List.of(new UserMessage("x".repeat(301)))).name());
+		assertEquals("large", router.route(conversation(7)).name());
+		assertEquals("small", router.route(conversation(6)).name());
+	}
+
+	@Test
+	void requestsWithoutToolsIgnoreTheToolsPatternAndUseToolFreeClients() {
+		var router = router(environment());
+
+		var route = router.route(List.of(new UserMessage("Quali sono i risultati del Comune di Pisa?")), false);
+		assertEquals("small", route.name());
+		assertNotSame(router.client("qwen2.5:7b", true), router.client("qwen2.5:7b", false));
+		assertNotSame(router.client("mixtral:8x22b", true), router.client("mixtral:8x22b", false));
+	}
+
+	@Test
+	void disabledRoutingSendsEverythingToTheLargeModel() {
+		var router = router(environment().withProperty("ai.chat.routing.enabled", "false"));
+
+		var route = router.route(List.of(new UserMessage("Ciao")));
+		assertEquals("large", route.name());
+		assertNull(route.fallbackModel());
+		assertEquals(List.of("mixtral:8x22b"), clients);
+		assertEquals("mixtral:8x22b", router.fingerprint());
+	}
+
+	@Test
+	void withoutTwoStageRequestsWithToolsGoToTheLargeModel() {
+		var router = router(environment().withProperty("ai.chat.routing.two-stage.enabled", "false"));
+
+		assertEquals("large", router.route(List.of(new UserMessage("Verifica il Comune di Bari"))).name());
+	}
+
+	@Test
+	void routeLatencyAndFallbacksAreRecordedPerRoute() {
+		var router = router(environment());
+		var route = router.route(List.of(new UserMessage("Ciao")));
+
+		router.observe(route, Flux.just("a", "b")).blockLast();
+		router.fallback(route, ModelRouter.FallbackReason.EMPTY);
+
+		assertEquals(1, registry.get("ai.chat.route.requests").tag("route", "small").counter().count());
+		assertEquals(1, registry.get("ai.chat.route.ttft").tag("route", "small").timer().count());
+		assertEquals(1, registry.get("ai.chat.route.duration").tags("route", "small", "outcome", "success")
+				.timer().count());
+		assertEquals(1, registry.get("ai.chat.route.fallbacks").tags("route", "small", "reason", "empty")
+				.counter().count());
+	}
+
+	private ModelRouter router(MockEnvironment environment) {
+		return new ModelRouter(environment, (model, tools) -> {
+			if (tools) {
+				clients.add(model);
+			}
+			return mock(ChatClient.class);
+		}, registry);
+	}
+
+	private static MockEnvironment environment() {
+		return new MockEnvironment()
+				.withProperty("spring.ai.ollama.chat.options.model", "mixtral:8x22b")
+				.withProperty("ai.chat.routing.enabled", "true")
+				.withProperty("ai.chat.routing.small-model", "qwen2.5:7b")
+				.withProperty("ai.chat.routing.simple.max-chars", "300")
+				.withProperty("ai.chat.routing.simple.max-depth", "6")
+				.withProperty("ai.chat.routing.tools.pattern", "(?i)\\b(ipa|comun[ei]|risultat[oi])\\b");
+	}
+
+	private static List<Message> conversation(int userTurns) {
+		var messages = new ArrayList<Message>();
+		for (int i = 0; i < userTurns; i++) {
+			if (i > 0) {
+				messages.add(AssistantMessage.builder().content("Risposta " + i).build());
+			}
+			messages.add(new UserMessage("Domanda " + i));
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient;
+import org.springframework.security.oauth2.client.endpoint.OAuth2ClientCredentialsGrantRequest;
+import org.springframework.security.oauth2.client.registration.ClientRegistration;
+import org.springframework.security.oauth2.core.AuthorizationGrantType;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthorizationException;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientCredentialsTokenCacheTest {
+
+	private static final String REGISTRATION_ID = "authserver-client-credentials";
+	private static final ClientRegistration REGISTRATION = ClientRegistration.withRegistrationId(REGISTRATION_ID)
+			.clientId("ai-integration-service")
+			.clientSecret("secret")
+			.authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+			.tokenUri("https://auth.example.org/token")
+			.build();
+
+	// i token del token endpoint scadono dopo 300s dall'istante reale di emissione
+	private final MutableClock clock = new MutableClock(Instant.now());
+	private final AtomicInteger requests = new AtomicInteger();
+	private volatile boolean failing;
+
+	@Test
+	void concurrentMissesRequestASingleToken() throws Exception {
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var cache = cache(request -> {
+			started.countDown();
+			await(release);
+			return response();
+		});
+		var executor = Executors.newFixedThreadPool(8);
+		try {
+			var results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> cache.getAccessToken(REGISTRATION_ID)));
+			}
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			release.countDown();
+			var tokens = new HashSet<String>();
+			for (var result : results) {
+				tokens.add(result.get(5, TimeUnit.SECONDS));
+			}
+
+			assertEquals(1, requests.get());
+			assertEquals(1, tokens.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void tokenIsRefreshedAheadOfExpiry() {
+		var cache = cache(request -> response());
+
+		assertEquals("token-1", cache.getAccessToken(REGISTRATION_ID));
+		clock.advance(Duration.ofSeconds(200));
+		assertEquals("token-1", cache.getAccessToken(REGISTRATION_ID));
+		assertEquals("token-1", cache.getCachedAccessToken(REGISTRATION_ID));
+
+		// a meno di 60s dalla scadenza
+		clock.advance(Duration.ofSeconds(50));
+		assertNull(cache.getCachedAccessToken(REGISTRATION_ID));
+		assertEquals("token-2", cache.getAccessToken(REGISTRATION_ID));
+		assertEquals(2, cache.getRefreshes());
+	}
+
+	@Test
+	void failedRefreshAheadFallsBackToTheValidToken() {
+		var cache = cache(request -> response());
+		cache.getAccessToken(REGISTRATION_ID);
+
+		failing = true;
+		clock.advance(Duration.ofSeconds(250));
+		assertEquals("token-1", cache.getAccessToken(REGISTRATION_ID));
+
+		clock.advance(Duration.ofSeconds(60));
+		assertThrows(OAuth2AuthorizationException.class, () -> cache.getAccessToken(REGISTRATION_ID));
+	}
+
+	@Test
+	void failedRefreshAheadDoesNotReturnATokenThatExpiredMeanwhile() {
+		var cache = cache(request -> {
+			if (requests.get() > 1) {
+				// il token endpoint risponde dopo la scadenza del token corrente
+				clock.advance(Duration.ofSeconds(120));
+			}
+			return response();
+		});
+		cache.getAccessToken(REGISTRATION_ID);
+
+		failing = true;
+		clock.advance(Duration.ofSeconds(250));
+		assertThrows(OAuth2AuthorizationException.class, () -> cache.getAccessToken(REGISTRATION_ID));
+	}
+
+	@Test
+	void invalidatedTokenIsReplacedOnlyIfStillCurrent() {
+		var cache = cache(request -> response());
+		cache.getAccessToken(REGISTRATION_ID);
+
+		cache.invalidate(REGISTRATION_ID, "stale-token");
+		assertEquals("token-1", cache.getAccessToken(REGISTRATION_ID));
+
+		cache.invalidate(REGISTRATION_ID, "token-1");
+		assertNull(cache.getCachedAccessToken(REGISTRATION_ID));
+		assertEquals("token-2", cache.getAccessToken(REGISTRATION_ID));
+	}
+
+	private ClientCredentialsTokenCache cache(
+			OAuth2AccessTokenResponseClient<OAuth2ClientCredentialsGrantRequest> tokenEndpoint) {
+		return new ClientCredentialsTokenCache(registrationId -> REGISTRATION, Duration.ofSeconds(60), clock,
+				request -> {
+					int n = requests.incrementAndGet();
+					var response = tokenEndpoint.getTokenResponse(request);
+					if (failing) {
+						throw new OAuth2AuthorizationException(new OAuth2Error("server_error", "token endpoint down " + n, null));
+					}
+					return response;
+				});
+	}
+
+	private OAuth2AccessTokenResponse response() {
+		return OAuth2AccessTokenResponse.withToken("token-" + requests.get())
+				.tokenType(OAuth2AccessToken.TokenType.BEARER)
+				.expiresIn(300)
+				.build();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static final class MutableClock extends Clock {
+
+		private volatile Instant now;
+
+		MutableClock(Instant now) {
+			this.now = now;
+		}
+
+		void advance(Duration duration) {
+			now = now.plus(duration);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamClientHttpConnectorTest {
+
+	private static final String TEXT = "{\"type\":\"token\",\"text\":\"Amministrazione trasparente\"}\n".repeat(500);
+
+	private final AtomicReference<String> acceptEncoding = new AtomicReference<>();
+	// la scrittura verso il client è fallita: il client ha chiuso la connessione
+	private final CountDownLatch aborted = new CountDownLatch(1);
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private HttpServer server;
+	private String baseUrl;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/gzip", exchange -> {
+			acceptEncoding.set(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+			var body = gzip(TEXT);
+			exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+			exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+			exchange.sendResponseHeaders(200, body.length);
+			try (var out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.createContext("/stream", exchange -> stream(exchange, 0));
+		server.createContext("/slow-headers", exchange -> stream(exchange, 500));
+		server.createContext("/redirect", exchange -> {
+			exchange.getResponseHeaders().add("Location", "/gzip");
+			exchange.sendResponseHeaders(302, -1);
+			exchange.close();
+		});
+		server.setExecutor(executor);
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@AfterEach
+	void stopServer() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Test
+	void upstreamsAreAssignedToThePoolOfTheirClass() {
+		var connector = connector(new MockEnvironment()
+				.withProperty("ai.ollama.backends", "http://gpu1:11434, http://GPU2:11434")
+				.withProperty("spring.ai.mcp.client.streamable-http.connections.trasparenza.url", "https://mcp.example.org"));
+		try {
+			assertEquals("ollama", connector.poolName(URI.create("http://gpu2:11434/api/chat")));
+			assertEquals("mcp", connector.poolName(URI.create("https://mcp.example.org:443/mcp")));
+			assertEquals("default", connector.poolName(URI.create("http://gpu1:8080/api/chat")));
+		} finally {
+			connector.destroy();
+		}
+	}
+
+	@Test
+	void compressedResponsesAreDecodedForPoolsWithCompression() {
+		var connector = connector(new MockEnvironment()
+				.withProperty("ai.ollama.backends", baseUrl)
+				.withProperty("ai.http.pools.ollama.compression", "true"));
+		try {
+			var body = WebClient.builder().clientConnector(connector).build()
+					.get().uri(baseUrl + "/gzip")
+					.retrieve()
+					.bodyToMono(String.class)
+					.block(Duration.ofSeconds(5));
+
+			assertEquals(TEXT, body);
+			assertTrue(acceptEncoding.get().contains("gzip"));
+		} finally {
+			connector.destroy();
+		}
+	}
+
+	@Test
+	void cancellingTheBodyClosesTheUpstreamConnection() throws InterruptedException {
+		var connector = connector(new MockEnvironment().withProperty("ai.ollama.backends", baseUrl));
+		try {
+			var lines = WebClient.builder().clientConnector(connector).build()
+					.get().uri(baseUrl + "/stream")
+					.retrieve()
+					.bodyToFlux(String.class)
+					.take(2)
+					.collectList()
+					.block(Duration.ofSeconds(5));
+
+			assertEquals(2, lines.size());
+			assertTrue(aborted.await(5, TimeUnit.SECONDS), "la connessione verso l'upstream deve essere chiusa");
+		} finally {
+			connector.destroy();
+		}
+	}
+
+	@Test
+	void cancellingBeforeTheHeadersClosesTheUpstreamConnection() throws InterruptedException {
+		var connector = connector(new MockEnvironment().withProperty("ai.ollama.backends", baseUrl));
+		try {
+			var subscription = WebClient.builder().clientConnector(connector).build()
+					.get().uri(baseUrl + "/slow-headers")
+					.retrieve()
+					.bodyToFlux(String.class)
+					.subscribe();
+			sleep(100);
+			subscription.dispose();
+
+			assertTrue(aborted.await(5, TimeUnit.SECONDS), "la connessione verso l'upstream deve essere chiusa");
+		} finally {
+			connector.destroy();
+		}
+	}
+
+	@Test
+	void redirectsAreNotFollowed() {
+		var connector = connector(new MockEnvironment().withProperty("ai.ollama.backends", baseUrl));
+		try {
+			var status = WebClient.builder().clientConnector(connector).build()
+					.get().uri(baseUrl + "/redirect")
+					.exchangeToMono(response -> Mono.just(response.statusCode().value()))
+					.block(Duration.ofSeconds(5));
+
+			assertEquals(302, status);
+		} finally {
+			connector.destroy();
+		}
+	}
+
+	/**
+	 * Invia righe NDJSON per al più 5 secondi, finché il client non chiude la connessione.
+	 */
+	private void stream(HttpExchange exchange, long headersDelayMillis) {
+		sleep(headersDelayMillis);
+		try (var body = exchange.getResponseBody()) {
+			exchange.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+			exchange.sendResponseHeaders(200, 0);
+			for (int i = 0; i < 250; i++) {
+				body.write(("{\"type\":\"token\",\"text\":\"" + i + "\"}\n").getBytes(StandardCharsets.UTF_8));
+				body.flush();
+				sleep(20);
+			}
+		} catch (IOException e) {
+			aborted.countDown();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static UpstreamClientHttpConnector connector(MockEnvironment environment) {
+		return new UpstreamClientHttpConnector(environment, Duration.ofSeconds(2), Duration.ofSeconds(30));
+	}
+
+	private static byte[] gzip(String text) throws IOException {
+		var bytes = new ByteArrayOutputStream();
+		try (var out = new GZIPOutputStream(bytes)) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,51 @@
+package it.cnr.anac.transparency.ai_integration_service.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.mock.env.MockEnvironment;
+
+import static it.cnr.anac.transparency.ai_integration_service.config.VirtualThreadsEnvironmentPostProcessor.BOUNDED_ELASTIC_SIZE;
+import static it.cnr.anac.transparency.ai_integration_service.config.VirtualThreadsEnvironmentPostProcessor.ON_VIRTUAL_THREADS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class VirtualThreadsEnvironmentPostProcessorTest {
+
+	private final VirtualThreadsEnvironmentPostProcessor postProcessor = new VirtualThreadsEnvironmentPostProcessor();
+
+	@AfterEach
+	void clearSystemProperties() {
+		System.clearProperty(ON_VIRTUAL_THREADS);
+		System.clearProperty(BOUNDED_ELASTIC_SIZE);
+	}
+
+	@Test
+	void boundedElasticMovesToVirtualThreads() {
+		var environment = new MockEnvironment()
+				.withProperty("spring.threads.virtual.enabled", "true")
+				.withProperty("ai.threads.virtual.bounded-elastic-size", "500");
+
+		postProcessor.postProcessEnvironment(environment, new SpringApplication());
+
+		assertEquals("true", System.getProperty(ON_VIRTUAL_THREADS));
+		assertEquals("500", System.getProperty(BOUNDED_ELASTIC_SIZE));
+	}
+
+	@Test
+	void explicitSystemPropertiesWin() {
+		System.setProperty(BOUNDED_ELASTIC_SIZE, "42");
+
+		postProcessor.postProcessEnvironment(new MockEnvironment().withProperty("spring.threads.virtual.enabled", "true"),
+				new SpringApplication());
+
+		assertEquals("42", System.getProperty(BOUNDED_ELASTIC_SIZE));
+	}
+
+	@Test
+	void platformThreadsByDefault() {
+		postProcessor.postProcessEnvironment(new MockEnvironment(), new SpringApplication());
+
+		assertNull(System.getProperty(ON_VIRTUAL_THREADS));
+	}
+}
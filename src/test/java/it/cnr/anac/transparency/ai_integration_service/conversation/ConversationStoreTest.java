@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationStoreTest {
+
+	private static final Duration TTL = Duration.ofHours(2);
+
+	@TempDir
+	Path directory;
+
+	private final MutableClock clock = new MutableClock(Instant.now().truncatedTo(ChronoUnit.SECONDS));
+
+	@Test
+	void conversationKeptAliveInMemorySurvivesThePurgeOfItsFile() throws IOException {
+		var store = store(200);
+		var conversation = store.create("alice");
+		turn(store, conversation, "Domanda 1", "Risposta 1");
+
+		// il file non è più modificato da oltre il ttl, ma la conversazione è usata
+		Files.setLastModifiedTime(file(conversation), FileTime.from(clock.instant().minus(TTL).minusSeconds(3600)));
+		clock.advance(Duration.ofHours(1));
+		store.get(conversation.getId(), "alice");
+		store.purgeExpired();
+
+		assertTrue(Files.exists(file(conversation)));
+		turn(store, conversation, "Domanda 2", "Risposta 2");
+
+		var reloaded = store(200).get(conversation.getId(), "alice");
+		assertEquals(4, reloaded.getMessages().size());
+	}
+
+	@Test
+	void missingFileIsRewrittenWithItsHeader() throws IOException {
+		var store = store(200);
+		var conversation = store.create("alice");
+		turn(store, conversation, "Domanda 1", "Risposta 1");
+
+		Files.delete(file(conversation));
+		turn(store, conversation, "Domanda 2", "Risposta 2");
+
+		var reloaded = store(200).get(conversation.getId(), "alice");
+		assertEquals("alice", reloaded.getOwner());
+		assertEquals(4, reloaded.getMessages().size());
+	}
+
+	@Test
+	void expiredConversationsAreRemovedWithTheirFile() {
+		var store = store(200);
+		var conversation = store.create("alice");
+
+		clock.advance(TTL.plusMinutes(1));
+		store.purgeExpired();
+
+		assertFalse(Files.exists(file(conversation)));
+		var error = assertThrows(ResponseStatusException.class, () -> store.get(conversation.getId(), "alice"));
+		assertEquals(HttpStatus.NOT_FOUND, error.getStatusCode());
+	}
+
+	@Test
+	void concurrentTurnIsRejectedUntilThePreviousOneEnds() {
+		var store = store(200);
+		var conversation = store.create("alice");
+		var first = Sinks.many().unicast().<String>onBackpressureBuffer();
+
+		var running = store.recordTurn(conversation, List.of(new UserMessage("Domanda 1")), messages -> first.asFlux());
+		running.subscribe();
+		var error = assertThrows(ResponseStatusException.class, () -> turn(store, conversation, "Domanda 2", "Risposta 2"));
+		assertEquals(HttpStatus.CONFLICT, error.getStatusCode());
+
+		first.tryEmitNext("Risposta 1");
+		first.tryEmitComplete();
+		turn(store, conversation, "Domanda 2", "Risposta 2");
+
+		assertEquals(List.of("Domanda 1", "Risposta 1", "Domanda 2", "Risposta 2"),
+				conversation.getMessages().stream().map(Message::getText).toList());
+	}
+
+	@Test
+	void journalIsCompactedToTheMessagesKeptInMemory() throws IOException {
+		var store = store(4);
+		var conversation = store.create("alice");
+		for (int i = 1; i <= 10; i++) {
+			turn(store, conversation, "Domanda " + i, "Risposta " + i);
+		}
+
+		// intestazione più al massimo il doppio dei messaggi mantenuti
+		assertTrue(Files.readAllLines(file(conversation)).size() <= 1 + 2 * 4);
+		var reloaded = store(4).get(conversation.getId(), "alice");
+		assertEquals(List.of("Domanda 9", "Risposta 9", "Domanda 10", "Risposta 10"),
+				reloaded.getMessages().stream().map(Message::getText).toList());
+	}
+
+	private ConversationStore store(int maxMessages) {
+		var journal = new ConversationJournal(directory, JsonMapper.builder().findAndAddModules().build());
+		return new ConversationStore(100, 20, maxMessages, TTL, journal, clock);
+	}
+
+	private static void turn(ConversationStore store, Conversation conversation, String question, String answer) {
+		store.recordTurn(conversation, List.of(new UserMessage(question)), messages -> Flux.just(answer)).blockLast();
+	}
+
+	private Path file(Conversation conversation) {
+		return directory.resolve(conversation.getId() + ".ndjson");
+	}
+
+	static final class MutableClock extends Clock {
+
+		private Instant now;
+
+		MutableClock(Instant now) {
+			this.now = now;
+		}
+
+		void advance(Duration duration) {
+			now = now.plus(duration);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package it.cnr.anac.transparency.ai_integration_service.conversation;
+
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageAccounting;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageQuotas;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.metadata.DefaultUsage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryCompactorTest {
+
+	private static final String MODEL = "llama3.1:8b";
+	private static final UsageAccounting.Account ACCOUNT = new UsageAccounting.Account("alice", "portale", "default");
+
+	private final List<Prompt> prompts = new ArrayList<>();
+	private boolean failing;
+
+	private final ChatModel chatModel = new ChatModel() {
+		@Override
+		public ChatResponse call(Prompt prompt) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Flux<ChatResponse> stream(Prompt prompt) {
+			prompts.add(prompt);
+			if (failing) {
+				return Flux.error(new IllegalStateException("nodo non disponibile"));
+			}
+			return Flux.just(new ChatResponse(List.of(new Generation(new AssistantMessage("riassunto " + prompts.size()))),
+					ChatResponseMetadata.builder().usage(new DefaultUsage(600, 40)).build()));
+		}
+	};
+
+	private final UsageAccounting usageAccounting = new UsageAccounting(new UsageQuotas(new MockEnvironment()),
+			"realm_access.roles", "azp", false, null, null);
+
+	// finestra di 1000 token, 500 per lo storico
+	private final HistoryCompactor compactor = new HistoryCompactor(chatModel,
+			new TokenCounter(1000, List.of(), 1.0, List.of()), usageAccounting,
+			true, 0.5, 0.5, 4, 200, true, "", 256, Duration.ofSeconds(5), 100);
+
+	@Test
+	void historyWithinBudgetIsUnchanged() {
+		var messages = List.<Message>of(new UserMessage("Ciao"), new AssistantMessage("Ciao!"), new UserMessage("Come va?"),
+				new AssistantMessage("Bene"), new UserMessage("Quali obblighi mancano al Comune di Pisa?"));
+
+		assertSame(messages, compactor.compact(messages, MODEL, ACCOUNT).block());
+		assertTrue(prompts.isEmpty());
+	}
+
+	@Test
+	void oldTurnsAreSummarizedAndTheSummaryIsReused() {
+		var messages = conversation(10);
+
+		var compacted = compactor.compact(messages, MODEL, ACCOUNT).block();
+
+		assertEquals(1, prompts.size());
+		assertEquals(HistoryCompactor.SUMMARY_PREFIX + "riassunto 1", compacted.get(0).getText());
+		assertEquals(messages.subList(6, 10), compacted.subList(1, compacted.size()));
+
+		// turno successivo breve: il riassunto in cache basta ancora
+		var next = new ArrayList<>(messages);
+		next.add(new UserMessage("E il Comune di Lucca?"));
+		next.add(new AssistantMessage("Anche."));
+		var nextCompacted = compactor.compact(next, MODEL, ACCOUNT).block();
+
+		assertEquals(1, prompts.size());
+		assertEquals(compacted.get(0), nextCompacted.get(0));
+		assertEquals(next.subList(6, 12), nextCompacted.subList(1, nextCompacted.size()));
+	}
+
+	@Test
+	void summaryIsChargedToTheConversationOwner() {
+		compactor.compact(conversation(10), MODEL, ACCOUNT).block();
+
+		var usage = usageAccounting.usageOf("alice").getFirst();
+		assertEquals("portale", usage.clientId());
+		assertEquals(1, usage.requests());
+		assertEquals(600, usage.promptTokens());
+		assertEquals(40, usage.completionTokens());
+	}
+
+	@Test
+	void summaryIsExtendedWithOnlyTheNewMessages() {
+		var messages = new ArrayList<>(conversation(10));
+		compactor.compact(messages, MODEL, ACCOUNT).block();
+		messages.add(new UserMessage("E il Comune di Lucca?"));
+		messages.add(new AssistantMessage("Anche."));
+		messages.addAll(conversation(14).subList(12, 14));
+
+		var compacted = compactor.compact(messages, MODEL, ACCOUNT).block();
+
+		assertEquals(2, prompts.size());
+		var transcript = prompts.get(1).getInstructions().get(1).getText();
+		assertTrue(transcript.startsWith("Riassunto precedente:\nriassunto 1"));
+		assertTrue(transcript.contains("messaggio 6 "));
+		assertFalse(transcript.contains("messaggio 0 "));
+		assertEquals(HistoryCompactor.SUMMARY_PREFIX + "riassunto 2", compacted.get(0).getText());
+		assertEquals(messages.subList(10, 14), compacted.subList(1, compacted.size()));
+	}
+
+	@Test
+	void bulkyJsonIsDroppedBeforeSummarizing() {
+		var json = "```json\n" + "{\"ente\":\"Comune di Pisa\",\"esito\":\"ok\"},\n".repeat(100) + "```";
+		var messages = List.<Message>of(new UserMessage("Cerca il Comune di Pisa"),
+				new AssistantMessage("Ecco i risultati:\n" + json + "\nMancano 3 obblighi."),
+				new UserMessage("Quali?"), new AssistantMessage("Bilanci, consulenti e bandi."),
+				new UserMessage("Grazie"), new AssistantMessage("Prego"));
+
+		var compacted = compactor.compact(messages, MODEL, ACCOUNT).block();
+
+		assertTrue(prompts.isEmpty());
+		assertEquals("Ecco i risultati:\n[dati omessi: " + json.length() + " caratteri]\nMancano 3 obblighi.",
+				compacted.get(1).getText());
+		assertEquals(messages.size(), compacted.size());
+	}
+
+	@Test
+	void toolResultsCountTowardsTheBudget() {
+		var json = "{\"ente\":\"Comune di Pisa\",\"obbligo\":\"bilanci\",\"esito\":\"ok\"}\n".repeat(100);
+		var toolResponse = ToolResponseMessage.builder()
+				.responses(List.of(new ToolResponseMessage.ToolResponse("1", "cerca_ente", json)))
+				.build();
+		var messages = List.<Message>of(new UserMessage("Cerca il Comune di Pisa"),
+				AssistantMessage.builder()
+						.content("")
+						.toolCalls(List.of(new AssistantMessage.ToolCall("1", "function", "cerca_ente", "{\"nome\":\"Pisa\"}")))
+						.build(),
+				toolResponse, new AssistantMessage("Mancano 3 obblighi."),
+				new UserMessage("Quali?"), new AssistantMessage("Bilanci, consulenti e bandi."),
+				new UserMessage("Grazie"), new AssistantMessage("Prego"));
+
+		var compacted = compactor.compact(messages, MODEL, ACCOUNT).block();
+
+		assertTrue(new TokenCounter(1000, List.of(), 1.0, List.of()).count(toolResponse, MODEL) > 500);
+		assertTrue(prompts.isEmpty());
+		assertFalse(compacted.stream().anyMatch(ToolResponseMessage.class::isInstance));
+		assertEquals(List.of("Cerca il Comune di Pisa", "Mancano 3 obblighi.", "Quali?", "Bilanci, consulenti e bandi.",
+				"Grazie", "Prego"), compacted.stream().map(Message::getText).toList());
+	}
+
+	@Test
+	void failedSummaryFallsBackToTheLastMessages() {
+		failing = true;
+		var messages = conversation(10);
+
+		var compacted = compactor.compact(messages, MODEL, ACCOUNT).block();
+
+		assertInstanceOf(UserMessage.class, compacted.get(0));
+		assertEquals(messages.subList(6, 10), compacted);
+		assertFalse(compacted.stream().anyMatch(SystemMessage.class::isInstance));
+	}
+
+	/**
+	 * Messaggi alternati utente/assistente di circa 100 token ciascuno.
+	 */
+	private static List<Message> conversation(int size) {
+		var messages = new ArrayList<Message>();
+		for (int i = 0; i < size; i++) {
+			var text = "messaggio " + i + " " + "ok ".repeat(100);
+			messages.add(i % 2 == 0 ? new UserMessage(text) : new AssistantMessage(text));
+		}
+		return messages;
+	}
+}
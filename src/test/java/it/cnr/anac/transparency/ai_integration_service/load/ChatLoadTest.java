@@ -0,0 +1,284 @@
+package it.cnr.anac.transparency.ai_integration_service.load;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test di carico end-to-end: l'applicazione completa (sicurezza JWT, controllo
+ * di ammissione, tool MCP, SSE) contro {@link StubServers} al posto di
+ * Keycloak, Ollama e MCP server. Riporta tempo al primo token, token/s e
+ * allocazioni a una concorrenza configurabile.
+ * <p>
+ * Non fa parte della build: si avvia con
+ * {@code mvn test -Dtest=ChatLoadTest -Dload.enabled=true [-Dload.concurrency=32 ...]}.
+ * Le allocazioni comprendono quelle degli stub e del client, che girano nella
+ * stessa JVM: sono da confrontare tra esecuzioni, non in assoluto.
+ * <p>
+ * Con {@code -Dload.virtual-threads=true} l'applicazione gira in modalità virtual
+ * thread: confrontando le due modalità a concorrenza crescente si vede quante
+ * generazioni arrivano davvero in contemporanea al modello ("peak generations")
+ * e quanti thread di piattaforma servono per sostenerle. Il limite di
+ * concorrenza verso Ollama è portato a {@code load.concurrency}, in modo che il
+ * collo di bottiglia sia il modello di esecuzione e non il nodo.
+ * <p>
+ * {@link #cancelledStreamsStopTheModel()} verifica che la chiusura degli stream
+ * da parte dei client arrivi fino a Ollama: ogni client si disconnette dopo
+ * {@code load.cancel-after-tokens} token e lo stub deve vedere chiusa la
+ * connessione di ogni generazione.
+ */
+@EnabledIfSystemProperty(named = "load.enabled", matches = "true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = "spring.threads.virtual.enabled=${load.virtual-threads:false}")
+class ChatLoadTest {
+
+	private static final int CONCURRENCY = Integer.getInteger("load.concurrency", 16);
+	private static final int REQUESTS = Integer.getInteger("load.requests", 10);
+	private static final int WARMUP_REQUESTS = Integer.getInteger("load.warmup", 20);
+	private static final int TOKENS = Integer.getInteger("load.tokens", 200);
+	private static final boolean TOOLS = Boolean.parseBoolean(System.getProperty("load.tools", "true"));
+	private static final Duration TOKEN_DELAY = Duration.ofMillis(Long.getLong("load.token-delay-ms", 5));
+	private static final Duration TOOL_DELAY = Duration.ofMillis(Long.getLong("load.tool-delay-ms", 20));
+	private static final int CANCEL_AFTER_TOKENS = Integer.getInteger("load.cancel-after-tokens", 10);
+
+	private static StubServers stubs;
+
+	@Value("${local.server.port}")
+	int port;
+
+	@Value("${spring.threads.virtual.enabled}")
+	boolean virtualThreads;
+
+	@Autowired
+	MeterRegistry meterRegistry;
+
+	@DynamicPropertySource
+	static void stubProperties(DynamicPropertyRegistry registry) throws Exception {
+		stubs = new StubServers(TOKENS, TOKEN_DELAY, TOOL_DELAY);
+		var url = stubs.baseUrl();
+		registry.add("spring.ai.ollama.base-url", () -> url);
+		registry.add("spring.security.oauth2.resourceserver.jwt.issuer-uri", () -> url);
+		registry.add("spring.security.oauth2.client.provider.authserver.issuer-uri", () -> url);
+		registry.add("spring.ai.mcp.client.enabled", () -> TOOLS);
+		registry.add("spring.ai.mcp.client.streamable-http.connections.stub.url", () -> url);
+		// ogni richiesta deve arrivare al modello
+		registry.add("ai.chat.cache.enabled", () -> false);
+		registry.add("ai.chat.coalescing.enabled", () -> false);
+		registry.add("ai.usage.quota.enabled", () -> false);
+		registry.add("ai.chat.admission.max-queue-size", () -> Math.max(200, CONCURRENCY * 2));
+		registry.add("ai.ollama.concurrency.initial-limit", () -> CONCURRENCY);
+		registry.add("ai.ollama.concurrency.max-limit", () -> CONCURRENCY);
+		// lo stub serve Ollama e MCP sulla stessa origine, quindi nello stesso pool di connessioni
+		registry.add("ai.http.pools.ollama.max-connections", () -> Math.max(64, CONCURRENCY * 2));
+		registry.add("ai.http.pools.ollama.compression", () -> true);
+		registry.add("ai.ollama.warmup.enabled", () -> false);
+		registry.add("ai.batch.persistence.enabled", () -> false);
+		registry.add("ai.usage.persistence.enabled", () -> false);
+		registry.add("management.tracing.sampling.probability", () -> 0.0);
+	}
+
+	@AfterAll
+	static void stopStubs() {
+		if (stubs != null) {
+			stubs.close();
+		}
+	}
+
+	@Test
+	void streamingUnderLoad() {
+		var client = WebClient.create("http://127.0.0.1:" + port);
+		run(client, Math.max(1, Math.min(CONCURRENCY, WARMUP_REQUESTS)), WARMUP_REQUESTS);
+
+		var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		stubs.resetPeakGenerations();
+		long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+		long start = System.nanoTime();
+		var results = run(client, CONCURRENCY, CONCURRENCY * REQUESTS);
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		long allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+		var failed = results.stream().filter(result -> !result.completed()).count();
+		var ttft = results.stream().filter(Result::completed).map(Result::ttftMillis).sorted().toList();
+		double tokensPerSecond = results.stream().filter(Result::completed)
+				.mapToDouble(Result::tokensPerSecond).average().orElse(0);
+		long totalTokens = results.stream().mapToLong(Result::tokens).sum();
+
+		System.out.printf(Locale.ROOT, """
+
+				==== Chat load test ====
+				concurrency=%d requests=%d tokens/request=%d tools=%s token-delay=%dms virtual-threads=%s
+				completed=%d failed=%d elapsed=%.2fs throughput=%.1f req/s, %.0f tokens/s
+				time to first token (ms): p50=%.1f p95=%.1f p99=%.1f max=%.1f
+				tokens/s per stream: avg=%.1f
+				allocation: %.1f MB/s, %.0f KB/request
+				peak generations=%d peak platform threads=%d
+				upstream connection acquire: max=%.1fms, gzip responses=%d
+				""",
+				CONCURRENCY, results.size(), TOKENS, TOOLS, TOKEN_DELAY.toMillis(), virtualThreads,
+				results.size() - failed, failed, elapsedSeconds, results.size() / elapsedSeconds,
+				totalTokens / elapsedSeconds,
+				percentile(ttft, 0.50), percentile(ttft, 0.95), percentile(ttft, 0.99), percentile(ttft, 1.0),
+				tokensPerSecond,
+				allocated / elapsedSeconds / (1024 * 1024), allocated / (double) results.size() / 1024,
+				stubs.peakGenerations(), threads.getPeakThreadCount(),
+				meterRegistry.find("reactor.netty.connection.provider.pending.connections.time").timers().stream()
+						.mapToDouble(timer -> timer.max(TimeUnit.MILLISECONDS)).max().orElse(0),
+				stubs.compressedResponses());
+
+		assertEquals(0, failed, "tutti gli stream devono terminare con l'evento end");
+	}
+
+	@Test
+	void cancelledStreamsStopTheModel() throws InterruptedException {
+		int requests = CONCURRENCY;
+		int abortedBefore = stubs.abortedGenerations();
+		// thread propri: il boundedElastic è condiviso con l'applicazione
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < requests; i++) {
+				var user = "cancel-user-" + i;
+				executor.submit(() -> readAndDisconnect(user));
+			}
+		}
+
+		long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+		while (stubs.abortedGenerations() - abortedBefore < requests && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		int aborted = stubs.abortedGenerations() - abortedBefore;
+		System.out.printf(Locale.ROOT, """
+
+				==== Chat cancellation test ====
+				cancelled streams=%d after %d tokens, generations aborted at the model=%d
+				stopped generations=%.0f reclaimed generation time=%.2fs
+				""",
+				requests, CANCEL_AFTER_TOKENS, aborted,
+				meterRegistry.find("ai.chat.generations.stopped").counters().stream().mapToDouble(Counter::count).sum(),
+				meterRegistry.find("ai.chat.gpu.reclaimed").counters().stream().mapToDouble(Counter::count).sum());
+
+		assertEquals(requests, aborted, "ogni disconnessione deve chiudere la generazione su Ollama");
+
+		// le connessioni delle generazioni annullate tornano al pool
+		deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+		while (activeUpstreamRequests() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(0, activeUpstreamRequests(), "richieste verso gli upstream ancora in corso");
+	}
+
+	private double activeUpstreamRequests() {
+		return meterRegistry.find("reactor.netty.connection.provider.active.connections").gauges().stream()
+				.mapToDouble(Gauge::value).sum();
+	}
+
+	/**
+	 * Legge {@code load.cancel-after-tokens} eventi token in NDJSON e chiude la
+	 * connessione, come un client che abbandona la pagina.
+	 */
+	private int readAndDisconnect(String user) throws IOException {
+		try (var socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			var query = "message=" + URLEncoder.encode("Riepiloga gli obblighi di trasparenza del Comune di Pisa",
+					StandardCharsets.UTF_8) + "&coalesce=false&cache=false";
+			socket.getOutputStream().write(("GET /v1/chat/stream?" + query + " HTTP/1.1\r\n"
+					+ "Host: 127.0.0.1:" + port + "\r\n"
+					+ "Authorization: Bearer " + stubs.token(user) + "\r\n"
+					+ "Accept: application/x-ndjson\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+			var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			int tokens = 0;
+			String line;
+			while (tokens < CANCEL_AFTER_TOKENS && (line = reader.readLine()) != null) {
+				if (line.contains("\"type\":\"token\"")) {
+					tokens++;
+				}
+			}
+			return tokens;
+		}
+	}
+
+	private List<Result> run(WebClient client, int concurrency, int requests) {
+		return Flux.range(0, requests)
+				.flatMap(i -> stream(client, "load-user-" + (i % concurrency)), concurrency)
+				.collectList()
+				.block(Duration.ofMinutes(30));
+	}
+
+	private Mono<Result> stream(WebClient client, String user) {
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			var firstToken = new long[1];
+			var tokens = new int[1];
+			return client.get()
+					.uri(builder -> builder.path("/v1/chat/stream")
+							.queryParam("message", "Quali obblighi di trasparenza mancano al Comune di Pisa?")
+							.queryParam("coalesce", false)
+							.queryParam("cache", false)
+							.build())
+					.headers(headers -> headers.setBearerAuth(stubs.token(user)))
+					.accept(MediaType.TEXT_EVENT_STREAM)
+					.retrieve()
+					.bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+					.doOnNext(event -> {
+						if ("token".equals(event.event())) {
+							if (tokens[0]++ == 0) {
+								firstToken[0] = System.nanoTime();
+							}
+						}
+					})
+					.last()
+					.map(last -> new Result("end".equals(last.event()), start, firstToken[0], System.nanoTime(), tokens[0]))
+					.onErrorResume(e -> Mono.just(new Result(false, start, firstToken[0], System.nanoTime(), tokens[0])));
+		});
+	}
+
+	private static double percentile(List<Double> sorted, double percentile) {
+		if (sorted.isEmpty()) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	private record Result(boolean completed, long start, long firstToken, long end, int tokens) {
+
+		double ttftMillis() {
+			return (firstToken - start) / 1e6;
+		}
+
+		double tokensPerSecond() {
+			long generation = end - firstToken;
+			return tokens > 1 && generation > 0 ? (tokens - 1) / (generation / 1e9) : 0;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package it.cnr.anac.transparency.ai_integration_service.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Server HTTP in-process che simula i servizi esterni per il test di carico:
+ * <ul>
+ *   <li>un authorization server OIDC (discovery, JWKS e token client_credentials) con cui firmare i JWT dei client;</li>
+ *   <li>Ollama: {@code /api/chat} in streaming NDJSON, con una chiamata al tool {@code cerca_ente}
+ *   quando la richiesta contiene tool, {@code /api/ps} e {@code /api/generate};</li>
+ *   <li>un MCP server Streamable HTTP su {@code /mcp} con il solo tool {@code cerca_ente}.</li>
+ * </ul>
+ */
+class StubServers implements AutoCloseable {
+
+	private static final String CREATED_AT = "2025-01-01T00:00:00Z";
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final HttpServer server;
+	private final RSAKey signingKey;
+	private final String baseUrl;
+	private final int tokens;
+	private final Duration tokenDelay;
+	private final Duration toolDelay;
+	private final AtomicInteger activeGenerations = new AtomicInteger();
+	private final AtomicInteger peakGenerations = new AtomicInteger();
+	private final AtomicInteger abortedGenerations = new AtomicInteger();
+	private final AtomicInteger compressedResponses = new AtomicInteger();
+
+	StubServers(int tokens, Duration tokenDelay, Duration toolDelay) throws IOException, JOSEException {
+		this.tokens = tokens;
+		this.tokenDelay = tokenDelay;
+		this.toolDelay = toolDelay;
+		this.signingKey = new RSAKeyGenerator(2048).keyID("load-test").generate();
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.createContext("/.well-known/openid-configuration", exchange -> json(exchange, 200, discovery()));
+		server.createContext("/jwks", exchange -> json(exchange, 200, new JWKSet(signingKey.toPublicJWK()).toJSONObject()));
+		server.createContext("/token", exchange -> {
+			exchange.getRequestBody().readAllBytes();
+			json(exchange, 200, Map.of("access_token", token("ai-integration-service"), "token_type", "Bearer",
+					"expires_in", 3600));
+		});
+		server.createContext("/api/chat", this::chat);
+		server.createContext("/api/ps", exchange -> json(exchange, 200, Map.of("models", List.of())));
+		server.createContext("/api/generate", exchange -> {
+			exchange.getRequestBody().readAllBytes();
+			json(exchange, 200, Map.of("done", true));
+		});
+		server.createContext("/mcp", this::mcp);
+		server.start();
+	}
+
+	String baseUrl() {
+		return baseUrl;
+	}
+
+	/**
+	 * JWT firmato con la chiave del finto authorization server.
+	 */
+	String token(String subject) {
+		try {
+			var now = Instant.now();
+			var claims = new JWTClaimsSet.Builder()
+					.issuer(baseUrl)
+					.subject(subject)
+					.issueTime(Date.from(now))
+					.expirationTime(Date.from(now.plus(Duration.ofHours(1))))
+					.build();
+			var jwt = new SignedJWT(new JWSHeader.Builder(JWSAlgorithm.RS256).keyID(signingKey.getKeyID()).build(), claims);
+			jwt.sign(new RSASSASigner(signingKey));
+			return jwt.serialize();
+		} catch (JOSEException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Massimo numero di richieste {@code /api/chat} contemporanee dall'ultimo azzeramento.
+	 */
+	int peakGenerations() {
+		return peakGenerations.get();
+	}
+
+	void resetPeakGenerations() {
+		peakGenerations.set(activeGenerations.get());
+	}
+
+	/**
+	 * Richieste {@code /api/chat} la cui connessione è stata chiusa dal servizio
+	 * prima della fine della generazione.
+	 */
+	int abortedGenerations() {
+		return abortedGenerations.get();
+	}
+
+	/**
+	 * Risposte JSON inviate compresse con gzip (richieste con {@code Accept-Encoding: gzip}).
+	 */
+	int compressedResponses() {
+		return compressedResponses.get();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private Map<String, Object> discovery() {
+		return Map.of(
+				"issuer", baseUrl,
+				"authorization_endpoint", baseUrl + "/authorize",
+				"token_endpoint", baseUrl + "/token",
+				"jwks_uri", baseUrl + "/jwks",
+				"response_types_supported", List.of("code"),
+				"subject_types_supported", List.of("public"),
+				"id_token_signing_alg_values_supported", List.of("RS256"),
+				"grant_types_supported", List.of("authorization_code", "client_credentials"),
+				"token_endpoint_auth_methods_supported", List.of("client_secret_basic", "client_secret_post"));
+	}
+
+	private void chat(HttpExchange exchange) throws IOException {
+		peakGenerations.accumulateAndGet(activeGenerations.incrementAndGet(), Math::max);
+		try {
+			streamChat(exchange);
+		} catch (IOException e) {
+			abortedGenerations.incrementAndGet();
+		} finally {
+			activeGenerations.decrementAndGet();
+		}
+	}
+
+	private void streamChat(HttpExchange exchange) throws IOException {
+		var request = objectMapper.readTree(exchange.getRequestBody());
+		exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+		exchange.sendResponseHeaders(200, 0);
+		try (var out = exchange.getResponseBody()) {
+			if (request.path("tools").size() > 0 && !hasToolResult(request.path("messages"))) {
+				// primo turno con tool disponibili: il modello chiede di invocare cerca_ente
+				line(out, Map.of("model", request.path("model").asText(), "created_at", CREATED_AT,
+						"message", Map.of("role", "assistant", "content", "",
+								"tool_calls", List.of(Map.of("function", Map.of("name", "cerca_ente",
+										"arguments", Map.of("denominazione", "Comune di Pisa"))))),
+						"done", true, "done_reason", "stop",
+						"prompt_eval_count", 200, "eval_count", 12));
+				return;
+			}
+			for (int i = 0; i < tokens; i++) {
+				sleep(tokenDelay);
+				line(out, Map.of("model", request.path("model").asText(), "created_at", CREATED_AT,
+						"message", Map.of("role", "assistant", "content", "tok" + i + " "),
+						"done", false));
+			}
+			long evalNanos = tokenDelay.toNanos() * tokens;
+			line(out, Map.of("model", request.path("model").asText(), "created_at", CREATED_AT,
+					"message", Map.of("role", "assistant", "content", ""),
+					"done", true, "done_reason", "stop",
+					"prompt_eval_count", 400, "prompt_eval_duration", 1_000_000,
+					"eval_count", tokens, "eval_duration", evalNanos, "total_duration", evalNanos + 1_000_000));
+		}
+	}
+
+	private static boolean hasToolResult(JsonNode messages) {
+		for (var message : messages) {
+			if ("tool".equals(message.path("role").asText())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void mcp(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			// nessuno stream SSE avviato dal server
+			exchange.sendResponseHeaders(405, -1);
+			exchange.close();
+			return;
+		}
+		var request = objectMapper.readTree(exchange.getRequestBody());
+		if (!request.has("id")) {
+			// notifica (es. notifications/initialized)
+			exchange.sendResponseHeaders(202, -1);
+			exchange.close();
+			return;
+		}
+		Object result = switch (request.path("method").asText()) {
+			case "initialize" -> Map.of(
+					"protocolVersion", request.path("params").path("protocolVersion").asText(),
+					"capabilities", Map.of("tools", Map.of("listChanged", false)),
+					"serverInfo", Map.of("name", "stub-mcp", "version", "1.0.0"));
+			case "tools/list" -> Map.of("tools", List.of(Map.of(
+					"name", "cerca_ente",
+					"description", "Cerca un ente pubblico per denominazione e restituisce gli esiti dei controlli",
+					"inputSchema", Map.of("type", "object",
+							"properties", Map.of("denominazione", Map.of("type", "string")),
+							"required", List.of("denominazione")))));
+			case "tools/call" -> {
+				sleep(toolDelay);
+				yield Map.of("content", List.of(Map.of("type", "text",
+						"text", "{\"denominazione\":\"Comune di Pisa\",\"obblighi\":57,\"pubblicati\":42}")),
+						"isError", false);
+			}
+			default -> Map.of();
+		};
+		json(exchange, 200, Map.of("jsonrpc", "2.0", "id", request.get("id"), "result", result));
+	}
+
+	private void json(HttpExchange exchange, int status, Object body) throws IOException {
+		var bytes = objectMapper.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		var acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			var compressed = new ByteArrayOutputStream();
+			try (var gzip = new GZIPOutputStream(compressed)) {
+				gzip.write(bytes);
+			}
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			compressedResponses.incrementAndGet();
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (var out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private void line(OutputStream out, Object body) throws IOException {
+		out.write(objectMapper.writeValueAsBytes(body));
+		out.write('\n');
+		out.flush();
+	}
+
+	private static void sleep(Duration duration) {
+		if (duration.isZero()) {
+			return;
+		}
+		try {
+			Thread.sleep(duration);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new IOException("interrupted", e));
+		}
+	}
+}
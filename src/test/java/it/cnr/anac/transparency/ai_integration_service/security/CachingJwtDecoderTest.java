@@ -0,0 +1,58 @@
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CachingJwtDecoderTest {
+
+	private final AtomicInteger decoded = new AtomicInteger();
+
+	private final CachingJwtDecoder decoder = new CachingJwtDecoder(token -> {
+		decoded.incrementAndGet();
+		if (token.startsWith("bad")) {
+			throw new BadJwtException("firma non valida");
+		}
+		var expiresAt = token.startsWith("expired") ? Instant.now().minusSeconds(1) : Instant.now().plusSeconds(300);
+		return Jwt.withTokenValue(token).header("alg", "RS256").subject("utente").expiresAt(expiresAt).build();
+	}, true, 2, Duration.ofMinutes(10));
+
+	@Test
+	void sameTokenIsVerifiedOnce() {
+		var first = decoder.decode("token-a");
+
+		assertSame(first, decoder.decode("token-a"));
+		assertEquals(1, decoded.get());
+	}
+
+	@Test
+	void rejectedAndExpiredTokensAreNotCached() {
+		assertThrows(BadJwtException.class, () -> decoder.decode("bad-token"));
+		assertThrows(BadJwtException.class, () -> decoder.decode("bad-token"));
+		decoder.decode("expired-token");
+		decoder.decode("expired-token");
+
+		assertEquals(4, decoded.get());
+	}
+
+	@Test
+	void leastRecentlyUsedTokenIsEvicted() {
+		decoder.decode("token-a");
+		decoder.decode("token-b");
+		decoder.decode("token-a");
+		decoder.decode("token-c");
+
+		decoder.decode("token-a");
+		assertEquals(3, decoded.get());
+		decoder.decode("token-b");
+		assertEquals(4, decoded.get());
+	}
+}
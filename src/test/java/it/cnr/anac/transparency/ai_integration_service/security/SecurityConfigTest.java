@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2025 Consiglio Nazionale delle Ricerche
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package it.cnr.anac.transparency.ai_integration_service.security;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.jwt;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest(properties = {
+		"ai.security.actuator.authority=SCOPE_metrics",
+		"ai.ollama.warmup.enabled=false",
+		"ai.batch.persistence.enabled=false",
+		"ai.usage.persistence.enabled=false"})
+@AutoConfigureMockMvc
+class SecurityConfigTest {
+
+	@Autowired
+	MockMvc mockMvc;
+
+	@Test
+	void healthIsPublic() throws Exception {
+		// lo stato può essere DOWN (nessun nodo Ollama nei test), ma senza richiedere autenticazione
+		mockMvc.perform(get("/actuator/health"))
+				.andExpect(result -> assertNotEquals(401, result.getResponse().getStatus()));
+	}
+
+	@Test
+	void prometheusRequiresTheScrapeAuthority() throws Exception {
+		mockMvc.perform(get("/actuator/prometheus")).andExpect(status().isUnauthorized());
+		mockMvc.perform(get("/actuator/prometheus").with(jwt()))
+				.andExpect(status().isForbidden());
+		mockMvc.perform(get("/actuator/prometheus").with(jwt().authorities(new SimpleGrantedAuthority("SCOPE_metrics"))))
+				.andExpect(status().isOk());
+	}
+}
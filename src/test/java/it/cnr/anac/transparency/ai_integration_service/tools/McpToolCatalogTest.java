@@ -0,0 +1,67 @@
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.modelcontextprotocol.client.McpSyncClient;
+import io.modelcontextprotocol.spec.McpSchema;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.mcp.McpToolsChangedEvent;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class McpToolCatalogTest {
+
+	private final McpSyncClient trasparenza = client("trasparenza", "cerca_ente");
+	private final McpSyncClient risultati = client("risultati", "cerca_ente", "ultimo_controllo");
+	private final McpToolCatalog catalog = new McpToolCatalog(List.of(trasparenza, risultati),
+			new SimpleMeterRegistry(), Duration.ofMinutes(10), Duration.ofSeconds(1));
+
+	@Test
+	void definitionsAreBuiltOnceAndDuplicatesArePrefixed() {
+		catalog.warmUp();
+
+		var callbacks = catalog.getToolCallbacks();
+		assertEquals(List.of("cerca_ente", "risultati_cerca_ente", "ultimo_controllo"), names());
+		assertSame(callbacks[0].getToolDefinition(), catalog.getToolCallbacks()[0].getToolDefinition());
+	}
+
+	@Test
+	void unreachableServerKeepsItsCachedTools() {
+		catalog.warmUp();
+		when(risultati.listTools()).thenThrow(new IllegalStateException("connection refused"));
+
+		catalog.onApplicationEvent(new McpToolsChangedEvent("trasparenza", List.of(tool("nuovo_tool"))));
+		catalog.refreshStale();
+
+		assertEquals(List.of("cerca_ente", "nuovo_tool", "ultimo_controllo"), names());
+		verify(trasparenza, times(1)).listTools();
+	}
+
+	private List<String> names() {
+		return Arrays.stream(catalog.getToolCallbacks()).map(callback -> callback.getToolDefinition().name()).toList();
+	}
+
+	private static McpSyncClient client(String connection, String... tools) {
+		var client = mock(McpSyncClient.class);
+		when(client.getClientInfo()).thenReturn(new McpSchema.Implementation("spring-ai-mcp-client - " + connection, connection, "1.0.0"));
+		when(client.listTools()).thenReturn(new McpSchema.ListToolsResult(Arrays.stream(tools).map(McpToolCatalogTest::tool).toList(), null));
+		return client;
+	}
+
+	private static McpSchema.Tool tool(String name) {
+		return McpSchema.Tool.builder()
+				.name(name)
+				.description(name)
+				.inputSchema(new McpSchema.JsonSchema("object", Map.of(), List.of(), false, null, null))
+				.build();
+	}
+}
@@ -0,0 +1,139 @@
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.observation.ObservationRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.model.tool.ToolCallingChatOptions;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.execution.DefaultToolExecutionExceptionProcessor;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelToolCallingManagerTest {
+
+	private final ParallelToolCallingManager manager = new ParallelToolCallingManager(name -> null,
+			DefaultToolExecutionExceptionProcessor.builder().build(),
+			new StaticListableBeanFactory().getBeanProvider(ObservationRegistry.class),
+			new ToolResultCache(false, Set.of(), Duration.ofMinutes(1), 10), new SimpleMeterRegistry(),
+			new MockEnvironment(), Duration.ofSeconds(5), 8, 4, false);
+
+	private final AtomicReference<Authentication> toolAuthentication = new AtomicReference<>();
+	private final AtomicReference<Map<String, Object>> toolContext = new AtomicReference<>();
+	private volatile long toolDelayMillis;
+
+	@AfterEach
+	void destroy() {
+		manager.destroy();
+	}
+
+	@Test
+	void generationContextReachesTheToolCalls() {
+		var authentication = new TestingAuthenticationToken("alice", null);
+		var calls = Collections.synchronizedList(new ArrayList<String>());
+		var rounds = new ArrayList<ToolResponseMessage>();
+		ParallelToolCallingManager.ToolCallListener callListener =
+				(tool, duration, timedOut) -> calls.add(tool);
+		ParallelToolCallingManager.ToolRoundListener roundListener =
+				(toolCalls, toolResponses) -> rounds.add(toolResponses);
+
+		var result = manager.executeToolCalls(prompt(Context.of(Authentication.class, authentication,
+				ParallelToolCallingManager.ToolCallListener.class, callListener,
+				ParallelToolCallingManager.ToolRoundListener.class, roundListener)), toolCalls());
+
+		assertSame(authentication, toolAuthentication.get());
+		// il contesto della generazione non è passato ai tool
+		assertTrue(toolContext.get().isEmpty());
+		assertEquals(List.of("cerca_ente"), calls);
+		assertEquals(1, rounds.size());
+		assertEquals("Comune di Pisa", rounds.getFirst().getResponses().getFirst().responseData());
+		assertEquals(3, result.conversationHistory().size());
+		assertNull(SecurityContextHolder.getContext().getAuthentication());
+	}
+
+	@Test
+	void cancellationInTheGenerationContextInterruptsTheToolCalls() {
+		toolDelayMillis = 5_000;
+		var cancellation = new ParallelToolCallingManager.Cancellation(Mono.delay(Duration.ofMillis(100)));
+
+		long start = System.nanoTime();
+		assertThrows(CancellationException.class, () -> manager.executeToolCalls(
+				prompt(Context.of(ParallelToolCallingManager.Cancellation.class, cancellation)), toolCalls()));
+		assertTrue(System.nanoTime() - start < Duration.ofSeconds(4).toNanos());
+	}
+
+	private Prompt prompt(ContextView generationContext) {
+		var options = ToolCallingChatOptions.builder()
+				.toolCallbacks(tool())
+				.toolContext(Map.of(ParallelToolCallingManager.GENERATION_CONTEXT, generationContext))
+				.build();
+		return new Prompt(List.of(new UserMessage("Cerca il Comune di Pisa")), options);
+	}
+
+	private static ChatResponse toolCalls() {
+		var toolCall = new AssistantMessage.ToolCall("1", "function", "cerca_ente", "{\"nome\":\"Pisa\"}");
+		return new ChatResponse(List.of(new Generation(AssistantMessage.builder()
+				.content("")
+				.toolCalls(List.of(toolCall))
+				.build())));
+	}
+
+	private ToolCallback tool() {
+		return new ToolCallback() {
+			@Override
+			public ToolDefinition getToolDefinition() {
+				return ToolDefinition.builder()
+						.name("cerca_ente")
+						.description("Cerca un ente")
+						.inputSchema("{\"type\":\"object\"}")
+						.build();
+			}
+
+			@Override
+			public String call(String toolInput) {
+				return call(toolInput, new ToolContext(Map.of()));
+			}
+
+			@Override
+			public String call(String toolInput, ToolContext context) {
+				toolAuthentication.set(SecurityContextHolder.getContext().getAuthentication());
+				toolContext.set(context.getContext());
+				try {
+					Thread.sleep(toolDelayMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "Comune di Pisa";
+			}
+		};
+	}
+}
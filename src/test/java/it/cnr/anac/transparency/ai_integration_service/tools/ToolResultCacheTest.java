@@ -0,0 +1,40 @@
+package it.cnr.anac.transparency.ai_integration_service.tools;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ToolResultCacheTest {
+
+	private final ToolResultCache cache = new ToolResultCache(true, Set.of("cerca_ente"), Duration.ofMinutes(1), 2);
+
+	@Test
+	void equivalentArgumentsShareTheEntry() {
+		cache.put("cerca_ente", "{\"nome\": \"Comune di Pisa\", \"limite\": 5}", "ok");
+
+		assertEquals("ok", cache.get("cerca_ente", "{\"limite\":5,\"nome\":\"Comune di Pisa\"}"));
+		assertNull(cache.get("cerca_ente", "{\"limite\":6,\"nome\":\"Comune di Pisa\"}"));
+	}
+
+	@Test
+	void onlyConfiguredToolsAreCacheable() {
+		assertFalse(cache.isCacheable("invia_segnalazione"));
+		assertFalse(new ToolResultCache(false, Set.of("cerca_ente"), Duration.ofMinutes(1), 2).isCacheable("cerca_ente"));
+	}
+
+	@Test
+	void leastRecentlyUsedEntryIsEvicted() {
+		cache.put("cerca_ente", "{\"id\":1}", "uno");
+		cache.put("cerca_ente", "{\"id\":2}", "due");
+		cache.get("cerca_ente", "{\"id\":1}");
+		cache.put("cerca_ente", "{\"id\":3}", "tre");
+
+		assertEquals("uno", cache.get("cerca_ente", "{\"id\":1}"));
+		assertNull(cache.get("cerca_ente", "{\"id\":2}"));
+	}
+}
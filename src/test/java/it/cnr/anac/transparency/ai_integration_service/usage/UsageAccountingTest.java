@@ -0,0 +1,119 @@
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageQuotas.Tier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.metadata.DefaultUsage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UsageAccountingTest {
+
+	@TempDir
+	Path directory;
+
+	private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+	@Test
+	void accountIsResolvedFromTheJwtClaims() {
+		var accounting = accounting(quotas());
+		var jwt = Jwt.withTokenValue("token").header("alg", "RS256").subject("alice")
+				.claim("azp", "portale-trasparenza")
+				.claim("realm_access", Map.of("roles", List.of("offline_access", "ai-admin")))
+				.build();
+
+		var account = accounting.account(new JwtAuthenticationToken(jwt));
+
+		assertEquals(new UsageAccounting.Account("alice", "portale-trasparenza", "admin"), account);
+		// i job batch usano il livello dell'ultima richiesta
+		accounting.checkQuota(account, true);
+		assertEquals(new UsageAccounting.Account("alice", UsageAccounting.BATCH_CLIENT, "admin"),
+				accounting.batchAccount("alice"));
+	}
+
+	@Test
+	void flushAppendsOnlyNewUsageAndIsRestoredAfterRestart() throws IOException {
+		var accounting = accounting(quotas());
+		var account = new UsageAccounting.Account("alice", "portale", "default");
+
+		accounting.record(account, new DefaultUsage(100, 20), Duration.ofSeconds(2));
+		accounting.flush();
+		accounting.flush();
+		accounting.record(account, new DefaultUsage(50, 10), Duration.ofSeconds(1));
+		accounting.flush();
+
+		assertEquals(2, lines());
+		var usage = accounting.usageOf("alice").getFirst();
+		assertEquals(2, usage.requests());
+		assertEquals(30, usage.completionTokens());
+		assertEquals(Duration.ofSeconds(3), usage.gpuTime());
+
+		var quotas = quotas();
+		accounting(quotas).restore();
+		assertEquals(new UsageQuotas.Consumption(180, Duration.ofSeconds(3)), quotas.consumption("alice"));
+	}
+
+	@Test
+	void gpuTimeIsTheDurationReportedByOllama() {
+		var accounting = accounting(quotas());
+		var account = new UsageAccounting.Account("alice", "portale", "default");
+		var done = response(ChatResponseMetadata.builder()
+				.usage(new DefaultUsage(100, 20))
+				.keyValue("total-duration", Duration.ofMillis(1500))
+				.build());
+		var interrupted = response(ChatResponseMetadata.builder().build());
+
+		// la durata riportata prevale sul tempo trascorso, che include l'attesa in coda
+		accounting.record(account, done, Duration.ofSeconds(10));
+		assertEquals(Duration.ofMillis(1500), accounting.usageOf("alice").getFirst().gpuTime());
+
+		// stream interrotto prima della risposta finale: si addebita il tempo trascorso
+		accounting.record(account, interrupted, Duration.ofSeconds(2));
+		accounting.record(account, (ChatResponse) null, Duration.ofSeconds(1));
+		var usage = accounting.usageOf("alice").getFirst();
+		assertEquals(Duration.ofMillis(4500), usage.gpuTime());
+		assertEquals(120, usage.promptTokens() + usage.completionTokens());
+	}
+
+	private static ChatResponse response(ChatResponseMetadata metadata) {
+		return new ChatResponse(List.of(new Generation(AssistantMessage.builder().content("Risposta").build())), metadata);
+	}
+
+	private long lines() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.mapToLong(file -> {
+				try {
+					return Files.readAllLines(file).size();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}).sum();
+		}
+	}
+
+	private UsageAccounting accounting(UsageQuotas quotas) {
+		return new UsageAccounting(quotas, "realm_access.roles", "azp", true, directory, objectMapper);
+	}
+
+	private static UsageQuotas quotas() {
+		return new UsageQuotas(true, Duration.ofHours(24), 24,
+				Map.of("admin", new Tier("ai-admin", 0, 0, 0, Duration.ZERO)), Clock.systemUTC());
+	}
+}
@@ -0,0 +1,101 @@
+package it.cnr.anac.transparency.ai_integration_service.usage;
+
+import it.cnr.anac.transparency.ai_integration_service.usage.UsageQuotas.Tier;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UsageQuotasTest {
+
+	private final MutableClock clock = new MutableClock(Instant.parse("2026-01-01T00:00:00Z"));
+
+	@Test
+	void requestsBeyondTheBurstWaitForTheBucketToRefill() {
+		var quotas = quotas(Map.of("default", new Tier(null, 60, 2, 0, Duration.ZERO)));
+
+		quotas.check("alice", "default", true);
+		quotas.check("alice", "default", true);
+		var rejected = assertThrows(QuotaExceededException.class, () -> quotas.check("alice", "default", true));
+		assertEquals("1", rejected.getHeaders().getFirst("Retry-After"));
+		// gli altri utenti e i job batch non sono limitati
+		assertDoesNotThrow(() -> quotas.check("bob", "default", true));
+		assertDoesNotThrow(() -> quotas.check("alice", "default", false));
+
+		clock.advance(Duration.ofSeconds(1));
+		assertDoesNotThrow(() -> quotas.check("alice", "default", true));
+	}
+
+	@Test
+	void tokenQuotaIsReleasedWhenTheConsumptionLeavesTheWindow() {
+		var quotas = quotas(Map.of("default", new Tier(null, 0, 0, 1000, Duration.ZERO)));
+
+		quotas.consume("alice", 600, 0, clock.instant());
+		clock.advance(Duration.ofHours(2));
+		quotas.consume("alice", 400, 0, clock.instant());
+		var rejected = assertThrows(QuotaExceededException.class, () -> quotas.check("alice", "default", false));
+		// il primo consumo esce dalla finestra di 24 ore dopo altre 22 ore
+		assertEquals(Duration.ofHours(22).toSeconds(), Long.parseLong(rejected.getHeaders().getFirst("Retry-After")));
+
+		clock.advance(Duration.ofHours(22));
+		assertEquals(400, quotas.consumption("alice").tokens());
+		assertDoesNotThrow(() -> quotas.check("alice", "default", false));
+	}
+
+	@Test
+	void tierIsTheFirstDeclaredWithOneOfTheRoles() {
+		var tiers = new LinkedHashMap<String, Tier>();
+		tiers.put("admin", new Tier("ai-admin", 0, 0, 0, Duration.ZERO));
+		tiers.put("power", new Tier("ai-power", 120, 0, 0, Duration.ZERO));
+		tiers.put("default", new Tier(null, 1, 1, 0, Duration.ZERO));
+		var quotas = quotas(tiers);
+
+		assertEquals("admin", quotas.tierOf(List.of("ai-power", "ai-admin")));
+		assertEquals("power", quotas.tierOf(List.of("ai-power")));
+		assertEquals("default", quotas.tierOf(List.of("offline_access")));
+		assertEquals(120, quotas.availableRequests("carol", "power"));
+		assertEquals(-1, quotas.availableRequests("carol", "admin"));
+	}
+
+	private UsageQuotas quotas(Map<String, Tier> tiers) {
+		return new UsageQuotas(true, Duration.ofHours(24), 24, tiers, clock);
+	}
+
+	static final class MutableClock extends Clock {
+
+		private Instant now;
+
+		MutableClock(Instant now) {
+			this.now = now;
+		}
+
+		void advance(Duration duration) {
+			now = now.plus(duration);
+		}
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumableStreamsTest {
+
+	private static StreamEvent token(String text) {
+		return new StreamEvent(StreamEvent.TOKEN, "{\"text\":\"" + text + "\"}");
+	}
+
+	@Test
+	void reconnectResumesAfterLastEventId() {
+		var streams = new ResumableStreams(true, Duration.ofSeconds(30), 16);
+		Sinks.Many<StreamEvent> source = Sinks.many().unicast().onBackpressureBuffer();
+
+		// il primo client riceve due eventi e si disconnette
+		var first = streams.start("mario", source.asFlux()).take(2);
+		source.tryEmitNext(token("a"));
+		source.tryEmitNext(token("b"));
+		source.tryEmitNext(token("c"));
+		var received = first.collectList().block();
+		assertEquals(2, received.size());
+
+		// la generazione prosegue senza client
+		source.tryEmitNext(token("d"));
+		source.tryEmitNext(StreamEvent.end());
+		source.tryEmitComplete();
+
+		var lastEventId = received.get(1).id();
+		assertNull(streams.resume(lastEventId, "luigi"), "lo stream appartiene a un altro utente");
+		var resumed = streams.resume(lastEventId, "mario").collectList().block();
+		assertEquals(Arrays.asList("{\"text\":\"c\"}", "{\"text\":\"d\"}", null),
+				resumed.stream().map(ServerSentEvent::data).toList());
+		assertEquals("end", resumed.get(2).event());
+	}
+
+	@Test
+	void generationIsCancelledWhenNoClientReconnects() throws Exception {
+		var streams = new ResumableStreams(true, Duration.ofMillis(50), 16);
+		var cancelled = new AtomicBoolean();
+		Sinks.Many<StreamEvent> source = Sinks.many().unicast().onBackpressureBuffer();
+
+		var first = streams.start("mario", source.asFlux().doOnCancel(() -> cancelled.set(true))).take(1);
+		source.tryEmitNext(token("a"));
+		var lastEventId = first.blockLast().id();
+
+		Thread.sleep(300);
+		assertTrue(cancelled.get());
+		assertNull(streams.resume(lastEventId, "mario"));
+	}
+}
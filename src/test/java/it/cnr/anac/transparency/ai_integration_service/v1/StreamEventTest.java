@@ -0,0 +1,33 @@
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamEventTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void ndjsonLinesCarryTypeAndData() throws Exception {
+		var token = objectMapper.readTree(new StreamEvent(StreamEvent.TOKEN, "{\"text\":\" è\\n\"}").toNdjson());
+		assertEquals("token", token.get("type").asText());
+		assertEquals(" è\n", token.get("text").asText());
+
+		var queued = objectMapper.readTree(
+				new StreamEvent(StreamEvent.QUEUED, "{\"position\":2,\"queueSize\":5,\"waitedMs\":10}").toNdjson());
+		assertEquals("queued", queued.get("type").asText());
+		assertEquals(2, queued.get("position").asInt());
+
+		var error = objectMapper.readTree(StreamEvent.error("Timeout \"connessione\"").toNdjson());
+		assertEquals("error", error.get("type").asText());
+		assertEquals("Timeout \"connessione\"", error.get("message").asText());
+
+		assertEquals("{\"type\":\"end\"}", new String(StreamEvent.end().toNdjson(), StandardCharsets.UTF_8));
+		assertEquals("{\"type\":\"usage\"}",
+				new String(new StreamEvent(StreamEvent.USAGE, "{}").toNdjson(), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,60 @@
+package it.cnr.anac.transparency.ai_integration_service.v1;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenFrameEncoderTest {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void perTokenFramesMatchJackson() throws Exception {
+		var encoder = new TokenFrameEncoder(false, Duration.ofMillis(20), 256);
+		var tokens = List.of(" Ciao", "\"citato\"\n", "tab\t\\", "\u0001", "è €");
+
+		var frames = encoder.encode(Flux.fromIterable(tokens), null).collectList().block();
+
+		assertEquals(tokens.size(), frames.size());
+		for (int i = 0; i < tokens.size(); i++) {
+			assertEquals(tokens.get(i), objectMapper.readTree(frames.get(i)).get("text").asText());
+		}
+	}
+
+	@Test
+	void coalescedFramesPreserveText() throws Exception {
+		var encoder = new TokenFrameEncoder(true, Duration.ofMillis(50), 256);
+		var tokens = Flux.range(0, 100).map(i -> "t" + i + " ");
+
+		var frames = encoder.encode(tokens, null).collectList().block();
+
+		assertTrue(frames.size() < 100, "i token devono essere accorpati");
+		var text = new StringBuilder();
+		for (String frame : frames) {
+			text.append(objectMapper.readTree(frame).get("text").asText());
+		}
+		assertEquals(tokens.reduce("", String::concat).block(), text.toString());
+	}
+
+	@Test
+	void coalescedFramesRespectByteThreshold() throws Exception {
+		var encoder = new TokenFrameEncoder(true, Duration.ofSeconds(10), 8);
+		var tokens = Flux.just("abcd", "efgh", "ijkl", "mnop", "q");
+
+		var frames = encoder.encode(tokens, null).collectList().block();
+
+		assertEquals(List.of("{\"text\":\"abcdefgh\"}", "{\"text\":\"ijklmnop\"}", "{\"text\":\"q\"}"), frames);
+	}
+
+	@Test
+	void utf8LengthCountsMultiByteCharacters() {
+		assertEquals("aè€😀".getBytes(java.nio.charset.StandardCharsets.UTF_8).length,
+				TokenFrameEncoder.utf8Length("aè€😀"));
+	}
+}